@@ -19,10 +19,14 @@
 
 package edu.rice.historytree.bench;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -39,6 +43,11 @@ import edu.rice.historytree.generated.Serialization.PrunedTree;
 import edu.rice.historytree.storage.AppendOnlyArrayStore;
 import edu.rice.historytree.storage.ArrayStore;
 import edu.rice.historytree.storage.HashStore;
+import edu.rice.historytree.storage.LayerArrayStore;
+import edu.rice.historytree.storage.MappedAppendOnlyStore;
+import edu.rice.historytree.storage.PackedArrayStore;
+import edu.rice.historytree.storage.ValueLogStore;
+import edu.rice.historytree.storage.VebStore;
 
 import bb.util.Benchmark;
 
@@ -71,6 +80,12 @@ public class Bench {
 		return histtree;
 	}
 
+	TreeBase<byte[], byte[]>  bulkLoadHistoryTree(List<byte[]> keys, HistoryDataStoreInterface<byte[], byte[]> datastore) {
+		HistoryTree<byte[],byte[]> histtree=new HistoryTree<byte[],byte[]>(new SHA256Agg(),datastore);
+		histtree.bulkLoad(keys.iterator(), ForkJoinPool.commonPool());
+		return histtree;
+	}
+
 	Callable<TreeBase<byte[], byte[]>> makeTree1(final List<byte[]> keys) {
 			return new Callable<TreeBase<byte[], byte[]>>() {
 				public TreeBase<byte[], byte[]> call() {return makeHistoryTree(keys,new ArrayStore<byte[],byte[]>());
@@ -105,13 +120,93 @@ public class Bench {
 		};
 	}
 	
+	Callable<TreeBase<byte[], byte[]>> makeTree6(final List<byte[]> keys) {
+		return new Callable<TreeBase<byte[], byte[]>>() {
+			public TreeBase<byte[], byte[]> call() {return makeHistoryTree(keys,new PackedArrayStore());
+			}
+		};
+	}
+
+	Callable<TreeBase<byte[], byte[]>> makeTree7(final List<byte[]> keys) {
+		return new Callable<TreeBase<byte[], byte[]>>() {
+			public TreeBase<byte[], byte[]> call() {return makeMerkleTree(keys,new PackedArrayStore());
+			}
+		};
+	}
+
+	/**
+	 * Builds each tree on a store kept in one temp file, closing the store of
+	 * the previous tree first, so repeated builds do not leave a file and an
+	 * open channel behind each. Only the latest tree can be used.
+	 */
+	abstract class FileStoreTree implements Callable<TreeBase<byte[], byte[]>> {
+		private final List<byte[]> keys;
+		private final File file;
+		private Closeable store;
+
+		FileStoreTree(List<byte[]> keys, String suffix) throws IOException {
+			this.keys = keys;
+			this.file = File.createTempFile("bench", suffix);
+			file.deleteOnExit();
+		}
+
+		/** Open a new store on the file. */
+		abstract HistoryDataStoreInterface<byte[], byte[]> open(File file) throws IOException;
+
+		public TreeBase<byte[], byte[]> call() throws IOException {
+			if (store != null)
+				store.close();
+			HistoryDataStoreInterface<byte[], byte[]> datastore = open(file);
+			store = (Closeable) datastore;
+			return makeHistoryTree(keys,datastore);
+		}
+	}
+
+	Callable<TreeBase<byte[], byte[]>> makeTree8(final List<byte[]> keys) throws IOException {
+		return new FileStoreTree(keys, ".agg") {
+			HistoryDataStoreInterface<byte[], byte[]> open(File file) throws IOException {
+				return new MappedAppendOnlyStore<byte[]>(file);
+			}
+		};
+	}
+
+	Callable<TreeBase<byte[], byte[]>> makeTree9(final List<byte[]> keys) {
+		return new Callable<TreeBase<byte[], byte[]>>() {
+			public TreeBase<byte[], byte[]> call() {return makeHistoryTree(keys,new LayerArrayStore<byte[],byte[]>());
+			}
+		};
+	}
+
+	Callable<TreeBase<byte[], byte[]>> makeTree10(final List<byte[]> keys) {
+		return new Callable<TreeBase<byte[], byte[]>>() {
+			public TreeBase<byte[], byte[]> call() {return makeHistoryTree(keys,new VebStore<byte[]>());
+			}
+		};
+	}
+
+	Callable<TreeBase<byte[], byte[]>> makeTree11(final List<byte[]> keys) throws IOException {
+		return new FileStoreTree(keys, ".veb") {
+			HistoryDataStoreInterface<byte[], byte[]> open(File file) throws IOException {
+				return new VebStore<byte[]>(file, 32);
+			}
+		};
+	}
+
+	Callable<TreeBase<byte[], byte[]>> makeTree12(final List<byte[]> keys) throws IOException {
+		return new FileStoreTree(keys, ".vals") {
+			HistoryDataStoreInterface<byte[], byte[]> open(File file) throws IOException {
+				return new ValueLogStore<byte[]>(new AppendOnlyArrayStore<byte[], byte[]>(), file);
+			}
+		};
+	}
+
 	class Proof {
-		public Proof(byte[] blob, int leaf) {
+		public Proof(byte[] blob, long leaf) {
 			this.blob = blob;
 			this.leaf = leaf;
 		}
 		final public byte[] blob;
-		final public int leaf;
+		final public long leaf;
 	}
 	
 	
@@ -122,7 +217,7 @@ public class Bench {
 			public TreeBase<byte[], byte[]> call() {
 				TreeBase<byte[],byte[]> clone=tree.makePruned(new HashStore<byte[],byte[]>());		
 				try {
-					clone.copyV(tree,rand.nextInt(tree.version()+1),false);
+					clone.copyV(tree,Math.floorMod(rand.nextLong(),tree.version()+1),false);
 				} catch (ProofError e) {
 					e.printStackTrace();
 				}
@@ -136,7 +231,7 @@ public class Bench {
 		return new Callable<Proof>() {
 			public Proof call() {
 				TreeBase<byte[],byte[]> clone=tree.makePruned(new HashStore<byte[],byte[]>());		
-				int i = rand.nextInt(tree.version()+1);
+				long i = Math.floorMod(rand.nextLong(),tree.version()+1);
 				try {
 					clone.copyV(tree,i,false);
 						} catch (ProofError e) {
@@ -189,8 +284,51 @@ public class Bench {
 			e.printStackTrace();
        	}
     }
-    
+
+	/** Estimate the heap retained per leaf by a tree built with the given callable. */
+	public void estimateMemory(String prefix, Callable<TreeBase<byte[], byte[]>> treec, int keycount) {
+		try {
+			Runtime runtime = Runtime.getRuntime();
+			System.gc();
+			long before = runtime.totalMemory() - runtime.freeMemory();
+			TreeBase<byte[], byte[]> tree = treec.call();
+			System.gc();
+			long after = runtime.totalMemory() - runtime.freeMemory();
+			System.out.format("%s-Memory-per-leaf: = %d\n", prefix, (after - before) / keycount);
+			// Keep the tree reachable until measured.
+			tree.version();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
 	
+	Callable<TreeBase<byte[], byte[]>> makeTree13(final List<byte[]> keys) {
+		return new Callable<TreeBase<byte[], byte[]>>() {
+			public TreeBase<byte[], byte[]> call() {return bulkLoadHistoryTree(keys,new AppendOnlyArrayStore<byte[],byte[]>());
+			}
+		};
+	}
+
+	Callable<TreeBase<byte[], byte[]>> makeTree14(final List<byte[]> keys, final ForkJoinPool pool) {
+		return new Callable<TreeBase<byte[], byte[]>>() {
+			public TreeBase<byte[], byte[]> call() {return MerkleTree.build(new SHA256Agg(),new ArrayStore<byte[],byte[]>(),keys,pool);
+			}
+		};
+	}
+
+	/** Time building a frozen Merkle tree on pools of 1, 2, 4, ... threads, up to the number of cores. */
+	public void merkleScaling(List<byte[]> keys) throws Exception {
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; ; threads = Math.min(2 * threads, cores)) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			Benchmark build = new Benchmark(makeTree14(keys, pool));
+			pool.shutdown();
+			System.out.format("Tree-MAP-Build-threads-%d: = %.0f leaves/s\n", threads, keys.size() / build.getMean());
+			if (threads == cores)
+				break;
+		}
+	}
+
 	public void doBenchmark(int mode, int keycount) throws Exception {
 		ArrayList<byte[]> keys = makeKeyList(keycount);
 		Callable<TreeBase<byte[], byte[]>> treec = null;
@@ -205,6 +343,27 @@ public class Bench {
 			treec = makeTree4(keys);  prefix="Tree-MA-";
 		} else if (mode == 5) {
 			treec = makeTree5(keys);  prefix="Tree-MH-";
+		} else if (mode == 6) {
+			treec = makeTree6(keys);  prefix="Tree-HP-";
+		} else if (mode == 7) {
+			treec = makeTree7(keys);  prefix="Tree-MP-";
+		} else if (mode == 8) {
+			treec = makeTree8(keys);  prefix="Tree-HM-";
+		} else if (mode == 9) {
+			treec = makeTree9(keys);  prefix="Tree-HL-";
+		} else if (mode == 10) {
+			treec = makeTree10(keys);  prefix="Tree-HV-";
+		} else if (mode == 11) {
+			treec = makeTree11(keys);  prefix="Tree-HVM-";
+		} else if (mode == 12) {
+			treec = makeTree12(keys);  prefix="Tree-HVL-";
+		} else if (mode == 13) {
+			treec = makeTree13(keys);  prefix="Tree-HAB-";
+		} else if (mode == 14) {
+			treec = makeTree14(keys,ForkJoinPool.commonPool());  prefix="Tree-MAP-";
+		} else if (mode == 15) {
+			merkleScaling(keys);
+			return;
 		} else
 			throw new Error();
 
@@ -214,7 +373,11 @@ public class Bench {
 		//if (true)
 		//	return;
 		
-		System.out.println(prefix+"Build " + new Benchmark(treec));
+		estimateMemory(prefix, treec, keycount);
+
+		Benchmark build = new Benchmark(treec);
+		System.out.println(prefix+"Build " + build);
+		System.out.format("%s-Build-throughput: = %.0f leaves/s\n", prefix, keycount / build.getMean());
 		TreeBase<byte[], byte[]> tree = treec.call();
 		System.out.println(prefix+"ProofGen " + new Benchmark(makeProof(tree)));
 		System.out.println(prefix+"ProofString " + new Benchmark(makeSerializedProof(tree)));
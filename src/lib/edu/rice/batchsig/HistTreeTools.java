@@ -8,21 +8,25 @@ import edu.rice.historytree.generated.Serialization.PrunedTree;
 import edu.rice.historytree.generated.Serialization.SigTreeType;
 import edu.rice.historytree.generated.Serialization.TreeSigBlob;
 import edu.rice.historytree.generated.Serialization.TreeSigMessage;
-import edu.rice.historytree.storage.HashStore;
+import edu.rice.historytree.storage.PackedHashStore;
 
 /** Utility code for the various history tree verifiers, both the eager ones here and the lazy ones. */
 public class HistTreeTools {
 	/** Parse the history tree structure out of an incoming message.
 	 * 
-	 *  @return the parsed history tree.
+	 *  @return the parsed history tree, or null if the proof is malformed.
 	 *  */
 	public static HistoryTree<byte[], byte[]> parseHistoryTree(IMessage message) {
 		TreeSigBlob sigblob = message.getSignatureBlob();
 		PrunedTree pb = sigblob.getTree();
 		HistoryTree<byte[], byte[]> tree = new HistoryTree<byte[], byte[]>(
-				new SHA256Agg(), new HashStore<byte[], byte[]>());
-		tree.updateTime(pb.getVersion());
-		tree.parseTree(pb);
+				new SHA256Agg(), new PackedHashStore());
+		try {
+			tree.updateTime(pb.getVersion());
+			tree.parseTree(pb);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
 		return tree;
 	}
 
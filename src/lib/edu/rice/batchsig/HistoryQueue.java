@@ -19,58 +19,197 @@
 
 package edu.rice.batchsig;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 
 import com.google.protobuf.ByteString;
 
 import edu.rice.batchsig.bench.Tracker;
+import edu.rice.historytree.DurableHistoryTree;
 import edu.rice.historytree.HistoryTree;
 import edu.rice.historytree.ProofError;
 import edu.rice.historytree.TreeBase;
+import edu.rice.historytree.TreeView;
 import edu.rice.historytree.aggs.SHA256Agg;
 import edu.rice.historytree.generated.Serialization.PrunedTree;
 import edu.rice.historytree.generated.Serialization.SigTreeType;
 import edu.rice.historytree.generated.Serialization.SignatureType;
 import edu.rice.historytree.generated.Serialization.TreeSigBlob;
 import edu.rice.historytree.generated.Serialization.TreeSigMessage;
-import edu.rice.historytree.storage.AppendOnlyArrayStore;
-import edu.rice.historytree.storage.HashStore;
+import edu.rice.historytree.storage.ConcurrentStore;
+import edu.rice.historytree.storage.PathStore;
 
 /** Sign a set of messages by placing them into a history tree.
  * 
  * 
  */
 public class HistoryQueue extends QueueBase<OMessage> implements SuspendableProcessQueue<OMessage> {
-	/** Largest size we want the history tree to grow to before rotating  */
-	private final int MAX_SIZE=1<<16 - 2; // Should be just under a power of 2.
+	/** Number of events to add to the history tree between discarding the parts later proofs cannot need. */
+	private static final int RETAIN_INTERVAL = 1 << 14;
+	/** Version of the tree when it was last trimmed. */
+	private long retained;
 	
 	/** Track when we last contacted a given recipient_host, so we know which splices to use. */
-	private HashMap<Object,Integer> lastcontacts;
+	private HashMap<Object,Long> lastcontacts;
 	/** As a history tree may be used among multiple messages, indicate which message this is dealing with. */
 	private long treeid;
 
 	/** The actual history tree. */
 	private HistoryTree<byte[], byte[]> histtree;
+
+	/** Write-ahead log of the history tree, or null if the tree is kept in memory only. */
+	private final File logfile;
+	/** The history tree, when it is durable. Same object as histtree. */
+	private DurableHistoryTree<byte[], byte[]> durabletree;
 		
 	public HistoryQueue(SignaturePrimitives signer) {
 		super(signer);
+		this.logfile = null;
 		initTree();
 	}
 
+	/**
+	 * Make a queue whose history tree survives restarts. If logfile holds the
+	 * log of an earlier run, the tree is recovered from it and keeps its
+	 * treeid, and the last contact with each recipient is recovered along
+	 * with it, so recipients keep getting splices to it.
+	 * 
+	 * Only recipients that are a String, Integer or Long are remembered
+	 * across restarts; other recipients cannot be recognized in a new process.
+	 */
+	public HistoryQueue(SignaturePrimitives signer, File logfile) throws IOException {
+		super(signer);
+		this.logfile = logfile;
+		if (logfile.exists() && logfile.length() > 0) {
+			final HashMap<Object, Long> contacts = new HashMap<Object, Long>();
+			// The checkpoint is scattered across the whole tree, and the
+			// store is replaced by retain() below.
+			durabletree = DurableHistoryTree.recover(logfile, new SHA256Agg(),
+					new ConcurrentStore<byte[], byte[]>(Long.MAX_VALUE), a -> decodeContacts(a, contacts),
+					ForkJoinPool.commonPool());
+			treeid = durabletree.getTreeId();
+			histtree = durabletree;
+			lastcontacts = contacts;
+			// The log holds every event since the last trim; trim again at once.
+			retain();
+		} else {
+			initTree();
+		}
+	}
+
 	/** Create the tree. */
 	private void initTree() {		
 		treeid = new Random().nextLong();
-		histtree = new HistoryTree<byte[], byte[]>(new SHA256Agg(), new AppendOnlyArrayStore<byte[], byte[]>());
-		lastcontacts = new HashMap<Object, Integer>();
+		if (logfile == null) {
+			histtree = new HistoryTree<byte[], byte[]>(new SHA256Agg(), new ConcurrentStore<byte[], byte[]>());
+		} else {
+			try {
+				if (durabletree != null)
+					durabletree.close();
+				durabletree = DurableHistoryTree.create(logfile, treeid, new SHA256Agg(),
+						new ConcurrentStore<byte[], byte[]>());
+			} catch (IOException e) {
+				throw new Error("Unable to create history tree log", e);
+			}
+			histtree = durabletree;
+		}
+		retained = -1;
+		lastcontacts = new HashMap<Object, Long>();
 	}
 
-	/** Make a new fresh history tree if the additional nodes would make it bigger than the target size. */
-	private void rotateStore(int additionalNodes) {
-		if (additionalNodes + histtree.version() > MAX_SIZE)
-			initTree();
+	/**
+	 * Every RETAIN_INTERVAL events, discard everything in the tree except what
+	 * is needed to prove new messages and splice them to each recipient's last
+	 * contact. This bounds the memory used by the tree without starting a new
+	 * one, so recipients keep being able to splice.
+	 */
+	private void retainRecent() {
+		if (histtree.version() - retained < RETAIN_INTERVAL)
+			return;
+		retain();
+	}
+
+	/** Trim the tree, and replace its log with a checkpoint of what is left and the last contacts. */
+	private void retain() {
+		if (histtree.version() >= 0) {
+			long horizon = histtree.version() + 1;
+			histtree.retain(horizon, lastcontacts.values(), new ConcurrentStore<byte[], byte[]>(horizon));
+		}
+		retained = histtree.version();
+		if (durabletree != null) {
+			try {
+				durabletree.compact(encodeContacts(lastcontacts));
+			} catch (IOException e) {
+				throw new Error("Unable to compact history tree log", e);
+			}
+		}
+	}
+
+	/**
+	 * Encode the recipients that can be recognized after a restart, with the
+	 * version each was last contacted at, as (count, count*(version, type,
+	 * recipient)).
+	 */
+	private static byte[] encodeContacts(Map<Object, Long> contacts) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			ArrayList<Map.Entry<Object, Long>> kept = new ArrayList<Map.Entry<Object, Long>>();
+			for (Map.Entry<Object, Long> e : contacts.entrySet())
+				if (e.getKey() instanceof String || e.getKey() instanceof Integer || e.getKey() instanceof Long)
+					kept.add(e);
+			out.writeInt(kept.size());
+			for (Map.Entry<Object, Long> e : kept) {
+				out.writeLong(e.getValue());
+				Object recipient = e.getKey();
+				if (recipient instanceof String) {
+					out.writeByte('S');
+					out.writeUTF((String) recipient);
+				} else if (recipient instanceof Integer) {
+					out.writeByte('I');
+					out.writeInt((Integer) recipient);
+				} else {
+					out.writeByte('L');
+					out.writeLong((Long) recipient);
+				}
+			}
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new Error("Unable to encode contacts", e);
+		}
+	}
+
+	/** Add contacts encoded by encodeContacts() to contacts. */
+	private static void decodeContacts(byte[] data, Map<Object, Long> contacts) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				long version = in.readLong();
+				int type = in.readByte();
+				if (type == 'S')
+					contacts.put(in.readUTF(), version);
+				else if (type == 'I')
+					contacts.put(in.readInt(), version);
+				else if (type == 'L')
+					contacts.put(in.readLong(), version);
+				else
+					throw new IOException("Unknown recipient type " + type);
+			}
+		} catch (IOException e) {
+			throw new Error("Unable to decode contacts", e);
+		}
 	}
 	
 	@Override
@@ -80,78 +219,90 @@ public class HistoryQueue extends QueueBase<OMessage> implements SuspendableProc
 			return;
 		Tracker.singleton.trackBatchSize(oldqueue.size());
 
-		/**
-		 * For now, only a single history tree process can be outstanding. The
-		 * current pruned tree building code does not support building pruned
-		 * trees around anything but the latest commitment. This means that we
-		 * cannot drop the tree lock to do RSA concurrently; the tree will grow
-		 * and we'll be unable to generate proofs.
-		 *
-		 * TODO: If we fix that, then a simple many-readers/one-writers lock will 
-		 * allow concurrency between RSA, adding to the history tree and generating proofs.
-		 */
-		// Lock the history tree from concurrent modification 
+		long leaf_offset;
+		TreeView<byte[], byte[]> view;
+		/* Splice point for each recipient in the batch, as of before the batch. */
+		HashMap<Object, Long> splices = new HashMap<Object, Long>();
+		// Only appending needs the lock. Signing and proofs are done from a
+		// view of this version of the tree, which other batches cannot change.
 		synchronized (histtree) {
-			// First, is it big enough to build a new tree?
-			rotateStore(oldqueue.size());
+			// First, is it time to trim the tree?
+			retainRecent();
 
 			/* Leaf indices are offset by the initial size of the tree */
-			int leaf_offset = histtree.version()+1; // Add one because message is inserted at the NEXT index.
+			leaf_offset = histtree.version()+1; // Add one because message is inserted at the NEXT index.
 
-			for (Message m : oldqueue) {
-				histtree.append(m.getData());
-			}
+			ArrayList<byte[]> data = new ArrayList<byte[]>(oldqueue.size());
+			for (Message m : oldqueue)
+				data.add(m.getData());
+			// Large batches are aggregated on every core.
+			histtree.appendAll(data, ForkJoinPool.commonPool());
 
-			// Make the unified signature of all.
-			TreeSigMessage.Builder msgbuilder = TreeSigMessage.newBuilder()
-					.setTreetype(SigTreeType.HISTORY_TREE)
-					.setVersion(histtree.version())
-					.setRoothash(ByteString.copyFrom(histtree.agg()));
-
-			// Make the template sigblob containing the RSA signature.
-			TreeSigBlob.Builder sigblob = TreeSigBlob.newBuilder();
-			sigblob.setSignatureType(SignatureType.SINGLE_HISTORY_TREE);
-			signer.sign(msgbuilder.build().toByteArray(),sigblob);
-
-			// Make the read-only template.
-			TreeSigBlob template=sigblob.build();
-
-			// Although the tree is semantically read-only, it is still possible
-			// for it to be mutated. Eg, during array resizing. A one-writer/many-readers 
-			// lock is still needed, but RSA can run in parallel as well as threads generating proofs.
-			for (int i = 0; i < oldqueue.size(); i++) {
-				processMessage(oldqueue.get(i), leaf_offset + i, TreeSigBlob.newBuilder(template));
-			}
-			// Update the last contacts for each message.
-			for (int i = 0; i < oldqueue.size(); i++) {
-				OMessage message = oldqueue.get(i);
+			HashMap<Object, Long> contacts = new HashMap<Object, Long>();
+			for (OMessage message : oldqueue) {
 				Object recipient = message.getRecipient();
+				if (lastcontacts.containsKey(recipient))
+					splices.put(recipient, lastcontacts.get(recipient));
 				// Indicate that we want a splicepoint to the end of the bundle.
-				lastcontacts.put(recipient,histtree.version());
-				
+				contacts.put(recipient, histtree.version());
 			}
+			// The batch, and who it went to, must be durable before anything is signed over it.
+			if (durabletree != null) {
+				try {
+					durabletree.commit(encodeContacts(contacts));
+				} catch (IOException e) {
+					throw new Error("Unable to commit history tree log", e);
+				}
+			}
+			// Update the last contacts for each message.
+			lastcontacts.putAll(contacts);
+			view = histtree.view();
+		}
+
+		// Make the unified signature of all.
+		TreeSigMessage.Builder msgbuilder = TreeSigMessage.newBuilder()
+				.setTreetype(SigTreeType.HISTORY_TREE)
+				.setVersion(view.version())
+				.setRoothash(ByteString.copyFrom(view.agg()));
+
+		// Make the template sigblob containing the RSA signature.
+		TreeSigBlob.Builder sigblob = TreeSigBlob.newBuilder();
+		sigblob.setSignatureType(SignatureType.SINGLE_HISTORY_TREE);
+		signer.sign(msgbuilder.build().toByteArray(),sigblob);
+
+		// Make the read-only template.
+		TreeSigBlob template=sigblob.build();
+
+		// Each pruned tree is serialized before the next is built, so one store is reused for all of them.
+		PathStore<byte[], byte[]> prunedstore = new PathStore<byte[], byte[]>();
+		for (int i = 0; i < oldqueue.size(); i++) {
+			prunedstore.clear();
+			processMessage(oldqueue.get(i), view, splices, leaf_offset + i, TreeSigBlob.newBuilder(template), prunedstore);
 		}
 	}
 
 	/** Fill in the protocol buffer object for each message with the appropriate pruned tree.
 	 * 
+	 * @param view The version of the tree that was signed.
+	 * @param splices The last contact with each recipient before this batch.
+	 * @param prunedstore An empty store to build the pruned tree in.
 	 */
-	private void processMessage(OMessage message, int leaf_offset, TreeSigBlob.Builder template) {
+	private void processMessage(OMessage message, TreeView<byte[], byte[]> view,
+			HashMap<Object, Long> splices, long leaf_offset, TreeSigBlob.Builder template,
+			PathStore<byte[], byte[]> prunedstore) {
 		try {
 			System.out.format("Processing leaf %d for recipient host %s\n",leaf_offset, message.getRecipient().toString());
 			// Make the pruned tree.
-			TreeBase<byte[], byte[]> pruned = histtree
-					.makePruned(new HashStore<byte[], byte[]>());
-			pruned.copyV(histtree, leaf_offset, true);
+			TreeBase<byte[], byte[]> pruned = view.makePruned(prunedstore);
+			pruned.copyV(view, leaf_offset, true);
 
 			Object recipient = message.getRecipient();
-			if (lastcontacts.containsKey(recipient)) {
-				//System.out.println(lastcontacts.toString());
-				System.out.println("Found a lastcontact at "+lastcontacts.get(recipient));
-				int lastcontact = lastcontacts.get(recipient);
-				if (lastcontact != histtree.version()) {
-					pruned.copyV(histtree, lastcontacts.get(recipient),false);
-					template.addSpliceHint(lastcontacts.get(recipient));
+			if (splices.containsKey(recipient)) {
+				System.out.println("Found a lastcontact at "+splices.get(recipient));
+				long lastcontact = splices.get(recipient);
+				if (lastcontact != view.version()) {
+					pruned.copyV(view, lastcontact,false);
+					template.addSpliceHint(lastcontact);
 				}
 			}
 			
@@ -20,6 +20,7 @@
 package edu.rice.batchsig;
 
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 
 
 import com.google.protobuf.ByteString;
@@ -36,7 +37,7 @@ import edu.rice.historytree.generated.Serialization.SignatureType;
 import edu.rice.historytree.generated.Serialization.TreeSigBlob;
 import edu.rice.historytree.generated.Serialization.TreeSigMessage;
 import edu.rice.historytree.storage.ArrayStore;
-import edu.rice.historytree.storage.HashStore;
+import edu.rice.historytree.storage.PathStore;
 
 /** Sign a set of messages by placing them into a history tree.
  * 
@@ -57,14 +58,13 @@ public class MerkleQueue extends QueueBase<OMessage> implements SuspendableProce
 		
 		AggregationInterface<byte[], byte[]> aggobj = new SHA256Agg();
 		ArrayStore<byte[], byte[]> datastore = new ArrayStore<byte[], byte[]>();
-		MerkleTree<byte[], byte[]> merkletree = 
-				new MerkleTree<byte[], byte[]>(aggobj, datastore);
 
-		// Add all of the messages to the Merkle tree.
-		for (Message m : oldqueue) {
-			merkletree.append(m.getData());
-		}
-		merkletree.freeze();
+		// Add all of the messages to the Merkle tree, hashing large batches on every core.
+		ArrayList<byte[]> data = new ArrayList<byte[]>(oldqueue.size());
+		for (Message m : oldqueue)
+			data.add(m.getData());
+		MerkleTree<byte[], byte[]> merkletree =
+				MerkleTree.build(aggobj, datastore, data, ForkJoinPool.commonPool());
 
 		// At this point, everything is read-only. I can generate signatures and
 		// pruned trees concurrently.
@@ -88,19 +88,21 @@ public class MerkleQueue extends QueueBase<OMessage> implements SuspendableProce
 		// Make the read-only template.
 		TreeSigBlob template = sigblob.build();
 				
+		// Each pruned tree is serialized before the next is built, so one store is reused for all of them.
+		PathStore<byte[], byte[]> prunedstore = new PathStore<byte[], byte[]>();
 		for (int i = 0; i < oldqueue.size(); i++) {
-			processMessage(merkletree, oldqueue.get(i), i, TreeSigBlob.newBuilder(template));
+			prunedstore.clear();
+			processMessage(merkletree, oldqueue.get(i), i, TreeSigBlob.newBuilder(template), prunedstore);
 		}
 	}
 	
 	/** Generate the pruned tree field for each message, given the template 
-	 * containing the public key signature. */
+	 * containing the public key signature. The pruned tree is built in prunedstore, which must be empty. */
 	private void processMessage(TreeBase<byte[], byte[]> merkletree, OMessage message, int leaf, 
-			TreeSigBlob.Builder template) {	
+			TreeSigBlob.Builder template, PathStore<byte[], byte[]> prunedstore) {	
 		try {
 			// Make the pruned tree.
-			TreeBase<byte[], byte[]> pruned = merkletree
-					.makePruned(new HashStore<byte[], byte[]>());
+			TreeBase<byte[], byte[]> pruned = merkletree.makePruned(prunedstore);
 			pruned.copyV(merkletree, leaf, true);
 
 			PrunedTree.Builder treebuilder = PrunedTree.newBuilder();
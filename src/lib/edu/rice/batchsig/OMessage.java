@@ -18,7 +18,8 @@ public interface OMessage extends Message {
 	 * 
 	 * Used for setting the splice points for history tree membership 
 	 * proofs that support splicing. Return value must be suitable as a key for a hash table. 
-	 * If no recipient_host, return a new'ed Object(). */
+	 * If no recipient_host, return a new'ed Object(). A durable HistoryQueue
+	 * only remembers recipients that are a String, Integer or Long across restarts. */
 	public Object getRecipient();
 		
 	
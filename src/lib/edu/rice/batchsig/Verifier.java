@@ -46,11 +46,13 @@ abstract public class Verifier {
 	/**
 	 * Given a message to be checked, see if the hash stored at that leaf
 	 * matches the hash of the message. Shared for both Merkle and history
-	 * trees.
+	 * trees. A null tree is a proof that failed to parse, and never matches.
 	 */
 	static public boolean checkLeaf(IMessage message, TreeBase<byte[], byte[]> parsed) {
 		TreeSigBlob sigblob = message.getSignatureBlob();
 
+		if (parsed == null || sigblob.getLeaf() < 0 || sigblob.getLeaf() > parsed.version())
+			return false;
 		// See if the message is in the tree.
 		NodeCursor<byte[], byte[]> leaf = parsed.leaf(sigblob.getLeaf());
 		if (leaf == null)
@@ -37,7 +37,7 @@ public class VerifyHisttreeGroup extends VerifyHisttreeEagerlyBase {
 		 * For each version number a confirmed valid message that claims to
 		 * splice the requested message
 		 */
-		HashMap<Integer, IMessage> splices = new HashMap<Integer, IMessage>();
+		HashMap<Long, IMessage> splices = new HashMap<Long, IMessage>();
 
 		/** Cache of the parsed trees */
 		HashMap<IMessage, HistoryTree<byte[], byte[]>> trees = new HashMap<IMessage, HistoryTree<byte[], byte[]>>();
@@ -54,7 +54,7 @@ public class VerifyHisttreeGroup extends VerifyHisttreeEagerlyBase {
 				continue;
 			}
 
-			int version = tree.version();
+			long version = tree.version();
 			// See if this message can be spliced on to something we already
 			// know about.
 			if (splices.containsKey(version)) {
@@ -103,7 +103,7 @@ public class VerifyHisttreeGroup extends VerifyHisttreeEagerlyBase {
 			// Save the splices, if any, of this message, if validated.
 			if (validated && m.getSignatureBlob().getSpliceHintCount() > 0) {
 				trees.put(m, tree);
-				for (int splice : m.getSignatureBlob().getSpliceHintList()) {
+				for (long splice : m.getSignatureBlob().getSpliceHintList()) {
 					if (tree.leaf(splice) == null) {
 						// Claims it has splice, but doesn't have the leaf.
 						System.out.println("Claims splice, but no splice included.");
@@ -8,16 +8,21 @@ import edu.rice.historytree.generated.Serialization.PrunedTree;
 import edu.rice.historytree.generated.Serialization.SigTreeType;
 import edu.rice.historytree.generated.Serialization.TreeSigBlob;
 import edu.rice.historytree.generated.Serialization.TreeSigMessage;
-import edu.rice.historytree.storage.HashStore;
+import edu.rice.historytree.storage.PackedHashStore;
 
 /** Verify Merkle tree signatures */
 public class VerifyMerkle extends Verifier {
+	/** Parse the Merkle tree out of an incoming message, or return null if the proof is malformed. */
 	static public MerkleTree<byte[],byte[]> parseMerkleTree(IMessage message) {
 		TreeSigBlob sigblob = message.getSignatureBlob();
 		PrunedTree pb=sigblob.getTree();
-		MerkleTree<byte[],byte[]> tree= new MerkleTree<byte[],byte[]>(new SHA256Agg(),new HashStore<byte[],byte[]>());
-		tree.updateTime(pb.getVersion());
-		tree.parseTree(pb);
+		MerkleTree<byte[],byte[]> tree= new MerkleTree<byte[],byte[]>(new SHA256Agg(),new PackedHashStore());
+		try {
+			tree.updateTime(pb.getVersion());
+			tree.parseTree(pb);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
 		return tree;
 	}
 
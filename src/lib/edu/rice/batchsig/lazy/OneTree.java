@@ -23,14 +23,14 @@ public class OneTree {
 	final private SignaturePrimitives signer;
 	
 	/** Map from an integer version number to the message at that version number. */
-	HashMap<Integer, IMessage> bundles = new LinkedHashMap<Integer, IMessage>(1,.75f, false);
+	HashMap<Long, IMessage> bundles = new LinkedHashMap<Long, IMessage>(1,.75f, false);
 	
 	/** 
 	 *    Cache of root hashes for each unvalidated bundle.
 	 *    When we verify a splice, we need to take the predecessor's bundle agg() and compare it to aggV(pred.version).
 	 *    Rather than rebuild the pred's pruned tree, or cache the whole thing, just cache the parts we need, the agg().
 	 */
-	HashMap<Integer, ByteString> roothashes = new HashMap<Integer, ByteString>();
+	HashMap<Long, ByteString> roothashes = new HashMap<Long, ByteString>();
 
 	/**
 	 * This hashmap finds the message signatures we need to verify to validate a
@@ -41,7 +41,7 @@ public class OneTree {
 	 * This map tells us which message has that root, so that we can use its public signature to verify the tree.
 	 * 
 	 */
-	HashMap<Integer, IMessage> validators = new HashMap<Integer, IMessage>();
+	HashMap<Long, IMessage> validators = new HashMap<Long, IMessage>();
 	
 	/**
 	 * Invariant; The dag contains nodes for each message and the version
@@ -57,7 +57,7 @@ public class OneTree {
 	 * if the splice fails.
 	 * 
 	 * */
-	final private Dag<Integer> dag = new Dag<Integer>();
+	final private Dag<Long> dag = new Dag<Long>();
 
 	/** Which author created the history tree that we are tracking? */
 	final private Object author;
@@ -88,8 +88,8 @@ public class OneTree {
 	}
 
 	/** Make or get the node in the Dag corresponding to the given message. */
-	Dag<Integer>.DagNode getNode(IMessage m) {
-		Integer key = m.getSignatureBlob().getLeaf();
+	Dag<Long>.DagNode getNode(IMessage m) {
+		Long key = m.getSignatureBlob().getLeaf();
 		return dag.makeOrGet(key);
 	}
 
@@ -98,10 +98,9 @@ public class OneTree {
 	void addMessage(IMessage m) {
 		//System.out.println("\nAdding message "+m);
 		size++;
-		Integer key = m.getSignatureBlob().getLeaf();
-		Integer bundlekey = m.getSignatureBlob().getTree().getVersion();
+		Long key = m.getSignatureBlob().getLeaf();
+		Long bundlekey = m.getSignatureBlob().getTree().getVersion();
 		HistoryTree<byte[],byte[]> tree = HistTreeTools.parseHistoryTree(m);
-		ByteString agg = ByteString.copyFrom(tree.agg());
 		
 		// First, see if this message is well-formed in the bundle?   Yes. It is.
 		if (!Verifier.checkLeaf(m,tree)) {
@@ -110,6 +109,7 @@ public class OneTree {
 			size--;
 			return;
 		}
+		ByteString agg = ByteString.copyFrom(tree.agg());
 		
 		// First, have we seen this ending bundle before?
 		if (validators.containsKey(bundlekey)) {
@@ -128,8 +128,8 @@ public class OneTree {
 		// anymore, and can just store the data, except for validating splices.
 
 		// Now, build an edge in the dag from the integer representing the bundle to this message.
-		Dag<Integer>.DagNode node = dag.makeOrGet(key);
-		Dag<Integer>.DagNode bundlenode = dag.makeOrGet(bundlekey);
+		Dag<Long>.DagNode node = dag.makeOrGet(key);
+		Dag<Long>.DagNode bundlenode = dag.makeOrGet(bundlekey);
 
 		// Add a dependency edge for the bundle.
 		if (!node.get().equals(bundlenode.get()))
@@ -139,16 +139,16 @@ public class OneTree {
 				
 		// PART 1: See if we've seen later bundles we might splice into.
 		// This case should be rare and only occur when bundles arrive out-of-order.
-		for (Dag<Integer>.DagNode succ : bundlenode.getParents()) {
+		for (Dag<Long>.DagNode succ : bundlenode.getParents()) {
 			// For each later message in the dag that provisionally splices this message.
 			//System.out.println("Looking at later bundles");
-			Integer succi = succ.get();
+			Long succi = succ.get();
 			IMessage succm = bundles.get(succi);
 			if (succm == null)
 				throw new Error("Algorithm bug.");
 			// Time to verify the splice is OK. 
 			HistoryTree<byte[],byte[]> succtree = HistTreeTools.parseHistoryTree(succm);
-			if (Arrays.equals(succtree.aggV(bundlekey.intValue()),tree.agg())) {
+			if (Arrays.equals(succtree.aggV(bundlekey.longValue()),tree.agg())) {
 				System.out.println("Unusual splice circumstance -- success");
 				dag.addEdge(succ,bundlenode);
 			} else {
@@ -158,12 +158,12 @@ public class OneTree {
 		}
 			
 		// PART 2: See which prior bundles we splice into.
-		for (Integer predi : m.getSignatureBlob().getSpliceHintList()) {
-			ByteString aggv = ByteString.copyFrom(tree.aggV(predi.intValue()));
+		for (Long predi : m.getSignatureBlob().getSpliceHintList()) {
+			ByteString aggv = ByteString.copyFrom(tree.aggV(predi.longValue()));
 			//System.out.format("Handling splicehint %d with hash %d\n",predi,aggv.hashCode());
 			// For each splicepoint to prior bundles in this message,
 			IMessage predm = validators.get(predi);
-			Dag<Integer>.DagNode prednode = dag.makeOrGet(predi);
+			Dag<Long>.DagNode prednode = dag.makeOrGet(predi);
 			// Have we seen the prior message?
 			if (predm == null) {
 				//System.out.println("No priors found, but adding edge anyways.");
@@ -190,12 +190,12 @@ public class OneTree {
 
 	/** Called to remove a real message from all tracking */
 	private void remove(IMessage m) {
-		int index = m.getSignatureBlob().getLeaf();
+		long index = m.getSignatureBlob().getLeaf();
 		remove(index);
 	}
 	
 	/** Called to remove a message index from all tracking */
-	private void remove(int index) {
+	private void remove(long index) {
 		if (bundles.remove(index)!= null)
 			size--;
 		validators.remove(index);
@@ -208,7 +208,7 @@ public class OneTree {
 	boolean forceOldest() {
 		System.out.format("Forcing oldest message (OneTree)\n");
 
-		Iterator<Integer> i = bundles.keySet().iterator();
+		Iterator<Long> i = bundles.keySet().iterator();
 		//System.out.format("%d == %d?\n",size,bundles.size());
 		if (!i.hasNext()) {
 			if (size != 0)
@@ -232,15 +232,15 @@ public class OneTree {
 			//return;
 		}
 		
-		Dag<Integer>.DagNode node = getNode(m);
+		Dag<Long>.DagNode node = getNode(m);
 
 		// Step one: Find a root.
-		Dag<Integer>.Path rootPath = dag.rootPath(node);
+		Dag<Long>.Path rootPath = dag.rootPath(node);
 		// Step two, until we find a root whose signature verifies.
 		while (true) {
 			//System.out.println("WhileLoop at rootPath ="+rootPath);
-			Dag<Integer>.DagNode root = rootPath.root();
-			Integer rooti = root.get();
+			Dag<Long>.DagNode root = rootPath.root();
+			Long rooti = root.get();
 			// An incoming message that nominally validates the root bundle (may be more than one)
 			IMessage rootm = validators.get(rooti);
 			//System.out.format("Got root at %d about to see if it verifies %s\n",rooti,rootm);
@@ -251,10 +251,10 @@ public class OneTree {
 				//System.out.println("Verified the root's signature - SUCCESS. It is valid");
 				// Success!
 				// Now traverse *all* descendents and mark them as good.
-				Collection<Dag<Integer>.DagNode> descendents = dag.getAllChildren(root);
-				for (Dag<Integer>.DagNode i : descendents) {
+				Collection<Dag<Long>.DagNode> descendents = dag.getAllChildren(root);
+				for (Dag<Long>.DagNode i : descendents) {
 					//System.out.println("Traversing descendent to mark as valid:"+i.get());
-					//Integer desci = i.get();
+					//Long desci = i.get();
 					IMessage descm = bundles.get(i.get());
 					if (descm != null) {
 						// TODO: Cache the spliced predecessor hashes from this node as being valid?
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Appends a batch of events to a tree, for TreeBase.appendAll().
+ * 
+ * The aggregates of the leaves are computed first, then those of the interior
+ * nodes frozen by the batch, one layer at a time, so no path is walked per
+ * event. The nodes are then written in the order append() would write them.
+ * 
+ * Given a pool, the new leaves are first split into aligned power-of-two
+ * blocks, each of which is a complete subtree that can be aggregated without
+ * looking at anything else. Large blocks are aggregated on the pool, split in
+ * halves until they are 2^TASK_SHIFT leaves. The few nodes above the blocks are
+ * then computed as without a pool.
+ */
+final class BatchAppender<A, V> {
+	/** Log2 of the number of leaves aggregated by one task. */
+	private static final int TASK_SHIFT = 10;
+
+	private final TreeBase<A, V> tree;
+	private final List<? extends V> vals;
+	private final long first;
+	private final long last;
+	/**
+	 * Aggregates of the nodes frozen by the batch, by layer. Node k of a layer
+	 * is at offset k - (first >>> layer).
+	 */
+	private final Object[][] layers;
+
+	BatchAppender(TreeBase<A, V> tree, List<? extends V> vals) {
+		this.tree = tree;
+		this.vals = vals;
+		this.first = tree.time + 1;
+		this.last = tree.time + vals.size();
+		ArrayList<Object[]> out = new ArrayList<Object[]>();
+		for (int layer = 0;; layer++) {
+			long lo = first >>> layer;
+			long hi = ((last + 1) >>> layer) - 1; // Last node frozen by the batch.
+			if (hi < lo)
+				break;
+			out.add(new Object[(int) (hi - lo + 1)]);
+		}
+		this.layers = out.toArray(new Object[out.size()][]);
+	}
+
+	/** Aggregate the batch, using the pool if it is not null, and write it to the tree. */
+	void append(ForkJoinPool pool) {
+		if (pool != null)
+			aggregateBlocks(pool);
+		aggregate();
+		write();
+	}
+
+	/** Aggregate the aligned blocks of the batch that are worth a task on the pool. */
+	private void aggregateBlocks(ForkJoinPool pool) {
+		final ArrayList<SubtreeTask> tasks = new ArrayList<SubtreeTask>();
+		for (long start = first; start <= last;) {
+			int layer = Math.min(62, Long.numberOfTrailingZeros(start));
+			while (start + (1L << layer) - 1 > last)
+				layer--;
+			if (layer > TASK_SHIFT)
+				tasks.add(new SubtreeTask(layer, start >>> layer));
+			start += 1L << layer;
+		}
+		if (tasks.isEmpty())
+			return;
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+	}
+
+	/** Aggregates the complete subtree at node k of a layer. */
+	private final class SubtreeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int layer;
+		private final long k;
+
+		SubtreeTask(int layer, long k) {
+			this.layer = layer;
+			this.k = k;
+		}
+
+		@Override
+		protected void compute() {
+			AggregationInterface<A, V> aggobj = tree.aggobj.clone();
+			if (layer <= TASK_SHIFT) {
+				subtree(aggobj, layer, k);
+				return;
+			}
+			invokeAll(new SubtreeTask(layer - 1, 2 * k), new SubtreeTask(layer - 1, 2 * k + 1));
+			setAggAt(layer, k, aggobj.aggChildren(aggAt(layer - 1, 2 * k), aggAt(layer - 1, 2 * k + 1)));
+		}
+	}
+
+	/** Aggregate the complete subtree at node k of a layer. */
+	private A subtree(AggregationInterface<A, V> aggobj, int layer, long k) {
+		A agg;
+		if (layer == 0)
+			agg = aggobj.aggVal(vals.get((int) (k - first)));
+		else
+			agg = aggobj.aggChildren(subtree(aggobj, layer - 1, 2 * k), subtree(aggobj, layer - 1, 2 * k + 1));
+		setAggAt(layer, k, agg);
+		return agg;
+	}
+
+	/** Aggregate the nodes frozen by the batch that are not aggregated yet, bottom up. */
+	private void aggregate() {
+		AggregationInterface<A, V> aggobj = tree.aggobj;
+		Object[] leaves = layers[0];
+		for (int j = 0; j < leaves.length; j++)
+			if (leaves[j] == null)
+				leaves[j] = aggobj.aggVal(vals.get(j));
+		for (int layer = 1; layer < layers.length; layer++) {
+			long lo = first >>> layer;
+			long belowlo = first >>> (layer - 1);
+			for (long k = lo; k < lo + layers[layer].length; k++) {
+				if (aggAt(layer, k) != null)
+					continue;
+				// Only the first node may have a left child frozen before the batch.
+				A left = 2 * k >= belowlo ? aggAt(layer - 1, 2 * k)
+						: tree.datastore.getAggAt(NodeCursor.pack(layer - 1, (2 * k) << (layer - 1)));
+				setAggAt(layer, k, aggobj.aggChildren(left, aggAt(layer - 1, 2 * k + 1)));
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private A aggAt(int layer, long k) {
+		return (A) layers[layer][(int) (k - (first >>> layer))];
+	}
+
+	private void setAggAt(int layer, long k, A agg) {
+		layers[layer][(int) (k - (first >>> layer))] = agg;
+	}
+
+	/** Write the batch to the store, leaf by leaf, and make it the tree's new version. */
+	private void write() {
+		HistoryDataStoreInterface<A, V> datastore = tree.datastore;
+		writeLeaves(datastore, first, vals, layers);
+
+		// Make the path to the last leaf valid, as append() would have.
+		if (tree.time < 0)
+			tree.root = datastore.makeRoot(0);
+		tree.time = last;
+		tree.reparent(last);
+		tree.forceLeaf(last);
+	}
+
+	/**
+	 * Write the leaves from first on to the store in the order append() would
+	 * write them: each leaf, then the nodes that froze with it, bottom up.
+	 * Node k of a layer is taken from layers[layer][k - (first >>> layer)], and
+	 * nodes above the last layer are left to the caller. Shared with
+	 * BulkLoader.
+	 */
+	@SuppressWarnings("unchecked")
+	static <A, V> void writeLeaves(HistoryDataStoreInterface<A, V> datastore, long first, List<? extends V> vals,
+			Object[][] layers) {
+		for (int j = 0; j < vals.size(); j++) {
+			long leaf = first + j;
+			datastore.updateTime(leaf);
+			NodeCursor<A, V> cursor = new NodeCursor<A, V>(datastore, 0, leaf);
+			cursor.setVal(vals.get(j));
+			cursor.markValid();
+			cursor.setAgg((A) layers[0][j]);
+			// The nodes that froze with this leaf, bottom up.
+			for (int layer = 1; layer < layers.length && ((leaf + 1) & ((1L << layer) - 1)) == 0; layer++) {
+				long k = ((leaf + 1) >>> layer) - 1;
+				long node = NodeCursor.pack(layer, k << layer);
+				datastore.markValidAt(node);
+				datastore.setAggAt(node, (A) layers[layer][(int) (k - (first >>> layer))]);
+			}
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Builds a history tree from a stream of events, for HistoryTree.bulkLoad().
+ * 
+ * Events are read in chunks of 2^chunkShift leaves. The leaves of a chunk are
+ * hashed in parallel, then each layer of the chunk's subtree is computed in
+ * parallel from the layer below it. The chunk is then written to the store in
+ * one sequential pass by BatchAppender.writeLeaves(), in the order append()
+ * would have frozen its nodes, so stores laid out by post-order index are
+ * written front to back. Nodes above the chunks are built from a stack of the
+ * roots of the complete subtrees so far, the same way a binary counter
+ * carries.
+ * 
+ * Unlike append(), nothing is read back from the store and no path from the
+ * root is walked per event. The resulting tree is identical.
+ */
+public final class BulkLoader<A, V> {
+	/** Default log2 of the number of events in a chunk. */
+	public static final int DEFAULT_CHUNK_SHIFT = 16;
+	/** Number of nodes aggregated by one task. */
+	private static final int TASK_SIZE = 1 << 10;
+
+	private final HistoryTree<A, V> tree;
+	private final HistoryDataStoreInterface<A, V> datastore;
+	private final ExecutorService executor;
+	private final int chunkShift;
+	/** Aggregates of the complete subtrees that are not yet children of a frozen node, oldest first. */
+	private final ArrayList<A> peaks = new ArrayList<A>();
+	/** Layer of each of the peaks, strictly decreasing. */
+	private final ArrayList<Integer> peaklayers = new ArrayList<Integer>();
+
+	BulkLoader(HistoryTree<A, V> tree, ExecutorService executor, int chunkShift) {
+		if (chunkShift < 0 || chunkShift > 24)
+			throw new IllegalArgumentException("Chunk shift must be in [0,24]");
+		this.tree = tree;
+		this.datastore = tree.datastore;
+		this.executor = executor;
+		this.chunkShift = chunkShift;
+	}
+
+	/** Append every event in values to the empty tree. */
+	void load(Iterator<? extends V> values) {
+		int chunksize = 1 << chunkShift;
+		ArrayList<V> chunk = new ArrayList<V>(chunksize);
+		long first = 0;
+		while (values.hasNext()) {
+			chunk.clear();
+			while (chunk.size() < chunksize && values.hasNext())
+				chunk.add(values.next());
+			loadChunk(first, chunk);
+			first += chunk.size();
+		}
+		finish(first - 1);
+	}
+
+	/** Build and write the nodes of the chunk of events starting at leaf first. */
+	@SuppressWarnings("unchecked")
+	private void loadChunk(final long first, final List<V> vals) {
+		final int n = vals.size();
+		// The complete subtrees of the chunk, by layer.
+		final ArrayList<Object[]> layers = new ArrayList<Object[]>();
+		final Object[] leaves = new Object[n];
+		parallel(n, (aggobj, i) -> leaves[i] = aggobj.aggVal(vals.get(i)));
+		layers.add(leaves);
+		for (int layer = 1; (n >> layer) > 0; layer++) {
+			final Object[] below = layers.get(layer - 1);
+			final Object[] above = new Object[n >> layer];
+			parallel(above.length, (aggobj, i) -> above[i] = aggobj.aggChildren((A) below[2 * i], (A) below[2 * i + 1]));
+			layers.add(above);
+		}
+
+		// Chunks are aligned, so node i of a layer of the chunk is node
+		// (first >>> layer) + i of the tree, as writeLeaves() expects.
+		BatchAppender.writeLeaves(datastore, first, vals, layers.toArray(new Object[layers.size()][]));
+
+		if (n == 1 << chunkShift) {
+			A agg = (A) layers.get(chunkShift)[0];
+			int layer = chunkShift;
+			long last = first + n - 1;
+			// Carry into the subtrees before this chunk, freezing their parents.
+			while (!peaks.isEmpty() && peaklayers.get(peaklayers.size() - 1) == layer) {
+				A left = peaks.remove(peaks.size() - 1);
+				peaklayers.remove(peaklayers.size() - 1);
+				agg = tree.aggobj.aggChildren(left, agg);
+				layer++;
+				put(layer, last + 1 - (1L << layer), agg);
+			}
+			peaks.add(agg);
+			peaklayers.add(layer);
+		}
+	}
+
+	private void put(int layer, long index, A agg) {
+		NodeCursor<A, V> cursor = new NodeCursor<A, V>(datastore, layer, index);
+		cursor.markValid();
+		cursor.setAgg(agg);
+	}
+
+	/** Make the tree the version with the given last leaf, with the path to that leaf valid, as after append(). */
+	private void finish(long time) {
+		if (time < 0)
+			return;
+		tree.time = time;
+		if (time == 0) {
+			tree.root = datastore.makeRoot(0);
+			return;
+		}
+		tree.root = datastore.makeRoot(TreeBase.log2(time)).markValid();
+		tree.forceLeaf(time);
+	}
+
+	/** Work done on one node by a task. */
+	private interface NodeTask<A, V> {
+		void run(AggregationInterface<A, V> aggobj, int i);
+	}
+
+	/** Run task on [0,n) split across the executor, each part with its own aggregation object. */
+	private void parallel(int n, final NodeTask<A, V> task) {
+		if (n <= TASK_SIZE) {
+			for (int i = 0; i < n; i++)
+				task.run(tree.aggobj, i);
+			return;
+		}
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int start = 0; start < n; start += TASK_SIZE) {
+			final int from = start, to = Math.min(n, start + TASK_SIZE);
+			final AggregationInterface<A, V> aggobj = tree.aggobj.clone();
+			futures.add(executor.submit(() -> {
+				for (int i = from; i < to; i++)
+					task.run(aggobj, i);
+			}));
+		}
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new Error("Interrupted while bulk loading", e);
+		} catch (ExecutionException e) {
+			throw new Error("Unable to aggregate events", e.getCause());
+		}
+	}
+
+	/**
+	 * Read a file of values, each a 4 byte big endian length followed by that
+	 * many bytes, as written by DataOutputStream.writeInt() and write(). The
+	 * file is read sequentially as the iterator advances, and closed at its end.
+	 */
+	public static Iterator<byte[]> readValues(File file) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		return new Iterator<byte[]>() {
+			private byte[] next = read();
+
+			private byte[] read() {
+				try {
+					int len;
+					try {
+						len = in.readInt();
+					} catch (EOFException e) {
+						in.close();
+						return null;
+					}
+					byte[] out = new byte[len];
+					in.readFully(out);
+					return out;
+				} catch (IOException e) {
+					throw new Error("Unable to read value file", e);
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public byte[] next() {
+				if (next == null)
+					throw new NoSuchElementException();
+				byte[] out = next;
+				next = read();
+				return out;
+			}
+		};
+	}
+}
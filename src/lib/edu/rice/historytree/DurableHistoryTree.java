@@ -0,0 +1,407 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+
+package edu.rice.historytree;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import edu.rice.historytree.generated.Serialization;
+
+/**
+ * A history tree whose events are kept in a write-ahead log, so that it can
+ * be rebuilt after a restart.
+ * 
+ * Events are appended as usual. commit() then writes all events appended
+ * since the previous commit, along with the resulting root aggregate, as one
+ * checksummed record and forces it to disk. One fsync thus covers a whole
+ * batch. Events that have not been committed are lost in a crash, so commit()
+ * must be called before anything depending on them (eg, a signature over the
+ * root) leaves the process.
+ * 
+ * After retain(), compact() replaces the log with a single checkpoint of
+ * what the tree still holds, so the log and the time to recover from it stay
+ * in proportion to the retained tree. Each record can carry an annotation of
+ * the caller's own (eg, which recipients a batch went to), handed back in
+ * order by recover().
+ * 
+ * recover() replays the log into a fresh data store, checking the root
+ * recorded with each batch, and drops any torn record at the end of the log.
+ * Batches are replayed together through appendAll(), so recovery hashes the
+ * log at the speed of a bulk load rather than a path per event.
+ * 
+ * Log format: a header of (MAGIC, FORMAT_VERSION, treeid, aggregator name),
+ * followed by records of (count, count*(length,value), length, root, length,
+ * annotation, crc32). A checkpoint is the first record, with a count of
+ * CHECKPOINT and (length, serialized pruned tree) in place of the values. A
+ * zero length annotation is no annotation.
+ */
+public class DurableHistoryTree<A, V> extends HistoryTree<A, V> implements Closeable {
+	static final int MAGIC = 0x48544c47; // "HTLG"
+	static final int FORMAT_VERSION = 1;
+	/** Count of a checkpoint record. */
+	static final int CHECKPOINT = -1;
+	/** Upper bound on lengths in a record, used to detect garbage at the end of the log. */
+	private static final int MAX_LENGTH = 1 << 30;
+	/** Number of logged events replayed with each appendAll(). */
+	private static final int REPLAY_CHUNK = 1 << 16;
+
+	/** The log file. */
+	private final File logfile;
+	/** The log. */
+	private FileChannel channel;
+	/** Identifier of this tree, kept in the log header. */
+	private final long treeid;
+	/** Events appended since the last commit. */
+	private final ArrayList<V> pending;
+
+	private DurableHistoryTree(AggregationInterface<A, V> aggobj,
+			HistoryDataStoreInterface<A, V> datastore, File logfile, FileChannel channel, long treeid) {
+		super(aggobj, datastore);
+		this.logfile = logfile;
+		this.channel = channel;
+		this.treeid = treeid;
+		this.pending = new ArrayList<V>();
+	}
+
+	/** Make a new, empty, durable history tree, replacing any log already at logfile. */
+	public static <A, V> DurableHistoryTree<A, V> create(File logfile, long treeid,
+			AggregationInterface<A, V> aggobj, HistoryDataStoreInterface<A, V> datastore)
+			throws IOException {
+		FileChannel channel = FileChannel.open(logfile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		writeFully(channel, header(treeid, aggobj));
+		channel.force(true);
+		return new DurableHistoryTree<A, V>(aggobj, datastore, logfile, channel, treeid);
+	}
+
+	private static byte[] header(long treeid, AggregationInterface<?, ?> aggobj) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeLong(treeid);
+		out.writeUTF(aggobj.getName());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/** Rebuild a durable history tree from its log, into an empty data store. */
+	public static <A, V> DurableHistoryTree<A, V> recover(File logfile,
+			AggregationInterface<A, V> aggobj, HistoryDataStoreInterface<A, V> datastore)
+			throws IOException {
+		return recover(logfile, aggobj, datastore, null, null);
+	}
+
+	/**
+	 * Rebuild a durable history tree from its log, into an empty data store.
+	 * The data store must allow any node to be valid (eg, ArrayStore or
+	 * ConcurrentStore) if the log starts with a checkpoint.
+	 * 
+	 * @param annotations
+	 *            If not null, given the annotation of each record, in order.
+	 * @param pool
+	 *            If not null, logged batches are aggregated in parallel on it.
+	 * @throws IOException
+	 *             if the log cannot be read, was written with a different
+	 *             aggregator, or replaying it does not reproduce a recorded root.
+	 */
+	public static <A, V> DurableHistoryTree<A, V> recover(File logfile,
+			AggregationInterface<A, V> aggobj, HistoryDataStoreInterface<A, V> datastore,
+			Consumer<byte[]> annotations, ForkJoinPool pool) throws IOException {
+		FileChannel channel = FileChannel.open(logfile.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		CRC32 crc = new CRC32();
+		DataInputStream in = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(Channels.newInputStream(channel)), crc));
+		DurableHistoryTree<A, V> tree;
+		long goodlength;
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+				throw new IOException("Not a history tree log: " + logfile);
+			long treeid = in.readLong();
+			String aggname = in.readUTF();
+			if (!aggname.equals(aggobj.getName()))
+				throw new IOException(String.format("Log %s uses aggregator %s, not %s",
+						logfile, aggname, aggobj.getName()));
+			tree = new DurableHistoryTree<A, V>(aggobj, datastore, logfile, channel, treeid);
+			goodlength = 4 + 4 + 8 + 2 + aggname.getBytes("UTF-8").length;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		try {
+			DurableHistoryTree<A, V>.Replay replay = tree.new Replay(pool);
+			while (true) {
+				long length = replay.record(in, crc, annotations);
+				if (length < 0)
+					break;
+				goodlength += length;
+			}
+			replay.flush();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		// Drop any torn record left by a crash, and continue after the last good one.
+		channel.truncate(goodlength);
+		channel.position(goodlength);
+		return tree;
+	}
+
+	/** Logged batches read but not yet appended, with the version and root each one ended at. */
+	private final class Replay {
+		private final ForkJoinPool pool;
+		private final ArrayList<V> vals = new ArrayList<V>();
+		private final ArrayList<Long> ends = new ArrayList<Long>();
+		private final ArrayList<ByteString> roots = new ArrayList<ByteString>();
+
+		Replay(ForkJoinPool pool) {
+			this.pool = pool;
+		}
+
+		/**
+		 * Read one record and queue its events, or restore the tree from it if
+		 * it is a checkpoint.
+		 * 
+		 * @return The length of the record, or -1 if the log ends with no complete record here.
+		 */
+		long record(DataInputStream in, CRC32 crc, Consumer<byte[]> annotations)
+				throws IOException {
+			ArrayList<byte[]> items = new ArrayList<byte[]>();
+			byte[] root, annotation;
+			int count;
+			long length = 0;
+			crc.reset();
+			try {
+				count = in.readInt();
+				if (count < CHECKPOINT || count > MAX_LENGTH)
+					return -1;
+				length += 4;
+				for (int i = 0; i < Math.max(count, 1); i++) {
+					byte[] item = readBytes(in);
+					if (item == null)
+						return -1;
+					items.add(item);
+					length += 4 + item.length;
+				}
+				root = readBytes(in);
+				if (root == null)
+					return -1;
+				length += 4 + root.length;
+				annotation = readBytes(in);
+				if (annotation == null)
+					return -1;
+				length += 4 + annotation.length;
+				long expected = crc.getValue();
+				if (in.readLong() != expected)
+					return -1;
+				length += 8;
+			} catch (EOFException e) {
+				return -1;
+			}
+			if (count == CHECKPOINT) {
+				if (time >= 0 || !vals.isEmpty())
+					throw new IOException("Checkpoint after the start of the log");
+				restore(items.get(0));
+				if (!aggobj.serializeAgg(agg()).equals(ByteString.copyFrom(root)))
+					throw new IOException(String.format("Checkpoint root at version %d does not match the log", time));
+			} else {
+				for (int i = 0; i < count; i++)
+					vals.add(aggobj.parseVal(ByteString.copyFrom(items.get(i))));
+				ends.add(time + vals.size());
+				roots.add(ByteString.copyFrom(root));
+				if (vals.size() >= REPLAY_CHUNK)
+					flush();
+			}
+			if (annotations != null && annotation.length > 0)
+				annotations.accept(annotation);
+			return length;
+		}
+
+		/** Append the queued events and check the root at the end of each batch. */
+		void flush() throws IOException {
+			if (vals.isEmpty())
+				return;
+			DurableHistoryTree.super.appendAll(vals, pool);
+			for (int i = 0; i < ends.size(); i++)
+				if (!aggobj.serializeAgg(aggV(ends.get(i))).equals(roots.get(i)))
+					throw new IOException(String.format("Replayed root at version %d does not match the log", ends.get(i)));
+			vals.clear();
+			ends.clear();
+			roots.clear();
+		}
+	}
+
+	/** Restore the tree from a checkpoint. */
+	private void restore(byte[] checkpoint) throws IOException {
+		try {
+			parseTree(Serialization.PrunedTree.parseFrom(checkpoint));
+		} catch (InvalidProtocolBufferException e) {
+			throw new IOException("Unreadable checkpoint in " + logfile, e);
+		}
+		// A parsed root is not marked valid, but appends need it to be.
+		if (root != null)
+			root = root.markValid();
+	}
+
+	/** Read a length prefixed byte string, or return null if the length is implausible. */
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if (len < 0 || len > MAX_LENGTH)
+			return null;
+		byte[] out = new byte[len];
+		in.readFully(out);
+		return out;
+	}
+
+	private static void writeFully(FileChannel channel, byte[] data) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while (buf.hasRemaining())
+			channel.write(buf);
+	}
+
+	/** The identifier given to this tree when it was created. */
+	public long getTreeId() {
+		return treeid;
+	}
+
+	/** Add an event to the tree. It is not durable until the next commit(). */
+	@Override
+	public void append(V val) {
+		super.append(val);
+		pending.add(val);
+	}
+
+	/** Add a batch of events to the tree. They are not durable until the next commit(). */
+	@Override
+	public void appendAll(List<? extends V> vals, ForkJoinPool pool) {
+		super.appendAll(vals, pool);
+		pending.addAll(vals);
+	}
+
+	/** Bulk loaded events would bypass the log; append and commit them instead. */
+	@Override
+	public void bulkLoad(Iterator<? extends V> values, ExecutorService executor, int chunkShift) {
+		throw new UnsupportedOperationException("Cannot bulk load a durable history tree");
+	}
+
+	/** Log every event appended since the last commit, along with the current root, and force it to disk. */
+	public void commit() throws IOException {
+		commit(null);
+	}
+
+	/**
+	 * @param annotation
+	 *            If not null or empty, logged with the events and handed back
+	 *            by recover().
+	 */
+	public void commit(byte[] annotation) throws IOException {
+		if (pending.isEmpty())
+			return;
+		ArrayList<byte[]> items = new ArrayList<byte[]>(pending.size());
+		for (V val : pending)
+			items.add(aggobj.serializeVal(val).toByteArray());
+		writeFully(channel, record(pending.size(), items, annotation));
+		channel.force(false);
+		pending.clear();
+	}
+
+	/**
+	 * Replace the log with a checkpoint of what the tree holds now, and the
+	 * annotation, eg, after retain(). Events appended since the last commit
+	 * are in the checkpoint, so they are committed too. The new log is written
+	 * beside the old one and renamed over it, so a crash leaves one or the
+	 * other.
+	 */
+	public void compact(byte[] annotation) throws IOException {
+		File tmp = new File(logfile.getPath() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			writeFully(out, header(treeid, aggobj));
+			if (time >= 0) {
+				ArrayList<byte[]> items = new ArrayList<byte[]>(1);
+				items.add(serializeTree());
+				writeFully(out, record(CHECKPOINT, items, annotation));
+			}
+			out.force(true);
+		}
+		Files.move(tmp.toPath(), logfile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		channel.close();
+		channel = FileChannel.open(logfile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		pending.clear();
+	}
+
+	/** Frame a record of the given items, the current root and the annotation, with its crc32. */
+	private byte[] record(int count, List<byte[]> items, byte[] annotation) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(count);
+		for (byte[] item : items) {
+			out.writeInt(item.length);
+			out.write(item);
+		}
+		byte[] root = aggobj.serializeAgg(agg()).toByteArray();
+		out.writeInt(root.length);
+		out.write(root);
+		if (annotation == null)
+			annotation = new byte[0];
+		out.writeInt(annotation.length);
+		out.write(annotation);
+		out.flush();
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeLong(crc.getValue());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/** Close the log. Events appended since the last commit() are not logged. */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
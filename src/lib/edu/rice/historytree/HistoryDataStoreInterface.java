@@ -30,5 +30,16 @@ public interface HistoryDataStoreInterface<A,V> extends
 	    NodeCursor<A,V> makeRoot(int layer); // Make a root at the given layer
 
 	/** Indicate to the data store what the current tree version is, used for designing the depth of the tree */
-	    void updateTime(int time);
+	    void updateTime(long time);
+
+	/**
+	 * Can this store hold a Merkle tree? Freezing a Merkle tree marks nodes
+	 * to the right of the last leaf valid and sets them to emptyAgg(), which
+	 * stores that only keep nodes up to the current time, or that only keep
+	 * aggregates of one fixed width, cannot hold. Stores that wrap another
+	 * store forward this to it.
+	 */
+	default boolean supportsMerkleTree() {
+		return true;
+	}
 }
@@ -20,10 +20,17 @@
 package edu.rice.historytree;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import edu.rice.historytree.generated.Serialization;
+import edu.rice.historytree.storage.SnapshotStore;
 
 
 /** Top level class for implementing a history tree. 
@@ -41,6 +48,30 @@ public class HistoryTree<A,V> extends TreeBase<A,V> {
 		boolean valid(A other);
 	}
 	
+	/**
+	 * The root aggregate of the tree as of one version. Immutable, so that
+	 * views read from other threads see either all of it or none of it.
+	 */
+	private static final class RootAgg<A> {
+		final long version;
+		final A agg;
+
+		RootAgg(long version, A agg) {
+			this.version = version;
+			this.agg = agg;
+		}
+	}
+
+	/**
+	 * The root aggregate of the latest version that asked for it. The root
+	 * of a version never changes, so once computed, agg() is a field read
+	 * until the next append.
+	 */
+	private RootAgg<A> rootagg;
+
+	/** Roots of past versions, if they are being recorded. Shared with views. */
+	RootIndex<A> rootindex;
+
 	/** Make an empty merkle tree with a given aggobj and datastore.  */
 	public HistoryTree(AggregationInterface<A,V> aggobj,
 	    		   HistoryDataStoreInterface<A,V> datastore) {
@@ -52,33 +83,105 @@ public class HistoryTree<A,V> extends TreeBase<A,V> {
     }
 
 	/** Get the aggregate at a particular historical version number */
-    public A aggV(int version) {
+    public A aggV(long version) {
     	assert (version <= time);
-    	NodeCursor<A,V>  child, leaf, node;
+    	RootAgg<A> cached = rootagg;
+    	if (cached != null && cached.version == version)
+    		return cached.agg;
+    	if (rootindex != null) {
+    		A recorded = rootindex.get(version);
+    		if (recorded != null)
+    			return recorded;
+    	}
+    	A agg = computeAggV(version);
+    	// Only the current version is kept; it is the one asked for again and again.
+    	if (version == time)
+    		rootagg = new RootAgg<A>(version, agg);
+    	return agg;
+    }
+
+    /**
+     * Record the root of the tree in index from now on, so that aggV() of
+     * those versions does not have to hash up the tree. Versions before
+     * this call are not recorded, apart from the current one. Pass null to
+     * stop recording.
+     */
+    public void setRootIndex(RootIndex<A> index) {
+    	rootindex = index;
+    	if (index != null && time >= 0)
+    		index.record(time, agg());
+    }
+
+    public RootIndex<A> getRootIndex() {
+    	return rootindex;
+    }
+
+    @Override
+    public void append(V val) {
+    	super.append(val);
+    	if (rootindex != null && rootindex.everyVersion())
+    		rootindex.record(time, agg());
+    }
 
-    	child = leaf = this.leaf(version);
-    	node = leaf.getParent(root);
-    	A agg = leaf.getAgg();
-		//System.out.println("leaf"+node);
+    @Override
+    public void appendAll(List<? extends V> vals, ForkJoinPool pool) {
+    	long first = time + 1;
+    	super.appendAll(vals, pool);
+    	recordRoots(first);
+    }
+
+    /** Record the roots of the versions from first on, after a batch ending at the current version. */
+    private void recordRoots(long first) {
+    	if (rootindex == null || time < first)
+    		return;
+    	if (rootindex.everyVersion())
+    		for (long v = first; v < time; v++)
+    			rootindex.record(v, computeAggV(v));
+    	rootindex.record(time, agg());
+    }
+
+    /**
+     * Nodes added to a pruned tree may change what its root can be computed
+     * as, so forget it. retain() forgets it too, as the root is then computed
+     * from a different store.
+     */
+    @Override
+    public void parseTree(Serialization.PrunedTree in) {
+    	rootagg = null;
+    	super.parseTree(in);
+    }
 
-    	while (node!=null && version >= (1<<node.layer()-1)) {
-    		//System.out.println("aggv"+node);
-    		NodeCursor<A,V>  left = node.left();
-    		if (child.equals(left))
+    /** @see #parseTree(Serialization.PrunedTree) */
+    @Override
+    public void copyV(TreeBase<A,V> orig, long leafnum, boolean copyValueFlag) throws ProofError {
+    	rootagg = null;
+    	super.copyV(orig, leafnum, copyValueFlag);
+    }
+
+    /** Hash up the path from a leaf, using the frozen subtrees to its left. */
+    private A computeAggV(long version) {
+    	long child = leafAt(version);
+    	A agg = datastore.getAggAt(child);
+
+    	while (NodeCursor.layerOf(child) < root.layer()) {
+    		long node = NodeCursor.parentOf(child);
+    		if (version < (1L << (NodeCursor.layerOf(node) - 1)))
+    			break;
+    		long left = NodeCursor.leftOf(node);
+    		if (child == left)
     			agg = aggobj.aggChildren(agg,null);
     		else {
-    			A leftagg = left.getAgg();
+    			A leftagg = datastore.getAggAt(left);
     			assert leftagg != null;
     			agg = aggobj.aggChildren(leftagg,agg);
     		}
     		child = node;
-    		node = node.getParent(root);
     	}
     	return agg;
     }
 	
     @Override
-	public A getAggAtVersion(NodeCursor<A,V> node, int version){
+	public A getAggAtVersion(NodeCursor<A,V> node, long version){
 		// can only look up aggs for past versions
 		assert (version <= time);
 		// node doesn't exist
@@ -116,26 +219,25 @@ public class HistoryTree<A,V> extends TreeBase<A,V> {
     
 	
     /**
-     * Same spec as {@link #aggV(int)}, but also returns the 
+     * Same spec as {@link #aggV(long)}, but also returns the 
      * children along with the aggregation value.
      * @param version
      * @return
      */
-    public AggWithChildren<A> aggVWithChildren(int version) {
+    public AggWithChildren<A> aggVWithChildren(long version) {
     	assert (version <= time);
-    	NodeCursor<A,V>  child, leaf, node;
     	A leftagg = this.aggobj.emptyAgg();
     	A rightagg = this.aggobj.emptyAgg();
 
-    	child = leaf = this.leaf(version);
-    	node = leaf.getParent(root);
-    	A agg = leaf.getAgg();
-		//System.out.println("leaf"+node);
-    	
-    	while (node!=null && version >= (1<<node.layer()-1)) {
-    		//System.out.println("aggv"+node);
-    		NodeCursor<A,V>  left = node.left();
-    		if (child.equals(left)) {
+    	long child = leafAt(version);
+    	A agg = datastore.getAggAt(child);
+
+    	while (NodeCursor.layerOf(child) < root.layer()) {
+    		long node = NodeCursor.parentOf(child);
+    		if (version < (1L << (NodeCursor.layerOf(node) - 1)))
+    			break;
+    		long left = NodeCursor.leftOf(node);
+    		if (child == left) {
     			// TODO: this is a hack -- need to add a copy method to the 
     			// aggregation interface spec
     			leftagg = this.aggobj.parseAgg(this.aggobj.serializeAgg(agg));
@@ -143,18 +245,186 @@ public class HistoryTree<A,V> extends TreeBase<A,V> {
     			agg = aggobj.aggChildren(agg,null);
     		}
     		else {
-    			leftagg = left.getAgg();
+    			leftagg = datastore.getAggAt(left);
     			rightagg = this.aggobj.parseAgg(this.aggobj.serializeAgg(agg));;
     			assert leftagg != null;
     			agg = aggobj.aggChildren(leftagg,agg);
     		}
     		child = node;
-    		node = node.getParent(root);
     	}
     	AggWithChildren<A> aggPlusChildren = new AggWithChildren<A>(agg, leftagg, rightagg);
     	return aggPlusChildren;
     }
     
+    /**
+     * Append every event in values to this empty tree, with the leaves and
+     * each layer above them aggregated in parallel on the executor. The tree
+     * is the same as if each event had been appended in turn, but is built in
+     * a fraction of the time. See BulkLoader.
+     */
+    public void bulkLoad(Iterator<? extends V> values, ExecutorService executor) {
+    	bulkLoad(values, executor, BulkLoader.DEFAULT_CHUNK_SHIFT);
+    }
+
+    /** @param chunkShift log2 of the number of events read and aggregated at a time. */
+    public void bulkLoad(Iterator<? extends V> values, ExecutorService executor, int chunkShift) {
+    	if (time >= 0)
+    		throw new IllegalStateException("Can only bulk load an empty tree");
+    	new BulkLoader<A,V>(this, executor, chunkShift).load(values);
+    	recordRoots(0);
+    }
+
+    /** Make a read-only view of the tree at its current version. */
+    public TreeView<A,V> view() {
+    	return new TreeView<A,V>(this);
+    }
+
+    /**
+     * Discard everything the tree no longer needs to make proofs for, to bound
+     * its memory.
+     * 
+     * Afterwards the tree only holds the leaves from horizon on, the leaves in
+     * keep (eg, splice points to each recipient's last contact) and the
+     * aggregates of the frozen subtrees needed to prove them, O(log n) more
+     * nodes. Proofs for other versions are no longer possible, nor is aggV(),
+     * unless the root index recorded that version.
+     * Appends continue as before, and the root is unchanged.
+     * 
+     * @param horizon
+     *            Oldest leaf to keep with its value. Must not be older than
+     *            the horizon of an earlier call.
+     * @param keep
+     *            Older leaves to keep, without their values.
+     * @param newdatastore
+     *            An empty store for the retained nodes; it must allow any node
+     *            to be valid (eg, HashStore or PathStore).
+     */
+    public void retain(long horizon, Iterable<Long> keep, HistoryDataStoreInterface<A,V> newdatastore) {
+    	rootagg = null;
+    	HistoryTree<A,V> out = makePruned(newdatastore);
+    	try {
+    		for (long i = Math.max(horizon, 0); i <= time; i++)
+    			out.copyV(this, i, true);
+    		for (long i : keep)
+    			if (i < horizon)
+    				out.copyV(this, i, false);
+    	} catch (ProofError e) {
+    		throw new Error("Leaf to retain was discarded earlier", e);
+    	}
+    	// The root of a complete tree is frozen, and is the left child of the
+    	// next root, but a pruned tree only holds the aggs below it.
+    	if (root.isFrozen(time))
+    		out.root.markValid().setAggForce(root.getAgg());
+    	this.datastore = out.datastore;
+    	// A pruned root is not marked valid, but appends need it to be.
+    	this.root = out.root.markValid();
+    }
+
+    //
+    //  Snapshots.
+    //
+
+    /** Number of leaves copied out of the tree each time its lock is taken while writing a snapshot. */
+    private static final int SNAPSHOT_CHUNK = 4096;
+
+    /**
+     * Write a snapshot of the tree as of the given version, which can be
+     * reopened with openSnapshot().
+     * 
+     * Frozen nodes never change, so the snapshot is taken while the tree keeps
+     * growing. The tree is only locked (by synchronizing on it) while each
+     * chunk of nodes is copied out, so concurrent appenders must also
+     * synchronize on the tree, as HistoryQueue does.
+     * 
+     * If the tree has a root index, the roots it recorded up to version are
+     * written beside the snapshot, to RootIndex.fileFor(file).
+     */
+    public void writeSnapshot(File file, long version) throws IOException {
+    	assert (version <= time);
+    	ArrayList<Long> slots = new ArrayList<Long>();
+    	ArrayList<byte[]> aggs = new ArrayList<byte[]>();
+    	ArrayList<byte[]> vals = new ArrayList<byte[]>();
+    	try (SnapshotStore.Writer out = new SnapshotStore.Writer(file, aggobj.getName(), version)) {
+    		for (long start = 0; start <= version; start += SNAPSHOT_CHUNK) {
+    			long end = Math.min(version, start + SNAPSHOT_CHUNK - 1);
+    			synchronized (this) {
+    				for (long leaf = start; leaf <= end; leaf++) {
+    					NodeCursor<A,V> cursor = new NodeCursor<A,V>(datastore, 0, leaf);
+    					vals.add(cursor.hasVal() ? aggobj.serializeVal(cursor.getVal()).toByteArray() : null);
+    					// The nodes whose last leaf this is, which froze when it was appended.
+    					for (int layer = 0; ((leaf + 1) & ((1L << layer) - 1)) == 0; layer++) {
+    						cursor = new NodeCursor<A,V>(datastore, layer, leaf + 1 - (1L << layer));
+    						A agg = cursor.getAgg();
+    						if (agg != null) {
+    							slots.add(cursor.computeIndex());
+    							aggs.add(aggobj.serializeAgg(agg).toByteArray());
+    						}
+    					}
+    				}
+    			}
+    			for (int i = 0; i < vals.size(); i++)
+    				if (vals.get(i) != null)
+    					out.putVal(start + i, vals.get(i));
+    			for (int i = 0; i < slots.size(); i++)
+    				out.putAgg(slots.get(i), aggs.get(i));
+    			slots.clear();
+    			aggs.clear();
+    			vals.clear();
+    		}
+    		out.finish();
+    	}
+    	RootIndex<A> index = rootindex;
+    	if (index != null)
+    		index.write(RootIndex.fileFor(file), version);
+    }
+
+    /** Write a snapshot of the current version of the tree on the given executor. */
+    public Future<?> writeSnapshotInBackground(final File file, ExecutorService executor) {
+    	final long version;
+    	synchronized (this) {
+    		version = time;
+    	}
+    	return executor.submit(() -> {
+    		writeSnapshot(file, version);
+    		return null;
+    	});
+    }
+
+    /**
+     * Reopen a tree from a snapshot. The snapshot is mapped, not read, so this
+     * takes the same time for any size of tree. New events may be appended.
+     * A root index written with the snapshot is loaded and kept recording.
+     */
+    public static <A,V> HistoryTree<A,V> openSnapshot(File file, AggregationInterface<A,V> aggobj)
+    		throws IOException {
+    	return openSnapshot(file, new SnapshotStore<A,V>(file, aggobj, false), aggobj);
+    }
+
+    /**
+     * Open a snapshot read-only, for serving proofs (eg, with makePruned() and
+     * copyV()) from any number of threads. Processes that open the same
+     * snapshot share its pages through the page cache, rather than each
+     * holding a copy of the tree.
+     */
+    public static <A,V> TreeView<A,V> openSnapshotView(File file, AggregationInterface<A,V> aggobj)
+    		throws IOException {
+    	return openSnapshot(file, new SnapshotStore<A,V>(file, aggobj, true), aggobj).view();
+    }
+
+    private static <A,V> HistoryTree<A,V> openSnapshot(File file, SnapshotStore<A,V> store,
+    		AggregationInterface<A,V> aggobj) throws IOException {
+    	HistoryTree<A,V> out = new HistoryTree<A,V>(aggobj, store);
+    	long version = store.snapshotVersion();
+    	if (version >= 0) {
+    		out.updateTime(version);
+    		out.root = store.makeRoot(log2(version));
+    	}
+    	File indexfile = RootIndex.fileFor(file);
+    	if (indexfile.exists())
+    		out.rootindex = RootIndex.read(indexfile, aggobj);
+    	return out;
+    }
+
     //
     //  Operations for making pruned trees.
     //
@@ -180,7 +450,7 @@ public class HistoryTree<A,V> extends TreeBase<A,V> {
      * @return
      */
     public HistoryTree<A,V> makePruned(HistoryDataStoreInterface<A,V> newdatastore,
-    		int version){
+    		long version){
     	HistoryTree<A,V> out = new HistoryTree<A,V>(this.aggobj, newdatastore);
     	// create a new history tree with the right time 
     	// and version
@@ -228,12 +498,12 @@ public class HistoryTree<A,V> extends TreeBase<A,V> {
 				checkStubsHelper(function, node.right()));
     }
     
-    public List<Integer> getValueIndicies(FilterFunction<A> function){
+    public List<Long> getValueIndicies(FilterFunction<A> function){
     	return this.getValuesHelper(function, this.root);
     }
     
-    private List<Integer> getValuesHelper(FilterFunction<A> function, NodeCursor<A,V> node){
-		List<Integer> res = new ArrayList<Integer>();
+    private List<Long> getValuesHelper(FilterFunction<A> function, NodeCursor<A,V> node){
+		List<Long> res = new ArrayList<Long>();
     	if(node == null) {
     		return res;
     	}
@@ -243,8 +513,8 @@ public class HistoryTree<A,V> extends TreeBase<A,V> {
     		}
     		return res;
     	}
-    	List<Integer> resLeft = this.getValuesHelper(function, node.left());
-    	List<Integer> resRight = this.getValuesHelper(function, node.right());
+    	List<Long> resLeft = this.getValuesHelper(function, node.left());
+    	List<Long> resRight = this.getValuesHelper(function, node.right());
     	resLeft.addAll(resRight);
     	return resLeft;
     }
@@ -19,9 +19,11 @@
 
 package edu.rice.historytree;
 
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 import edu.rice.historytree.generated.Serialization;
 import edu.rice.historytree.generated.Serialization.HistNode;
-import edu.rice.historytree.storage.AppendOnlyArrayStore;
 
 /**
  * Top level class for implementing a history tree.
@@ -42,9 +44,23 @@ public class MerkleTree<A, V> extends TreeBase<A, V> {
 			HistoryDataStoreInterface<A, V> datastore) {
 		super(aggobj, datastore);
 		// Complain if this mistake is made. 
-		if (datastore instanceof AppendOnlyArrayStore<?, ?>)
+		if (!datastore.supportsMerkleTree())
 			throw new Error(
-					"Merkle Tree incompatible with AppendOnlyArrayStore");
+					"Merkle Tree incompatible with " + datastore.getClass().getSimpleName());
+	}
+
+	/**
+	 * Build a frozen Merkle tree over a batch of events, ready for
+	 * makePruned(). The leaves and the complete subtrees over them are
+	 * aggregated in parallel on the pool (see BatchAppender); freezing then
+	 * only pads the O(log n) nodes on the path to the last leaf.
+	 */
+	public static <A, V> MerkleTree<A, V> build(AggregationInterface<A, V> aggobj,
+			HistoryDataStoreInterface<A, V> datastore, List<? extends V> vals, ForkJoinPool pool) {
+		MerkleTree<A, V> out = new MerkleTree<A, V>(aggobj, datastore);
+		out.appendAll(vals, pool);
+		out.freeze();
+		return out;
 	}
 
 	@Override
@@ -106,7 +122,7 @@ public class MerkleTree<A, V> extends TreeBase<A, V> {
 	
 
 	@Override
-	public A getAggAtVersion(NodeCursor<A,V> node, int version){
+	public A getAggAtVersion(NodeCursor<A,V> node, long version){
 		if(!isFrozen) {
 			throw new Error("Cannot compute agg from unfrozen MerkleTree");
 		}
@@ -147,6 +163,13 @@ public class MerkleTree<A, V> extends TreeBase<A, V> {
 	}
     
 
+	@Override
+	A getAggAtVersion(long node, long version) {
+		if (!isFrozen)
+			throw new Error("Cannot compute agg from unfrozen MerkleTree");
+		return super.getAggAtVersion(node, version);
+	}
+
 	@Override
 	public void parseTree(Serialization.PrunedTree in) {
 		super.parseTree(in);
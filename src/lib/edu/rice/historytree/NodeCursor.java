@@ -57,10 +57,10 @@ package edu.rice.historytree;
 public final class NodeCursor<A, V> {
 	private final HistoryDataStore<A, V> datastore;
 	private final int layer;
-	private final int index;
+	private final long index;
 
 	final public int layer() { return layer; }
-	final public int index() { return index; }
+	final public long index() { return index; }
 	/** Interfaces that a cursor requires of a data store */
 	interface HistoryDataStore<A, V> {
 		/**
@@ -100,25 +100,100 @@ public final class NodeCursor<A, V> {
 		 * aggregate.
 		 */
 		boolean hasVal(NodeCursor<A, V> node);
+
+		/*
+		 * The same operations on the node at a packed coordinate (see
+		 * pack()). The tree uses these when walking paths, so that it makes
+		 * no cursors. Stores should override them to avoid making a cursor
+		 * here.
+		 */
+
+		/** @see #markValid(NodeCursor) */
+		default void markValidAt(long coord) {
+			markValid(new NodeCursor<A, V>(this, layerOf(coord), indexOf(coord)));
+		}
+
+		/** @see #isAggValid(NodeCursor) */
+		default boolean isAggValidAt(long coord) {
+			return isAggValid(new NodeCursor<A, V>(this, layerOf(coord), indexOf(coord)));
+		}
+
+		/** @see #setAgg(NodeCursor, Object) */
+		default void setAggAt(long coord, A a) {
+			setAgg(new NodeCursor<A, V>(this, layerOf(coord), indexOf(coord)), a);
+		}
+
+		/** @see #getAgg(NodeCursor) */
+		default A getAggAt(long coord) {
+			return getAgg(new NodeCursor<A, V>(this, layerOf(coord), indexOf(coord)));
+		}
 	};
 
-	public NodeCursor(HistoryDataStore<A, V> nodefactory, int layer, int index) {
+	public NodeCursor(HistoryDataStore<A, V> nodefactory, int layer, long index) {
 		assert nodefactory != null;
 		this.datastore = nodefactory;
 		this.layer = layer;
 		this.index = index;
 	}
 
+	/*
+	 * Packed coordinates. A (layer,index) is packed into a long as
+	 * (index << 6) | layer. Layers are below 64 and indices below 2^57, so
+	 * neither overlaps the other.
+	 */
+
+	/** Indices, and so versions, must be below this bound to be packed. */
+	public static final long MAX_INDEX = 1L << 57;
+
+	/** Pack a layer and index into a coordinate. */
+	public static long pack(int layer, long index) {
+		return (index << 6) | layer;
+	}
+
+	public static int layerOf(long coord) {
+		return (int) coord & 63;
+	}
+
+	public static long indexOf(long coord) {
+		return coord >>> 6;
+	}
+
+	/** The packed coordinate of this cursor. */
+	public long coord() {
+		return pack(layer, index);
+	}
+
+	/** Coordinate of the left child, as getLeft(). */
+	static long leftOf(long coord) {
+		return coord - 1;
+	}
+
+	/** Coordinate of the right child, as getRight(). */
+	static long rightOf(long coord) {
+		return coord - 1 + ((1L << (layerOf(coord) - 1)) << 6);
+	}
+
+	/** Coordinate of the parent, as getParent() for a node that is not the root. */
+	static long parentOf(long coord) {
+		int layer = layerOf(coord);
+		return pack(layer + 1, indexOf(coord) & ~((2L << layer) - 1));
+	}
+
+	/** As isFrozen(). */
+	static boolean isFrozen(long coord, long time) {
+		return time >= indexOf(coord) + (1L << layerOf(coord)) - 1;
+	}
+
 	/*
 	 * Helper functions
 	 */
 
-	boolean isFrozen(int time) {
+	boolean isFrozen(long time) {
 		return time >= index + getStep() - 1;
 	}
 
-	int getStep() {
-		return 1 << layer;
+	long getStep() {
+		return 1L << layer;
 	}
 
 	boolean isLeaf() {
@@ -126,11 +201,20 @@ public final class NodeCursor<A, V> {
 	}
 
 	/** Compute index in a total order */
-	public int computeIndex() {
+	public long computeIndex() {
+		return computeIndex(layer, index);
+	}
+
+	/** Compute index in a total order of the node at a packed coordinate. */
+	public static long computeIndex(long coord) {
+		return computeIndex(layerOf(coord), indexOf(coord));
+	}
+
+	private static long computeIndex(int layer, long index) {
 		assert index >= 0;
 		assert layer >= 0;
-		int s = 0;
-		int j = index + (1 << layer) - 1;
+		long s = 0;
+		long j = index + (1L << layer) - 1;
 		while (j > 0) {
 			s = s + j;
 			j = j / 2;
@@ -145,7 +229,7 @@ public final class NodeCursor<A, V> {
 	 */
 	NodeCursor<A, V> getLeft() {
 		assert layer > 0;
-		int newindex = index;
+		long newindex = index;
 		return new NodeCursor<A, V>(datastore, layer - 1, newindex);
 	}
 
@@ -155,7 +239,7 @@ public final class NodeCursor<A, V> {
 	 */
 	NodeCursor<A, V> getRight() {
 		assert layer > 0;
-		int newindex = index + getStep() / 2;
+		long newindex = index + getStep() / 2;
 		return new NodeCursor<A, V>(datastore, layer - 1, newindex);
 	}
 
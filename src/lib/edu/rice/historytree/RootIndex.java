@@ -0,0 +1,198 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+
+package edu.rice.historytree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * The root aggregate of a history tree at some of its versions, so that
+ * aggV() of a recorded version is a lookup rather than a hash up the tree.
+ * 
+ * Roots are recorded either at every version, or only at the end of each
+ * appendAll() and bulkLoad() (the versions a HistoryQueue commits to). They
+ * are kept serialized in 1MB chunks of bytes, with the versions, offsets and
+ * lengths in primitive arrays beside them, so the index costs about 20 bytes
+ * more than each root. Those arrays are int-indexed, so an index holds at
+ * most about 2^31 roots; record() refuses any more. writeSnapshot() saves
+ * the index beside the snapshot and openSnapshot() loads it again.
+ * 
+ * File format: (MAGIC, FORMAT_VERSION, everyVersion, count), followed by
+ * count*(version, length, root).
+ */
+public final class RootIndex<A> {
+	static final int MAGIC = 0x48545249; // "HTRI"
+	static final int FORMAT_VERSION = 1;
+
+	/** log2 of the size of a chunk of serialized roots. */
+	private static final int CHUNK_SHIFT = 20;
+	private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+	/** Most roots an index can hold. */
+	static final int MAX_COUNT = Integer.MAX_VALUE - 8;
+
+	private final AggregationInterface<A, ?> aggobj;
+	private final boolean everyVersion;
+	/** Recorded versions, increasing. */
+	private long[] versions = new long[16];
+	/** Offset of the serialized root of each version in the chunks. A root never spans two chunks. */
+	private long[] starts = new long[16];
+	/** Length of the serialized root of each version. */
+	private int[] lengths = new int[16];
+	/** Serialized roots. Only the last chunk may be shorter than 1MB. */
+	private byte[][] chunks = { new byte[256] };
+	/** Bytes of the chunks in use, including any left over at the end of a chunk. */
+	private long used;
+	private int count;
+
+	/**
+	 * @param everyVersion
+	 *            Record the root after every append, rather than only at the
+	 *            end of each batch.
+	 */
+	public RootIndex(AggregationInterface<A, ?> aggobj, boolean everyVersion) {
+		this.aggobj = aggobj;
+		this.everyVersion = everyVersion;
+	}
+
+	/** The file that writeSnapshot() puts the index of a snapshot in. */
+	public static File fileFor(File snapshot) {
+		return new File(snapshot.getPath() + ".roots");
+	}
+
+	public boolean everyVersion() {
+		return everyVersion;
+	}
+
+	/** Number of versions recorded. */
+	public synchronized int size() {
+		return count;
+	}
+
+	/** Record the root of a version. Versions no newer than the last one recorded are ignored. */
+	public synchronized void record(long version, A agg) {
+		if (count > 0 && version <= versions[count - 1])
+			return;
+		add(version, aggobj.serializeAgg(agg).toByteArray());
+	}
+
+	private void add(long version, byte[] bytes) {
+		if (count == MAX_COUNT)
+			throw new IllegalStateException(String.format(
+					"Root index is full; cannot record version %d", version));
+		if (bytes.length > CHUNK_MASK + 1)
+			throw new IllegalArgumentException(String.format(
+					"Root of %d bytes is too large for the index", bytes.length));
+		if (count == versions.length) {
+			int size = (int) Math.min(MAX_COUNT, 2L * count);
+			versions = Arrays.copyOf(versions, size);
+			starts = Arrays.copyOf(starts, size);
+			lengths = Arrays.copyOf(lengths, size);
+		}
+		// Start a new chunk rather than split a root across two.
+		if ((used & CHUNK_MASK) + bytes.length > CHUNK_MASK + 1)
+			used = ((used >>> CHUNK_SHIFT) + 1) << CHUNK_SHIFT;
+		int c = (int) (used >>> CHUNK_SHIFT), offset = (int) (used & CHUNK_MASK);
+		if (c == chunks.length)
+			chunks = Arrays.copyOf(chunks, 2 * c);
+		if (chunks[c] == null)
+			chunks[c] = new byte[256];
+		if (offset + bytes.length > chunks[c].length)
+			chunks[c] = Arrays.copyOf(chunks[c], Math.min(CHUNK_MASK + 1, Math.max(2 * chunks[c].length, offset + bytes.length)));
+		System.arraycopy(bytes, 0, chunks[c], offset, bytes.length);
+		versions[count] = version;
+		starts[count] = used;
+		lengths[count] = bytes.length;
+		used += bytes.length;
+		count++;
+	}
+
+	/** Copy of the serialized root at position i. */
+	private ByteString bytesAt(int i) {
+		return ByteString.copyFrom(chunks[(int) (starts[i] >>> CHUNK_SHIFT)], (int) (starts[i] & CHUNK_MASK), lengths[i]);
+	}
+
+	/** The root at a version, or null if it was not recorded. */
+	public synchronized A get(long version) {
+		int i = find(version);
+		if (i < 0)
+			return null;
+		return aggobj.parseAgg(bytesAt(i));
+	}
+
+	private int find(long version) {
+		if (count == 0 || version < versions[0])
+			return -1;
+		// Recorded at every version, the position is known.
+		long guess = version - versions[0];
+		if (guess < count && versions[(int) guess] == version)
+			return (int) guess;
+		int i = Arrays.binarySearch(versions, 0, count, version);
+		return i < 0 ? -1 : i;
+	}
+
+	/** Write the roots of versions up to and including upto. */
+	public void write(File file, long upto) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			synchronized (this) {
+				int n = count;
+				while (n > 0 && versions[n - 1] > upto)
+					n--;
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeBoolean(everyVersion);
+				out.writeInt(n);
+				for (int i = 0; i < n; i++) {
+					out.writeLong(versions[i]);
+					out.writeInt(lengths[i]);
+					out.write(chunks[(int) (starts[i] >>> CHUNK_SHIFT)], (int) (starts[i] & CHUNK_MASK), lengths[i]);
+				}
+			}
+		}
+	}
+
+	/** Read an index written by write(). */
+	public static <A> RootIndex<A> read(File file, AggregationInterface<A, ?> aggobj) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+				throw new IOException("Not a root index: " + file);
+			RootIndex<A> out = new RootIndex<A>(aggobj, in.readBoolean());
+			int n = in.readInt();
+			if (n < 0 || n > MAX_COUNT)
+				throw new IOException("Corrupt root index: " + file);
+			for (int i = 0; i < n; i++) {
+				long version = in.readLong();
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				out.add(version, bytes);
+			}
+			return out;
+		}
+	}
+}
@@ -19,6 +19,10 @@
 
 package edu.rice.historytree;
 
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import edu.rice.historytree.generated.Serialization;
@@ -38,7 +42,7 @@ import edu.rice.historytree.generated.Serialization.PrunedTree;
 public abstract class TreeBase<A, V> {
 
 	/** The current timestamp; the index of the last inserted event. */
-	protected int time;
+	protected long time;
 	/** The cursor position of the root. */
 	protected NodeCursor<A, V> root;
 	/** The underlying data store that is being used. */
@@ -59,7 +63,8 @@ public abstract class TreeBase<A, V> {
 	 * Make an history at a given timestamp (used as a template for building a
 	 * pruned trees or parsing trees.)
 	 */
-	public TreeBase<A, V> updateTime(int time) {
+	public TreeBase<A, V> updateTime(long time) {
+		checkVersion(time);
 		this.time = time;
 		datastore.updateTime(time);
 		return this;
@@ -71,8 +76,8 @@ public abstract class TreeBase<A, V> {
 	 * 
 	 * @param time
 	 */
-	protected void reparent(int time) {
-		while (!(time <= (1 << root.layer()) - 1))
+	protected void reparent(long time) {
+		while (!(time <= (1L << root.layer()) - 1))
 			this.root = root.reparent();
 	}
 
@@ -85,7 +90,7 @@ public abstract class TreeBase<A, V> {
 	 * Get the version of the history tree. Tree contains $time+1$ events at
 	 * indices [0...time]
 	 */
-	public int version() {
+	public long version() {
 		return time;
 	}
 
@@ -221,47 +226,48 @@ public abstract class TreeBase<A, V> {
 	 * @return The cursor for the relevant leaf node or null if the leaf is not
 	 *         in the tree.
 	 */
-	public NodeCursor<A, V> leaf(int version) {
+	public NodeCursor<A, V> leaf(long version) {
 		if (version > time)
 			throw new Error(String.format("Leaf %d in tree version %d",
 					version, time));
 		if (time == 0)
 			return root;
-		NodeCursor<A, V> node = root, child;
-		for (int layer = log2(time);; layer--) {
-			// System.out.println("leaf"+node);
-			int mask = 1 << (layer - 1);
+		long leaf = leafAt(version);
+		return leaf < 0 ? null : new NodeCursor<A, V>(datastore, 0, NodeCursor.indexOf(leaf));
+	}
+
+	/** Packed coordinate of the given leaf, or -1 if it is not in the tree. See leaf(). */
+	long leafAt(long version) {
+		long node = root.coord();
+		for (int layer = log2(time); layer > 0; layer--) {
+			long mask = 1L << (layer - 1);
 			if ((mask & version) == mask)
-				child = node.right();
+				node = NodeCursor.rightOf(node);
 			else
-				child = node.left();
-			if (child == null)
-				return null;
-			if (layer == 1)
-				return child;
-			node = child;
+				node = NodeCursor.leftOf(node);
+			if (!datastore.isAggValidAt(node))
+				return -1;
 		}
+		return node;
 	}
 
 	/**
 	 * Make a cursor pointing to the given leaf, forcibly creating the path if
 	 * possible
 	 */
-	protected NodeCursor<A, V> forceLeaf(int version) {
+	protected NodeCursor<A, V> forceLeaf(long version) {
 		if (time == 0)
 			return root.markValid();
-		NodeCursor<A, V> node = root, child;
-		for (int layer = log2(time);; layer--) {
-			// System.out.println("forceleaf"+node);
-			int mask = 1 << (layer - 1);
+		long node = root.coord();
+		for (int layer = log2(time); layer > 0; layer--) {
+			long mask = 1L << (layer - 1);
 			if ((mask & version) == mask)
-				child = node.forceRight();
+				node = NodeCursor.rightOf(node);
 			else
-				child = node.forceLeft();
-			if (layer == 1)
-				return child;
-			node = child;
+				node = NodeCursor.leftOf(node);
+			datastore.markValidAt(node);
 		}
+		return new NodeCursor<A, V>(datastore, 0, NodeCursor.indexOf(node));
 	}
 
 	/** Add an event to the history tree or merkle tree. */
@@ -281,6 +287,25 @@ public abstract class TreeBase<A, V> {
 		computefrozenaggs(leaf);
 	}
 
+	/**
+	 * Add a batch of events, giving the same tree as appending them one at a
+	 * time, but without walking a path per event. See BatchAppender.
+	 */
+	public void appendAll(List<? extends V> vals) {
+		appendAll(vals, null);
+	}
+
+	/**
+	 * @param pool
+	 *            If not null, the aligned power-of-two blocks of the batch
+	 *            are aggregated in parallel on it.
+	 */
+	public void appendAll(List<? extends V> vals, ForkJoinPool pool) {
+		if (vals.isEmpty())
+			return;
+		new BatchAppender<A, V>(this, vals).append(pool);
+	}
+
 	/**
 	 * Recurse from the leaf upwards, computing the agg for all frozen nodes.
 	 * 
@@ -292,18 +317,14 @@ public abstract class TreeBase<A, V> {
 			leaf.markValid();
 			leaf.setAgg(aggobj.aggVal(leaf.getVal()));
 		}
-		NodeCursor<A, V> node = leaf.getParent(root);
-//		 System.out.println("Adding leaf "+leaf+" ------------------------ "
-//		 );
-		while (node != null && node.isFrozen(time)) {
-			assert (node.getAgg() == null);
-//			System.out.println("Adding leaf "+leaf+" visit node" +node);
-//			System.out.println(node);
-//			System.out.println(node.left().getAgg());
-//			System.out.println(node.right().getAgg());
-			node.setAgg(aggobj.aggChildren(node.left().getAgg(), node.right()
-					.getAgg()));
-			node = node.getParent(root);
+		long node = leaf.coord();
+		while (NodeCursor.layerOf(node) < root.layer()) {
+			node = NodeCursor.parentOf(node);
+			if (!NodeCursor.isFrozen(node, time))
+				break;
+			assert (datastore.getAggAt(node) == null);
+			datastore.setAggAt(node, aggobj.aggChildren(datastore.getAggAt(NodeCursor.leftOf(node)),
+					datastore.getAggAt(NodeCursor.rightOf(node))));
 		}
 	}
 
@@ -321,7 +342,7 @@ public abstract class TreeBase<A, V> {
 	 *            annotation?
 	 * 
 	 * */
-	public void copyV(TreeBase<A, V> orig, int leafnum, boolean copyValueFlag)
+	public void copyV(TreeBase<A, V> orig, long leafnum, boolean copyValueFlag)
 			throws ProofError {
 		if (leafnum < 0 || leafnum > version())
 			throw new IllegalArgumentException(String.format(
@@ -343,7 +364,8 @@ public abstract class TreeBase<A, V> {
 
 		if (selfleaf.isAggValid() && selfleaf.getAgg() != null) {
 			// If the leaf is already in the tree...
-			assert selfleaf.getAgg().equals(origleaf.getAgg());
+			// deepEquals, as stores may hand out copies of array aggregates.
+			assert Objects.deepEquals(selfleaf.getAgg(), origleaf.getAgg());
 		} else {
 			selfleaf.copyAgg(origleaf);
 		}
@@ -374,7 +396,7 @@ public abstract class TreeBase<A, V> {
 	 * @param thisversion
 	 * @return
 	 */
-	abstract public A getAggAtVersion(NodeCursor<A, V> origleft, int thisversion);
+	abstract public A getAggAtVersion(NodeCursor<A, V> origleft, long thisversion);
 
 
 	/**
@@ -382,6 +404,7 @@ public abstract class TreeBase<A, V> {
 	 * configured with the right aggobj and a datastore.
 	 */
 	public void parseTree(Serialization.PrunedTree in) {
+		checkVersion(in.getVersion());
 		this.time = in.getVersion();
 		if (in.hasRoot()) {
 			root = datastore.makeRoot(log2(in.getVersion()));
@@ -453,14 +476,12 @@ public abstract class TreeBase<A, V> {
 	 * */
 	protected void copySiblingAggs(TreeBase<A, V> orig,
 			NodeCursor<A, V> origleaf, NodeCursor<A, V> leaf, boolean force) {
-		int thisversion = this.version();
-		int origversion = orig.version();
+		long thisversion = this.version();
+		long origversion = orig.version();
 		// can only produce paths from past trees
 		assert thisversion <= origversion;
 		
-		NodeCursor<A, V> node, orignode;
-		orignode = origleaf.getParent(orig.root);
-		node = leaf.getParent(root);
+		long node = leaf.coord(), orignode = origleaf.coord();
 
 		boolean continuing = true;
 		
@@ -468,30 +489,18 @@ public abstract class TreeBase<A, V> {
 		// we may need to recompute certain aggregation values
 		// because the original tree may have more records and 
 		// have updated the aggregations
-		while (continuing && node != null) {
+		while (continuing && NodeCursor.layerOf(node) < root.layer()) {
+			node = NodeCursor.parentOf(node);
+			orignode = NodeCursor.parentOf(orignode);
+			long left = NodeCursor.leftOf(node), right = NodeCursor.rightOf(node);
 			// this catches the case where we have already copied the 
 			// requisite data and so we don't need to waste time doing it 
 			// again
-			if (!force && node.left() != null && node.right() != null) {
+			if (!force && datastore.isAggValidAt(left) && datastore.isAggValidAt(right)) {
 				continuing = false;
 			}
-			NodeCursor<A, V> origleft, origright;
-			origleft = orignode.left();
-			if (origleft != null && origleft.getAgg() != null) {
-				A aggAtVersion = orig.getAggAtVersion(origleft, thisversion);
-				if(aggAtVersion != null) {
-					node.forceLeft().setAggForce(aggAtVersion);
-				}
-			}
-			origright = orignode.right();
-			if (origright != null && origright.getAgg() != null) {
-				A aggAtVersion = orig.getAggAtVersion(origright, thisversion);
-				if(aggAtVersion != null) {
-					node.forceRight().setAggForce(aggAtVersion);
-				}
-			}
-			orignode = orignode.getParent(orig.root);
-			node = node.getParent(root);
+			copySiblingAgg(orig, NodeCursor.leftOf(orignode), left, thisversion);
+			copySiblingAgg(orig, NodeCursor.rightOf(orignode), right, thisversion);
 		}
 		
 		// edge case of a single entry 
@@ -511,14 +520,42 @@ public abstract class TreeBase<A, V> {
 //		}
 	}
 	
-	/** Return ceil(log_2(x)) */
-	public static int log2(int x) {
-		int i = 0, pow = 1;
-		while (pow <= x) {
-			pow = pow * 2;
-			i = i + 1;
+	/** Set the agg of a node to that of a node of orig as of thisversion, if orig has one. */
+	private void copySiblingAgg(TreeBase<A, V> orig, long orignode, long node, long thisversion) {
+		if (!orig.datastore.isAggValidAt(orignode) || orig.datastore.getAggAt(orignode) == null)
+			return;
+		A aggAtVersion = orig.getAggAtVersion(orignode, thisversion);
+		if (aggAtVersion != null) {
+			datastore.markValidAt(node);
+			datastore.setAggAt(node, aggAtVersion);
 		}
-		return i;
+	}
+
+	/**
+	 * getAggAtVersion() of the node at a packed coordinate, which must be
+	 * valid. Nodes frozen by that version are read without making a cursor.
+	 */
+	A getAggAtVersion(long node, long version) {
+		if (NodeCursor.isFrozen(node, version))
+			return datastore.getAggAt(node);
+		return getAggAtVersion(new NodeCursor<A, V>(datastore, NodeCursor.layerOf(node), NodeCursor.indexOf(node)), version);
+	}
+
+	/**
+	 * Reject a version that cannot be packed into a coordinate. Serialized
+	 * trees may come from untrusted proofs, so this is a real check and not
+	 * an assert.
+	 */
+	static void checkVersion(long version) {
+		if (version < 0 || version >= NodeCursor.MAX_INDEX)
+			throw new IllegalArgumentException(String.format(
+					"Version %d is outside [0,2^57)", version));
+	}
+
+	/** Return ceil(log_2(x)) */
+	public static int log2(long x) {
+		// The number of bits in x; the smallest i with 2^i > x.
+		return 64 - Long.numberOfLeadingZeros(x);
 	}
 
 	/**
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the work done by a tree, filled in by InstrumentedStore and
+ * InstrumentedAgg.
+ * 
+ * Counting is cheap and safe from any number of threads. Timing costs two
+ * System.nanoTime() calls per operation, so it is off unless asked for. Take
+ * a snapshot() before and after an operation and subtract them to see what it
+ * cost.
+ */
+public class TreeStats {
+	/** What is counted. */
+	public enum Counter {
+		GET_AGG, SET_AGG, MARK_VALID, IS_AGG_VALID, GET_VAL, SET_VAL, HAS_VAL,
+		/** Calls to aggChildren(). */
+		AGG_CHILDREN,
+		/** Calls to aggVal(). */
+		AGG_VAL,
+		/** Bytes of serialized aggregates and values fed to aggChildren() and aggVal(). */
+		BYTES_HASHED,
+		/** Bytes of serialized aggregates and values currently in the store. */
+		RESIDENT_BYTES,
+		/** Time spent in the store, when timing is on. */
+		STORE_NANOS,
+		/** Time spent in the aggregator, when timing is on. */
+		AGG_NANOS
+	}
+
+	private final LongAdder[] counters;
+	private final boolean timing;
+
+	/** Make counters, without timing. */
+	public TreeStats() {
+		this(false);
+	}
+
+	/** Make counters, also timing every operation if timing is true. */
+	public TreeStats(boolean timing) {
+		this.timing = timing;
+		this.counters = new LongAdder[Counter.values().length];
+		for (int i = 0; i < counters.length; i++)
+			counters[i] = new LongAdder();
+	}
+
+	/** Is every operation being timed? */
+	public boolean isTiming() {
+		return timing;
+	}
+
+	/** Start timing an operation. @return The start time, or 0 if timing is off. */
+	public long start() {
+		return timing ? System.nanoTime() : 0;
+	}
+
+	/** Count one operation and, if timing is on, the time since start. */
+	public void count(Counter op, Counter clock, long start) {
+		counters[op.ordinal()].increment();
+		if (timing)
+			counters[clock.ordinal()].add(System.nanoTime() - start);
+	}
+
+	public void add(Counter counter, long amount) {
+		counters[counter.ordinal()].add(amount);
+	}
+
+	/** Zero every counter. */
+	public void reset() {
+		for (LongAdder counter : counters)
+			counter.reset();
+	}
+
+	/** Read all of the counters. */
+	public Snapshot snapshot() {
+		long[] values = new long[counters.length];
+		for (int i = 0; i < values.length; i++)
+			values[i] = counters[i].sum();
+		return new Snapshot(values);
+	}
+
+	/**
+	 * Size of an aggregate or value, as it would be serialized. byte[] and
+	 * String (as UTF-8) are measured directly, other types by serializing
+	 * them.
+	 */
+	public static int sizeOf(Object o, boolean isAgg, AggregationInterface<?, ?> aggobj) {
+		if (o == null)
+			return 0;
+		if (o instanceof byte[])
+			return ((byte[]) o).length;
+		if (o instanceof String)
+			return utf8Length((String) o);
+		return isAgg ? serializedAgg(aggobj, o) : serializedVal(aggobj, o);
+	}
+
+	/** Number of bytes in the UTF-8 encoding of s, without encoding it. */
+	static int utf8Length(String s) {
+		int out = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				out += 1;
+			else if (c < 0x800)
+				out += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				out += 4;
+				i++;
+			} else
+				out += 3;
+		}
+		return out;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <A, V> int serializedAgg(AggregationInterface<A, V> aggobj, Object agg) {
+		return aggobj.serializeAgg((A) agg).size();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <A, V> int serializedVal(AggregationInterface<A, V> aggobj, Object val) {
+		return aggobj.serializeVal((V) val).size();
+	}
+
+	/** The counters as of one moment. */
+	public static final class Snapshot {
+		private final long[] values;
+
+		private Snapshot(long[] values) {
+			this.values = values;
+		}
+
+		public long get(Counter counter) {
+			return values[counter.ordinal()];
+		}
+
+		/** The change in each counter since an earlier snapshot. */
+		public Snapshot minus(Snapshot earlier) {
+			long[] out = new long[values.length];
+			for (int i = 0; i < out.length; i++)
+				out[i] = values[i] - earlier.values[i];
+			return new Snapshot(out);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder b = new StringBuilder();
+			for (Counter counter : Counter.values()) {
+				if (b.length() > 0)
+					b.append(' ');
+				b.append(counter).append('=').append(get(counter));
+			}
+			return b.toString();
+		}
+	}
+}
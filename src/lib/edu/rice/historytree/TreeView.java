@@ -0,0 +1,91 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import edu.rice.historytree.generated.Serialization;
+
+/**
+ * A read-only view of a history tree, fixed at the version it was made at.
+ * 
+ * The view shares the tree's data store but has its own version and root, so
+ * it keeps answering aggV(), leaf() and copyV() as of its version while the
+ * tree keeps growing. With a store whose nodes can be read during appends
+ * (eg, ConcurrentStore), any number of threads can build proofs from views
+ * without holding the lock of the thread appending to the tree. A view must
+ * be handed to other threads safely, eg, made while holding that lock.
+ * 
+ * Views made before HistoryTree.retain() keep using the store they were made
+ * on.
+ */
+public final class TreeView<A, V> extends HistoryTree<A, V> {
+	TreeView(HistoryTree<A, V> tree) {
+		super(tree.aggobj, tree.datastore);
+		this.time = tree.time;
+		this.root = tree.time < 0 ? null : datastore.makeRoot(log2(tree.time));
+		this.rootindex = tree.rootindex;
+	}
+
+	/** Views cannot be modified. */
+	@Override
+	public void append(V val) {
+		throw new UnsupportedOperationException("TreeView is read-only");
+	}
+
+	/** Views cannot be modified. */
+	@Override
+	public void appendAll(List<? extends V> vals, ForkJoinPool pool) {
+		throw new UnsupportedOperationException("TreeView is read-only");
+	}
+
+	/** Views share the tree's root index, and cannot change it. */
+	@Override
+	public void setRootIndex(RootIndex<A> index) {
+		throw new UnsupportedOperationException("TreeView is read-only");
+	}
+
+	/** Views cannot be modified. */
+	@Override
+	public void bulkLoad(Iterator<? extends V> values, ExecutorService executor, int chunkShift) {
+		throw new UnsupportedOperationException("TreeView is read-only");
+	}
+
+	/** Views cannot be modified. */
+	@Override
+	public TreeBase<A, V> updateTime(long time) {
+		throw new UnsupportedOperationException("TreeView is read-only");
+	}
+
+	/** Views cannot be modified. */
+	@Override
+	public void parseTree(Serialization.PrunedTree in) {
+		throw new UnsupportedOperationException("TreeView is read-only");
+	}
+
+	/** Views cannot be modified. */
+	@Override
+	public void retain(long horizon, Iterable<Long> keep, HistoryDataStoreInterface<A, V> newdatastore) {
+		throw new UnsupportedOperationException("TreeView is read-only");
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.aggs;
+
+import com.google.protobuf.ByteString;
+
+import edu.rice.historytree.AggregationInterface;
+import edu.rice.historytree.TreeStats;
+import edu.rice.historytree.TreeStats.Counter;
+
+/**
+ * Wraps an aggregator, counting the aggregates computed and the bytes fed to
+ * them in a TreeStats. Everything else is passed straight through, so it can
+ * stand in for the wrapped aggregator anywhere, including in stored trees and
+ * logs.
+ */
+public class InstrumentedAgg<A, V> implements AggregationInterface<A, V> {
+	private final AggregationInterface<A, V> inner;
+	private final TreeStats stats;
+
+	public InstrumentedAgg(AggregationInterface<A, V> inner, TreeStats stats) {
+		this.inner = inner;
+		this.stats = stats;
+	}
+
+	/** The counters being filled in. */
+	public TreeStats getStats() {
+		return stats;
+	}
+
+	@Override
+	public A aggChildren(A leftAnn, A rightAnn) {
+		long start = stats.start();
+		A out = inner.aggChildren(leftAnn, rightAnn);
+		stats.count(Counter.AGG_CHILDREN, Counter.AGG_NANOS, start);
+		stats.add(Counter.BYTES_HASHED, TreeStats.sizeOf(leftAnn, true, inner)
+				+ TreeStats.sizeOf(rightAnn, true, inner));
+		return out;
+	}
+
+	@Override
+	public A aggVal(V event) {
+		long start = stats.start();
+		A out = inner.aggVal(event);
+		stats.count(Counter.AGG_VAL, Counter.AGG_NANOS, start);
+		stats.add(Counter.BYTES_HASHED, TreeStats.sizeOf(event, false, inner));
+		return out;
+	}
+
+	@Override
+	public String getName() {
+		return inner.getName();
+	}
+
+	@Override
+	public String getConfig() {
+		return inner.getConfig();
+	}
+
+	@Override
+	public AggregationInterface<A, V> setup(String config) {
+		inner.setup(config);
+		return this;
+	}
+
+	@Override
+	public A emptyAgg() {
+		return inner.emptyAgg();
+	}
+
+	@Override
+	public ByteString serializeVal(V val) {
+		return inner.serializeVal(val);
+	}
+
+	@Override
+	public ByteString serializeAgg(A agg) {
+		return inner.serializeAgg(agg);
+	}
+
+	@Override
+	public A parseAgg(ByteString b) {
+		return inner.parseAgg(b);
+	}
+
+	@Override
+	public V parseVal(ByteString b) {
+		return inner.parseVal(b);
+	}
+
+	/** The clone counts into the same TreeStats. */
+	@Override
+	public AggregationInterface<A, V> clone() {
+		return new InstrumentedAgg<A, V>(inner.clone(), stats);
+	}
+}
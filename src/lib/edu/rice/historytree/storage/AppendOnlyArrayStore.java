@@ -37,14 +37,31 @@ public class AppendOnlyArrayStore<A, V> extends ArrayStoreBase<A, V> {
 		return node.index() <= time;
 	}
 
+	@Override
+	public boolean isAggValidAt(long coord) {
+		return NodeCursor.indexOf(coord) <= time;
+	}
+
 	@Override
 	public void markValid(NodeCursor<A, V> node) {
 		assert (node.index() <= time);
 	}
 
 	@Override
-	public void updateTime(int time) {
+	public void markValidAt(long coord) {
+		assert (NodeCursor.indexOf(coord) <= time);
+	}
+
+	/** Only nodes up to the current time can be valid. */
+	@Override
+	public boolean supportsMerkleTree() {
+		return false;
+	}
+
+	@Override
+	public void updateTime(long time) {
 		assert (time > this.time);
+		checkArrayTime(time);
 		this.time = time;
 
 		while (time + 1 > valstore.size())
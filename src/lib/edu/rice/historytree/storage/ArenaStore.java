@@ -0,0 +1,206 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * An append-only store for a small history tree, kept in chunks of a
+ * TreeArena shared with many other trees.
+ *
+ * Same validity rules as AppendOnlyArrayStore. Aggregates of up to aggwidth
+ * bytes are kept in slots of a length byte (0 for none) and aggwidth bytes,
+ * indexed by the node's post-order index. Each leaf has an 8 byte
+ * (offset,length+1) entry pointing into a stream of value bytes. The heap
+ * only holds this object and the lists of chunk numbers; close() returns the
+ * chunks to the arena.
+ */
+public class ArenaStore extends StoreBase implements HistoryDataStoreInterface<byte[], byte[]>, Closeable {
+	private final TreeArena arena;
+	private final int aggwidth;
+	/** Aggregate slots per chunk. */
+	private final int slotsPerChunk;
+	/** Chunks holding aggregate slots, value entries and value bytes. */
+	private final ChunkList aggs, entries, data;
+	/** Number of bytes used in the value byte stream. */
+	private int dataused;
+
+	/** Make a store for aggregates of at most 32 bytes. */
+	public ArenaStore(TreeArena arena) {
+		this(arena, MappedAppendOnlyStore.SHA256_WIDTH);
+	}
+
+	/** Make a store for aggregates of at most aggwidth bytes. */
+	public ArenaStore(TreeArena arena, int aggwidth) {
+		super();
+		if (aggwidth <= 0 || aggwidth > 255 || aggwidth + 1 > arena.chunkSize())
+			throw new IllegalArgumentException("Aggregate width must be in [1,255] and fit a chunk");
+		this.arena = arena;
+		this.aggwidth = aggwidth;
+		this.slotsPerChunk = arena.chunkSize() / (aggwidth + 1);
+		this.aggs = new ChunkList();
+		this.entries = new ChunkList();
+		this.data = new ChunkList();
+	}
+
+	@Override
+	public NodeCursor<byte[], byte[]> makeRoot(int layer) {
+		return new NodeCursor<byte[], byte[]>(this, layer, 0);
+	}
+
+	/** View of the aggregate slot of a node, or null if its chunk has not been allocated. */
+	private ByteBuffer slot(NodeCursor<byte[], byte[]> node, boolean allocate) {
+		int index = (int) node.computeIndex();
+		int chunk = index / slotsPerChunk;
+		if (chunk >= aggs.count && !allocate)
+			return null;
+		return arena.at(aggs.get(chunk), (index % slotsPerChunk) * (aggwidth + 1));
+	}
+
+	@Override
+	public byte[] getAgg(NodeCursor<byte[], byte[]> node) {
+		ByteBuffer buf = slot(node, false);
+		if (buf == null)
+			return null;
+		int len = buf.get() & 0xff;
+		if (len == 0)
+			return null;
+		byte[] out = new byte[len];
+		buf.get(out);
+		return out;
+	}
+
+	@Override
+	public void setAgg(NodeCursor<byte[], byte[]> node, byte[] a) {
+		assert (isAggValid(node));
+		if (a.length == 0 || a.length > aggwidth)
+			throw new IllegalArgumentException(String.format(
+					"Aggregate of %d bytes does not fit a %d byte slot", a.length, aggwidth));
+		ByteBuffer buf = slot(node, true);
+		buf.put((byte) a.length);
+		buf.put(a);
+	}
+
+	/** View of the value entry of a leaf, or null if its chunk has not been allocated. */
+	private ByteBuffer entry(int leaf, boolean allocate) {
+		int chunk = leaf / (arena.chunkSize() / 8);
+		if (chunk >= entries.count && !allocate)
+			return null;
+		return arena.at(entries.get(chunk), (leaf % (arena.chunkSize() / 8)) * 8);
+	}
+
+	@Override
+	public byte[] getVal(NodeCursor<byte[], byte[]> node) {
+		ByteBuffer buf = entry((int) node.index(), false);
+		if (buf == null)
+			return null;
+		int offset = buf.getInt();
+		int len = buf.getInt() - 1;
+		if (len < 0)
+			return null;
+		byte[] out = new byte[len];
+		for (int done = 0; done < len;) {
+			int pos = offset + done;
+			int n = Math.min(len - done, arena.chunkSize() - pos % arena.chunkSize());
+			arena.at(data.get(pos / arena.chunkSize()), pos % arena.chunkSize()).get(out, done, n);
+			done += n;
+		}
+		return out;
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<byte[], byte[]> node) {
+		ByteBuffer buf = entry((int) node.index(), false);
+		return buf != null && buf.getInt(buf.position() + 4) != 0;
+	}
+
+	@Override
+	public void setVal(NodeCursor<byte[], byte[]> node, byte[] v) {
+		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
+		assert (v != null);
+		ByteBuffer buf = entry((int) node.index(), true);
+		buf.putInt(dataused);
+		buf.putInt(v.length + 1);
+		for (int done = 0; done < v.length;) {
+			int n = Math.min(v.length - done, arena.chunkSize() - dataused % arena.chunkSize());
+			arena.at(data.get(dataused / arena.chunkSize()), dataused % arena.chunkSize()).put(v, done, n);
+			done += n;
+			dataused += n;
+		}
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<byte[], byte[]> node) {
+		return node.index() <= time;
+	}
+
+	@Override
+	public void markValid(NodeCursor<byte[], byte[]> node) {
+		assert (node.index() <= time);
+	}
+
+	/** Only nodes up to the current time can be valid. */
+	@Override
+	public boolean supportsMerkleTree() {
+		return false;
+	}
+
+	@Override
+	public void updateTime(long time) {
+		assert (time > this.time);
+		checkArrayTime(time);
+		this.time = time;
+	}
+
+	/** Return all of the store's chunks to the arena. The store must not be used afterwards. */
+	@Override
+	public void close() {
+		aggs.free();
+		entries.free();
+		data.free();
+	}
+
+	/** The chunks of the arena making up one stream. */
+	private class ChunkList {
+		int[] chunks = new int[1];
+		int count = 0;
+
+		/** Get the i'th chunk, allocating chunks up to it as needed. */
+		int get(int i) {
+			while (count <= i) {
+				if (count == chunks.length)
+					chunks = Arrays.copyOf(chunks, 2 * chunks.length);
+				chunks[count++] = arena.allocate();
+			}
+			return chunks[i];
+		}
+
+		void free() {
+			for (int i = 0; i < count; i++)
+				arena.free(chunks[i]);
+			count = 0;
+		}
+	}
+}
@@ -36,7 +36,12 @@ public class ArrayStore<A,V> extends ArrayStoreBase<A, V> {
 
 	@Override
 	public boolean isAggValid(NodeCursor<A, V> node) {
-		return aggvalid.get(node.computeIndex()).booleanValue();
+		return isAggValidAt(node.coord());
+	}
+
+	@Override
+	public boolean isAggValidAt(long coord) {
+		return aggvalid.get((int) NodeCursor.computeIndex(coord)).booleanValue();
 	}
 
 	@Override
@@ -48,12 +53,19 @@ public class ArrayStore<A,V> extends ArrayStoreBase<A, V> {
 		// time as valid
 		//assert node.index() <= time : "Assertion Error - Time is less than index \nCurrent Index: "
 		//		+ node.index() + " Time: " +time;
-		aggvalid.set(node.computeIndex(), Boolean.valueOf(true));
+		markValidAt(node.coord());
+	}
+
+	@Override
+	public void markValidAt(long coord) {
+		aggvalid.set((int) NodeCursor.computeIndex(coord), Boolean.valueOf(true));
 	}
 
 	@Override
-	public void updateTime(int time) {
+	public void updateTime(long time) {
 		assert (time > this.time);
+		// Twice the slots of the other array stores.
+		checkArrayTime(2 * time);
 		this.time = time;		
 		while (time+1+1 > valstore.size()) // An extra +1 to handle hasVal's on extra nodes with emptyVal's inserted into a merkle tree.
 			valstore.add(null);
@@ -47,7 +47,12 @@ public abstract class ArrayStoreBase<A, V> extends StoreBase implements HistoryD
 	
 
 	public A getAgg(NodeCursor<A, V> node) {
-		int index = node.computeIndex();
+		return getAggAt(node.coord());
+	}
+
+	@Override
+	public A getAggAt(long coord) {
+		int index = (int) NodeCursor.computeIndex(coord);
 		assert(index >= 0);
 		if (index < aggstore.size())
 			return aggstore.get(index);
@@ -55,22 +60,27 @@ public abstract class ArrayStoreBase<A, V> extends StoreBase implements HistoryD
 	}
 
 	public V getVal(NodeCursor<A, V> node) {
-		return valstore.get(node.index());
+		return valstore.get((int) node.index());
 	}
 
 	public boolean hasVal(NodeCursor<A, V> node) {
-		return valstore.get(node.index()) != null;
+		return valstore.get((int) node.index()) != null;
 	}
 
 	public void setAgg(NodeCursor<A, V> node, A a) {
-		assert(isAggValid(node));
-		aggstore.set(node.computeIndex(),a);
+		setAggAt(node.coord(), a);
+	}
+
+	@Override
+	public void setAggAt(long coord, A a) {
+		assert(isAggValidAt(coord));
+		aggstore.set((int) NodeCursor.computeIndex(coord),a);
 	}
 
 	public void setVal(NodeCursor<A, V> node, V v) {
 		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
 		assert (v != null);
-		valstore.set(node.index(),v);
+		valstore.set((int) node.index(),v);
 	}
 	
 
@@ -84,5 +94,5 @@ public abstract class ArrayStoreBase<A, V> extends StoreBase implements HistoryD
 
 	abstract public void markValid(NodeCursor<A, V> node);	
 	
-	abstract public void updateTime(int time);
+	abstract public void updateTime(long time);
 }
\ No newline at end of file
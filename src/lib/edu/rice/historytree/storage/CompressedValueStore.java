@@ -0,0 +1,318 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * A store that keeps old leaf values in compressed blocks.
+ *
+ * Leaves are grouped into blocks of 2^blockShift. Once a block and the block
+ * after it have all their values, the values of the first block are
+ * concatenated and compressed with a Deflater, and only the end offset of
+ * each value within the block is kept as its index. getVal() on a compressed
+ * block inflates it; the last block inflated is cached, so reading a run of
+ * neighbouring values inflates it once. Recent values are kept as they are.
+ *
+ * Compressed blocks are kept on the heap, or appended to a log file (which is
+ * scratch space for the life of the store, as with ValueLogStore). Aggregates
+ * are kept in another store, which never sees a value.
+ *
+ * Values are expected to be set in order, as a history tree appends them. A
+ * value cannot be changed once its block is compressed.
+ */
+public class CompressedValueStore<A> implements HistoryDataStoreInterface<A, byte[]>, Closeable {
+	/** Store holding the aggregates. */
+	private final HistoryDataStoreInterface<A, byte[]> aggstore;
+	private final int blockShift;
+	/** Log holding the compressed blocks, or null to keep them on the heap. */
+	private final ValueLog log;
+	private final Deflater deflater;
+	private final Inflater inflater;
+	/** Each block is a byte[][] of its values until it is compressed, then a ColdBlock. */
+	private final ArrayList<Object> blocks;
+	/** Number of values set in each block that is not compressed yet. */
+	private int[] counts;
+	/** Block number and values of the last block inflated. */
+	private int cachedblock;
+	private byte[][] cached;
+	private long rawbytes;
+	private long compressedbytes;
+
+	/** A compressed block. */
+	private static final class ColdBlock {
+		/** End offset of each value within the inflated block. */
+		final int[] ends;
+		/** The compressed block, or null if it is in the log. */
+		final byte[] data;
+		/** Offset in the log of the compressed block. */
+		final long offset;
+		final int length;
+
+		ColdBlock(int[] ends, byte[] data, long offset, int length) {
+			this.ends = ends;
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Keep compressed blocks on the heap.
+	 *
+	 * @param aggstore
+	 *            An empty store to keep the aggregates in.
+	 * @param blockShift
+	 *            Log2 of the number of leaves in a block.
+	 */
+	public CompressedValueStore(HistoryDataStoreInterface<A, byte[]> aggstore, int blockShift) {
+		this(aggstore, blockShift, (ValueLog) null);
+	}
+
+	/**
+	 * Keep compressed blocks in a log file.
+	 *
+	 * @param logfile
+	 *            File to keep the compressed blocks in. Any existing contents
+	 *            are discarded.
+	 */
+	public CompressedValueStore(HistoryDataStoreInterface<A, byte[]> aggstore, int blockShift, File logfile)
+			throws IOException {
+		this(aggstore, blockShift, new ValueLog(logfile));
+	}
+
+	private CompressedValueStore(HistoryDataStoreInterface<A, byte[]> aggstore, int blockShift, ValueLog log) {
+		if (blockShift < 0 || blockShift > 20)
+			throw new IllegalArgumentException("Block shift must be between 0 and 20");
+		this.aggstore = aggstore;
+		this.blockShift = blockShift;
+		this.log = log;
+		this.deflater = new Deflater();
+		this.inflater = new Inflater();
+		this.blocks = new ArrayList<Object>();
+		this.counts = new int[0];
+		this.cachedblock = -1;
+	}
+
+	/** Bytes of values that have been compressed. */
+	public long rawBytes() {
+		return rawbytes;
+	}
+
+	/** Bytes those values were compressed to. */
+	public long compressedBytes() {
+		return compressedbytes;
+	}
+
+	@Override
+	public NodeCursor<A, byte[]> makeRoot(int layer) {
+		return new NodeCursor<A, byte[]>(this, layer, 0);
+	}
+
+	@Override
+	public A getAgg(NodeCursor<A, byte[]> node) {
+		return aggstore.getAgg(node);
+	}
+
+	@Override
+	public void setAgg(NodeCursor<A, byte[]> node, A a) {
+		aggstore.setAgg(node, a);
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<A, byte[]> node) {
+		return aggstore.isAggValid(node);
+	}
+
+	@Override
+	public void markValid(NodeCursor<A, byte[]> node) {
+		aggstore.markValid(node);
+	}
+
+	@Override
+	public A getAggAt(long coord) {
+		return aggstore.getAggAt(coord);
+	}
+
+	@Override
+	public void setAggAt(long coord, A a) {
+		aggstore.setAggAt(coord, a);
+	}
+
+	@Override
+	public boolean isAggValidAt(long coord) {
+		return aggstore.isAggValidAt(coord);
+	}
+
+	@Override
+	public void markValidAt(long coord) {
+		aggstore.markValidAt(coord);
+	}
+
+	@Override
+	public byte[] getVal(NodeCursor<A, byte[]> node) {
+		long leaf = node.index();
+		int block = (int) (leaf >>> blockShift);
+		if (block >= blocks.size())
+			return null;
+		int slot = (int) leaf & ((1 << blockShift) - 1);
+		Object b = blocks.get(block);
+		if (b instanceof ColdBlock)
+			return inflate(block, (ColdBlock) b)[slot];
+		return ((byte[][]) b)[slot];
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<A, byte[]> node) {
+		long leaf = node.index();
+		int block = (int) (leaf >>> blockShift);
+		if (block >= blocks.size())
+			return false;
+		Object b = blocks.get(block);
+		return b instanceof ColdBlock || ((byte[][]) b)[(int) leaf & ((1 << blockShift) - 1)] != null;
+	}
+
+	@Override
+	public void setVal(NodeCursor<A, byte[]> node, byte[] v) {
+		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
+		assert (v != null);
+		long leaf = node.index();
+		int block = (int) (leaf >>> blockShift);
+		ensureBlocks(block + 1);
+		Object b = blocks.get(block);
+		if (b instanceof ColdBlock)
+			throw new IllegalStateException("Value of leaf " + leaf + " is already compressed");
+		byte[][] vals = (byte[][]) b;
+		int slot = (int) leaf & ((1 << blockShift) - 1);
+		if (vals[slot] == null)
+			counts[block]++;
+		vals[slot] = v;
+		// Keep the newest full block uncompressed too, as its values are the likeliest to be read.
+		if (block > 0 && counts[block] == vals.length && counts[block - 1] == vals.length)
+			compress(block - 1);
+	}
+
+	/** Compress a full block. */
+	private void compress(int block) {
+		byte[][] vals = (byte[][]) blocks.get(block);
+		int[] ends = new int[vals.length];
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		for (int i = 0; i < vals.length; i++) {
+			raw.write(vals[i], 0, vals[i].length);
+			ends[i] = raw.size();
+		}
+		deflater.reset();
+		deflater.setInput(raw.toByteArray());
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.size() / 2 + 64);
+		byte[] buf = new byte[8192];
+		while (!deflater.finished())
+			out.write(buf, 0, deflater.deflate(buf));
+		byte[] data = out.toByteArray();
+		rawbytes += raw.size();
+		compressedbytes += data.length;
+		if (log == null) {
+			blocks.set(block, new ColdBlock(ends, data, 0, data.length));
+		} else {
+			try {
+				blocks.set(block, new ColdBlock(ends, null, log.append(data), data.length));
+			} catch (IOException e) {
+				throw new Error("Unable to append to value log", e);
+			}
+		}
+		counts[block] = -1;
+	}
+
+	/** Get the values of a compressed block. */
+	private byte[][] inflate(int block, ColdBlock cold) {
+		if (block == cachedblock)
+			return cached;
+		try {
+			byte[] data = cold.data != null ? cold.data : log.read(cold.offset, cold.length);
+			byte[] raw = new byte[cold.ends[cold.ends.length - 1]];
+			inflater.reset();
+			inflater.setInput(data);
+			int n = 0;
+			while (n < raw.length) {
+				int got = inflater.inflate(raw, n, raw.length - n);
+				if (got == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					throw new DataFormatException("Block ends after " + n + " of " + raw.length + " bytes");
+				n += got;
+			}
+			byte[][] vals = new byte[cold.ends.length][];
+			int start = 0;
+			for (int i = 0; i < vals.length; i++) {
+				vals[i] = Arrays.copyOfRange(raw, start, cold.ends[i]);
+				start = cold.ends[i];
+			}
+			cachedblock = block;
+			cached = vals;
+			return vals;
+		} catch (IOException e) {
+			throw new Error("Unable to read value log", e);
+		} catch (DataFormatException e) {
+			throw new Error("Corrupt compressed value block", e);
+		}
+	}
+
+	/** Make room for at least the given number of blocks. */
+	private void ensureBlocks(int n) {
+		while (blocks.size() < n)
+			blocks.add(new byte[1 << blockShift][]);
+		if (n > counts.length)
+			counts = Arrays.copyOf(counts, Math.max(n, 2 * counts.length));
+	}
+
+	@Override
+	public boolean supportsMerkleTree() {
+		return aggstore.supportsMerkleTree();
+	}
+
+	@Override
+	public void updateTime(long time) {
+		StoreBase.checkArrayTime(time);
+		aggstore.updateTime(time);
+	}
+
+	/** Force the compressed blocks to disk, if they are kept in a log. */
+	public void force() throws IOException {
+		if (log != null)
+			log.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		deflater.end();
+		inflater.end();
+		if (log != null)
+			log.close();
+	}
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * An array store that can be read by other threads while one thread appends.
+ *
+ * In a history tree an aggregate is only ever set once, when its node
+ * freezes, and a value once, when its leaf is appended. So nothing a reader
+ * of an earlier version looks at is ever overwritten, and the only hazard is
+ * an array being reallocated under the reader. Here nodes live in fixed-size
+ * chunks that never move once allocated; only the directory of chunks is
+ * copied as it grows. Together with TreeView, this lets proofs be built from a
+ * fixed version without holding the writer's lock.
+ *
+ * Nodes are offset by their post-order index, and any node may be valid or
+ * not, as in ArrayStore. Chunks are only allocated where there are valid
+ * nodes. A store may be given a horizon, for the scattered nodes left below
+ * it by HistoryTree.retain(). Nodes whose first leaf is before the horizon
+ * are kept in chunks of 16 entries in a concurrent map, so each node far
+ * from the others costs a few hundred bytes rather than a whole chunk. The
+ * others are offset from the horizon in chunks of 4096 entries, whose
+ * directory is an array covering every chunk up to the last one, so appends
+ * after a retain() run as fast as in a complete tree. See
+ * allocatedEntries().
+ */
+public class ConcurrentStore<A, V> extends StoreBase implements HistoryDataStoreInterface<A, V> {
+	/** log2 of the number of entries in a chunk from the horizon on. */
+	private static final int CHUNK_SHIFT = 12;
+	private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+	/** log2 of the number of entries in a chunk below the horizon. */
+	private static final int SPARSE_CHUNK_SHIFT = 4;
+	private static final int SPARSE_CHUNK_MASK = (1 << SPARSE_CHUNK_SHIFT) - 1;
+	/** Stored in place of an aggregate for a node that is valid but has none yet. */
+	private static final Object NOAGG = new Object();
+
+	/** The horizon leaf. Nodes whose first leaf is before it are in aggmap and valmap. */
+	private final long horizon;
+	/** Post-order index of the horizon leaf; no node past the horizon has a smaller one. */
+	private final long aggbase;
+	/** Chunks of aggregates, by post-order index less aggbase. A null entry is an invalid node. */
+	private volatile Object[][] aggchunks;
+	/** Chunks of values, by leaf index less the horizon. */
+	private volatile Object[][] valchunks;
+	/** The chunks of aggregates and values below the horizon, by chunk number. */
+	private final ConcurrentHashMap<Long, Object[]> aggmap, valmap;
+
+	/** Make a store for a complete history tree. */
+	public ConcurrentStore() {
+		this(0);
+	}
+
+	/**
+	 * Make a store for a tree that only keeps scattered nodes before
+	 * horizon, eg, for HistoryTree.retain(). A horizon of Long.MAX_VALUE
+	 * keeps every node sparsely.
+	 */
+	public ConcurrentStore(long horizon) {
+		super();
+		assert horizon >= 0;
+		this.horizon = horizon;
+		this.aggbase = horizon >= NodeCursor.MAX_INDEX ? Long.MAX_VALUE
+				: NodeCursor.computeIndex(NodeCursor.pack(0, horizon));
+		this.aggchunks = new Object[1][];
+		this.valchunks = new Object[1][];
+		this.aggmap = new ConcurrentHashMap<Long, Object[]>();
+		this.valmap = new ConcurrentHashMap<Long, Object[]>();
+	}
+
+	@Override
+	public NodeCursor<A, V> makeRoot(int layer) {
+		return new NodeCursor<A, V>(this, layer, 0);
+	}
+
+	/**
+	 * Get the entry at index, or null if nothing was ever stored there.
+	 * Entries below the horizon are in map by index; the others are in chunks
+	 * by index less base.
+	 */
+	private static Object get(Object[][] chunks, ConcurrentHashMap<Long, Object[]> map, boolean below, long base, long index) {
+		if (below) {
+			Object[] chunk = map.get(index >>> SPARSE_CHUNK_SHIFT);
+			return chunk == null ? null : chunk[(int) index & SPARSE_CHUNK_MASK];
+		}
+		index -= base;
+		long chunknum = index >>> CHUNK_SHIFT;
+		Object[] chunk = chunknum < chunks.length ? chunks[(int) chunknum] : null;
+		return chunk == null ? null : chunk[(int) index & CHUNK_MASK];
+	}
+
+	/** Offset of index in the chunk returned for it by aggChunk() or valChunk(). */
+	private static int offset(boolean below, long base, long index) {
+		return below ? (int) index & SPARSE_CHUNK_MASK : (int) (index - base) & CHUNK_MASK;
+	}
+
+	/** Whether the node is kept in the map, because its first leaf is before the horizon. */
+	private boolean below(long coord) {
+		return NodeCursor.indexOf(coord) < horizon;
+	}
+
+	private Object getAggEntry(long coord) {
+		return get(aggchunks, aggmap, below(coord), aggbase, NodeCursor.computeIndex(coord));
+	}
+
+	/** Number of the chunk holding an entry past the horizon. The directories are int-indexed, so this bounds it at 2^43 entries. */
+	private static int chunkNumber(long index) {
+		long chunk = index >>> CHUNK_SHIFT;
+		if (chunk >= Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException(String.format("Index %d is too large for the store", index));
+		return (int) chunk;
+	}
+
+	/** Get the chunk below the horizon holding index, allocating it if needed. Only called by the writer. */
+	private static Object[] sparseChunk(ConcurrentHashMap<Long, Object[]> map, long index) {
+		long chunknum = index >>> SPARSE_CHUNK_SHIFT;
+		Object[] chunk = map.get(chunknum);
+		if (chunk == null) {
+			chunk = new Object[1 << SPARSE_CHUNK_SHIFT];
+			map.put(chunknum, chunk);
+		}
+		return chunk;
+	}
+
+	/** Get the agg chunk holding index, allocating it if needed. Only called by the writer. */
+	private Object[] aggChunk(boolean below, long index) {
+		if (below)
+			return sparseChunk(aggmap, index);
+		Object[][] chunks = aggchunks;
+		int chunk = chunkNumber(index - aggbase);
+		if (chunk >= chunks.length)
+			aggchunks = chunks = Arrays.copyOf(chunks, Math.max(chunk + 1, 2 * chunks.length));
+		if (chunks[chunk] == null)
+			chunks[chunk] = new Object[1 << CHUNK_SHIFT];
+		return chunks[chunk];
+	}
+
+	/** Get the val chunk holding leaf, allocating it if needed. Only called by the writer. */
+	private Object[] valChunk(long leaf) {
+		if (leaf < horizon)
+			return sparseChunk(valmap, leaf);
+		Object[][] chunks = valchunks;
+		int chunk = chunkNumber(leaf - horizon);
+		if (chunk >= chunks.length)
+			valchunks = chunks = Arrays.copyOf(chunks, Math.max(chunk + 1, 2 * chunks.length));
+		if (chunks[chunk] == null)
+			chunks[chunk] = new Object[1 << CHUNK_SHIFT];
+		return chunks[chunk];
+	}
+
+	/**
+	 * Number of references the store has allocated, in its chunks and the
+	 * directories of them, a measure of its heap use beyond the aggregates
+	 * and values themselves. Only call from the writer.
+	 */
+	public long allocatedEntries() {
+		long out = (long) (aggmap.size() + valmap.size()) * ((1 << SPARSE_CHUNK_SHIFT) + 1);
+		out += aggchunks.length + valchunks.length;
+		for (Object[][] chunks : new Object[][][] { aggchunks, valchunks })
+			for (Object[] chunk : chunks)
+				if (chunk != null)
+					out += chunk.length;
+		return out;
+	}
+
+	@Override
+	public A getAgg(NodeCursor<A, V> node) {
+		return getAggAt(node.coord());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public A getAggAt(long coord) {
+		Object agg = getAggEntry(coord);
+		return agg == NOAGG ? null : (A) agg;
+	}
+
+	@Override
+	public void setAgg(NodeCursor<A, V> node, A a) {
+		setAggAt(node.coord(), a);
+	}
+
+	@Override
+	public void setAggAt(long coord, A a) {
+		assert (isAggValidAt(coord));
+		long index = NodeCursor.computeIndex(coord);
+		boolean below = below(coord);
+		aggChunk(below, index)[offset(below, aggbase, index)] = a;
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<A, V> node) {
+		return isAggValidAt(node.coord());
+	}
+
+	@Override
+	public boolean isAggValidAt(long coord) {
+		return getAggEntry(coord) != null;
+	}
+
+	@Override
+	public void markValid(NodeCursor<A, V> node) {
+		markValidAt(node.coord());
+	}
+
+	@Override
+	public void markValidAt(long coord) {
+		long index = NodeCursor.computeIndex(coord);
+		boolean below = below(coord);
+		Object[] chunk = aggChunk(below, index);
+		if (chunk[offset(below, aggbase, index)] == null)
+			chunk[offset(below, aggbase, index)] = NOAGG;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V getVal(NodeCursor<A, V> node) {
+		return (V) get(valchunks, valmap, node.index() < horizon, horizon, node.index());
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<A, V> node) {
+		return get(valchunks, valmap, node.index() < horizon, horizon, node.index()) != null;
+	}
+
+	@Override
+	public void setVal(NodeCursor<A, V> node, V v) {
+		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
+		assert (v != null);
+		long leaf = node.index();
+		valChunk(leaf)[offset(leaf < horizon, horizon, leaf)] = v;
+	}
+
+	@Override
+	public void updateTime(long time) {
+		assert (time >= this.time);
+		this.time = time;
+	}
+}
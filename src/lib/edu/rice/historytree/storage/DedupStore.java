@@ -0,0 +1,245 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.util.Arrays;
+
+import com.google.protobuf.ByteString;
+
+import edu.rice.historytree.AggregationInterface;
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * Wraps a store so that each distinct leaf value is stored in it only once.
+ *
+ * Values are addressed by their leaf aggregate, which the tree computes with
+ * aggVal() right after setting the value, so nothing extra is hashed. The
+ * first leaf with a given aggregate keeps its value in the inner store; later
+ * leaves with the same aggregate only keep the index of that leaf. Wrapping a
+ * ValueLogStore this way writes each distinct value to the log once.
+ *
+ * Two values are taken to be the same if their leaf aggregates are equal, so
+ * this is only correct with a collision resistant aggregation, such as
+ * SHA256Agg.
+ *
+ * Earlier values are found through a fixed table of 2^tableShift slots of
+ * (first 8 bytes of the aggregate, leaf), 16 bytes each, where a new value
+ * replaces whatever was in its slot. A hit is checked against the full
+ * aggregate of the leaf in the inner store. So the heap used does not grow
+ * with the number of distinct values; a duplicate is only found while its
+ * first copy is still in the table, which holds the recent and the most
+ * repeated values. Each leaf also costs an 8 byte reference.
+ */
+public class DedupStore<A, V> implements HistoryDataStoreInterface<A, V> {
+	private final HistoryDataStoreInterface<A, V> inner;
+	private final AggregationInterface<A, V> aggobj;
+	public static final int DEFAULT_TABLE_SHIFT = 16;
+	/** First 8 bytes of the aggregate of the value in each slot of the table. */
+	private final long[] tablekeys;
+	/** Leaf holding the value in each slot of the table, or -1 if the slot is empty. */
+	private final long[] tableleaves;
+	/** For each leaf, the leaf holding its value, or -1 if it holds its own. */
+	private long[] ref;
+	/** A value set on a leaf whose aggregate has not been set yet, or null. */
+	private V pending;
+	private long pendingleaf;
+	private long distinct;
+	private long duplicates;
+
+	/**
+	 * @param inner
+	 *            An empty store to keep the aggregates and the distinct
+	 *            values in.
+	 */
+	public DedupStore(HistoryDataStoreInterface<A, V> inner, AggregationInterface<A, V> aggobj) {
+		this(inner, aggobj, DEFAULT_TABLE_SHIFT);
+	}
+
+	/** @param tableShift log2 of the number of values the table remembers. */
+	public DedupStore(HistoryDataStoreInterface<A, V> inner, AggregationInterface<A, V> aggobj, int tableShift) {
+		if (tableShift < 0 || tableShift > 30)
+			throw new IllegalArgumentException("Table shift must be in [0,30]");
+		this.inner = inner;
+		this.aggobj = aggobj;
+		this.tablekeys = new long[1 << tableShift];
+		this.tableleaves = new long[1 << tableShift];
+		Arrays.fill(tableleaves, -1);
+		this.ref = new long[0];
+		this.pending = null;
+		this.pendingleaf = -1;
+		this.distinct = 0;
+		this.duplicates = 0;
+	}
+
+	/** Number of values stored in the inner store. */
+	public long distinctValues() {
+		return distinct;
+	}
+
+	/** Number of leaves that share the value of an earlier leaf. */
+	public long duplicateValues() {
+		return duplicates;
+	}
+
+	@Override
+	public NodeCursor<A, V> makeRoot(int layer) {
+		return new NodeCursor<A, V>(this, layer, 0);
+	}
+
+	@Override
+	public A getAgg(NodeCursor<A, V> node) {
+		return inner.getAgg(node);
+	}
+
+	@Override
+	public void setAgg(NodeCursor<A, V> node, A a) {
+		inner.setAgg(node, a);
+		if (pending != null && node.layer() == 0 && node.index() == pendingleaf)
+			resolve(node, a);
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<A, V> node) {
+		return inner.isAggValid(node);
+	}
+
+	@Override
+	public void markValid(NodeCursor<A, V> node) {
+		inner.markValid(node);
+	}
+
+	@Override
+	public A getAggAt(long coord) {
+		return inner.getAggAt(coord);
+	}
+
+	@Override
+	public void setAggAt(long coord, A a) {
+		// Leaf aggregates may resolve a pending value.
+		if (NodeCursor.layerOf(coord) == 0)
+			setAgg(new NodeCursor<A, V>(this, 0, NodeCursor.indexOf(coord)), a);
+		else
+			inner.setAggAt(coord, a);
+	}
+
+	@Override
+	public boolean isAggValidAt(long coord) {
+		return inner.isAggValidAt(coord);
+	}
+
+	@Override
+	public void markValidAt(long coord) {
+		inner.markValidAt(coord);
+	}
+
+	@Override
+	public V getVal(NodeCursor<A, V> node) {
+		long leaf = node.index();
+		if (pending != null && leaf == pendingleaf)
+			return pending;
+		if (leaf < ref.length && ref[(int) leaf] >= 0)
+			return inner.getVal(new NodeCursor<A, V>(this, 0, ref[(int) leaf]));
+		return inner.getVal(node);
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<A, V> node) {
+		long leaf = node.index();
+		if (pending != null && leaf == pendingleaf)
+			return true;
+		if (leaf < ref.length && ref[(int) leaf] >= 0)
+			return true;
+		return inner.hasVal(node);
+	}
+
+	@Override
+	public void setVal(NodeCursor<A, V> node, V v) {
+		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
+		assert (v != null);
+		if (pending != null)
+			flush();
+		pending = v;
+		pendingleaf = node.index();
+		// When copying a pruned tree, a leaf's aggregate comes before its value.
+		A a = inner.getAgg(node);
+		if (a != null)
+			resolve(node, a);
+	}
+
+	/** Store the pending value, or a reference to an equal one, now that its aggregate is known. */
+	private void resolve(NodeCursor<A, V> node, A a) {
+		long leaf = node.index();
+		ByteString key = aggobj.serializeAgg(a);
+		long prefix = prefix(key);
+		int slot = slot(prefix);
+		long first = tableleaves[slot];
+		if (first >= 0 && first != leaf && tablekeys[slot] == prefix
+				&& key.equals(aggobj.serializeAgg(inner.getAggAt(NodeCursor.pack(0, first))))) {
+			ref[(int) leaf] = first;
+			duplicates++;
+			pending = null;
+			return;
+		}
+		tablekeys[slot] = prefix;
+		tableleaves[slot] = leaf;
+		flush();
+	}
+
+	/** First 8 bytes of a serialized aggregate, mixed with its length in case it is shorter. */
+	private static long prefix(ByteString key) {
+		long out = key.size();
+		for (int i = 0; i < Math.min(8, key.size()); i++)
+			out = (out << 8) ^ (key.byteAt(i) & 0xff) ^ (out >>> 56);
+		return out;
+	}
+
+	private int slot(long prefix) {
+		// Aggregates that are not hashes may share their first bytes; spread them out.
+		long h = prefix * 0x9e3779b97f4a7c15L;
+		return (int) (h >>> 32) & (tableleaves.length - 1);
+	}
+
+	/** Store the pending value as it is. */
+	private void flush() {
+		inner.setVal(new NodeCursor<A, V>(this, 0, pendingleaf), pending);
+		ref[(int) pendingleaf] = -1;
+		distinct++;
+		pending = null;
+	}
+
+	@Override
+	public boolean supportsMerkleTree() {
+		return inner.supportsMerkleTree();
+	}
+
+	@Override
+	public void updateTime(long time) {
+		StoreBase.checkArrayTime(time);
+		inner.updateTime(time);
+		// An extra +1 to handle hasVal's on extra nodes with emptyVal's inserted into a merkle tree.
+		int leaves = (int) time + 2;
+		if (leaves > ref.length) {
+			int oldlen = ref.length;
+			ref = Arrays.copyOf(ref, Math.max(leaves, 2 * oldlen));
+			Arrays.fill(ref, oldlen, ref.length, -1);
+		}
+	}
+}
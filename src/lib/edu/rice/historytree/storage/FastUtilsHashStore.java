@@ -37,21 +37,20 @@
 
 package edu.rice.historytree.storage;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import edu.rice.historytree.HistoryDataStoreInterface;
 import edu.rice.historytree.NodeCursor;
 
 
 public class FastUtilsHashStore<A,V> extends StoreBase implements HistoryDataStoreInterface<A, V> {
-	private Int2ObjectMap<A>  aggstore;
-	private int time;
-	private Int2ObjectMap<V>  valstore;
+	private Long2ObjectMap<A>  aggstore;
+	private Long2ObjectMap<V>  valstore;
 
 	public FastUtilsHashStore() {
-		this.time = -1;
-		this.aggstore = new Int2ObjectOpenHashMap<A>();
-		this.valstore = new Int2ObjectOpenHashMap<V>();
+		super();
+		this.aggstore = new Long2ObjectOpenHashMap<A>();
+		this.valstore = new Long2ObjectOpenHashMap<V>();
 	}
 	@Override
 	public NodeCursor<A, V> makeRoot(int layer) {
@@ -60,29 +59,29 @@ public class FastUtilsHashStore<A,V> extends StoreBase implements HistoryDataSto
 
 	@Override
 	public A getAgg(NodeCursor<A, V> node) {
-		Integer key=new Integer(node.computeIndex());
+		long key=node.computeIndex();
 		//System.out.println("GetAgg "+key+"["+"]"+aggstore.get(key));
 		return aggstore.get(key); 
 		}
 
 	@Override
 	public V getVal(NodeCursor<A, V> node) {
-		return valstore.get(new Integer(node.index()));
+		return valstore.get(node.index());
 	}
 
 	@Override
 	public boolean hasVal(NodeCursor<A, V> node) {
-		return valstore.get(new Integer(node.index())) != null;
+		return valstore.get(node.index()) != null;
 	}
 
 	@Override
 	public boolean isAggValid(NodeCursor<A, V> node) {
-		return aggstore.containsKey(new Integer(node.computeIndex()));
+		return aggstore.containsKey(node.computeIndex());
 	}
 
 	@Override
 	public void markValid(NodeCursor<A, V> node) {
-		Integer key=new Integer(node.computeIndex());
+		long key=node.computeIndex();
 		if (!aggstore.containsKey(key))
 			aggstore.put(key,null);
 	}
@@ -90,7 +89,7 @@ public class FastUtilsHashStore<A,V> extends StoreBase implements HistoryDataSto
 	@Override
 	public void setAgg(NodeCursor<A, V> node, A a) {
 		assert(isAggValid(node));
-		Integer key=new Integer(node.computeIndex());
+		long key=node.computeIndex();
 		//System.out.println("SetAgg "+key+"["+node+"] = "+a);
 		aggstore.put(key,a);
 	}
@@ -99,11 +98,11 @@ public class FastUtilsHashStore<A,V> extends StoreBase implements HistoryDataSto
 	public void setVal(NodeCursor<A, V> node, V v) {
 		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
 		assert (v != null);
-		valstore.put(new Integer(node.index()),v);
+		valstore.put(node.index(),v);
 	}
 
 	@Override
-	public void updateTime(int time) {
+	public void updateTime(long time) {
 		assert (time >= this.time);
 		this.time = time;		
 	}
@@ -7,12 +7,12 @@ import edu.rice.historytree.HistoryDataStoreInterface;
 import edu.rice.historytree.NodeCursor;
 
 public class HashStore<A,V> extends StoreBase implements HistoryDataStoreInterface<A, V> {
-	private HashMap<Integer,A>  aggstore;
-	private HashMap<Integer,V>  valstore;
+	private HashMap<Long,A>  aggstore;
+	private HashMap<Long,V>  valstore;
 
 	public HashStore() {
-		this.aggstore = new HashMap<Integer,A>();
-		this.valstore = new HashMap<Integer,V>();
+		this.aggstore = new HashMap<Long,A>();
+		this.valstore = new HashMap<Long,V>();
 	}
 	@Override
 	public NodeCursor<A, V> makeRoot(int layer) {
@@ -21,37 +21,57 @@ public class HashStore<A,V> extends StoreBase implements HistoryDataStoreInterfa
 
 	@Override
 	public A getAgg(NodeCursor<A, V> node) {
-		Integer key=new Integer(node.computeIndex());
+		return getAggAt(node.coord());
+	}
+
+	@Override
+	public A getAggAt(long coord) {
+		Long key=Long.valueOf(NodeCursor.computeIndex(coord));
 		//System.out.println("GetAgg "+key+"["+"]"+aggstore.get(key));
 		return aggstore.get(key); 
 		}
 
 	@Override
 	public V getVal(NodeCursor<A, V> node) {
-		return valstore.get(new Integer(node.index()));
+		return valstore.get(Long.valueOf(node.index()));
 	}
 
 	@Override
 	public boolean hasVal(NodeCursor<A, V> node) {
-		return valstore.get(new Integer(node.index())) != null;
+		return valstore.get(Long.valueOf(node.index())) != null;
 	}
 
 	@Override
 	public boolean isAggValid(NodeCursor<A, V> node) {
-		return aggstore.containsKey(new Integer(node.computeIndex()));
+		return isAggValidAt(node.coord());
+	}
+
+	@Override
+	public boolean isAggValidAt(long coord) {
+		return aggstore.containsKey(Long.valueOf(NodeCursor.computeIndex(coord)));
 	}
 
 	@Override
 	public void markValid(NodeCursor<A, V> node) {
-		Integer key=new Integer(node.computeIndex());
+		markValidAt(node.coord());
+	}
+
+	@Override
+	public void markValidAt(long coord) {
+		Long key=Long.valueOf(NodeCursor.computeIndex(coord));
 		if (!aggstore.containsKey(key))
 			aggstore.put(key,null);
 	}
 
 	@Override
 	public void setAgg(NodeCursor<A, V> node, A a) {
-		assert(isAggValid(node));
-		Integer key=new Integer(node.computeIndex());
+		setAggAt(node.coord(), a);
+	}
+
+	@Override
+	public void setAggAt(long coord, A a) {
+		assert(isAggValidAt(coord));
+		Long key=Long.valueOf(NodeCursor.computeIndex(coord));
 		//System.out.println("SetAgg "+key+"["+node+"] = "+a);
 		aggstore.put(key,a);
 	}
@@ -60,11 +80,11 @@ public class HashStore<A,V> extends StoreBase implements HistoryDataStoreInterfa
 	public void setVal(NodeCursor<A, V> node, V v) {
 		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
 		assert (v != null);
-		valstore.put(new Integer(node.index()),v);
+		valstore.put(Long.valueOf(node.index()),v);
 	}
 
 	@Override
-	public void updateTime(int time) {
+	public void updateTime(long time) {
 		assert (time >= this.time);
 		this.time = time;		
 	}
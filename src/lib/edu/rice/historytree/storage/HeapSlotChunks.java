@@ -0,0 +1,84 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-width slots on the heap, held in chunks of 2^chunkShift slots.
+ *
+ * Chunks are only allocated when a slot in them is first written, so a sparse
+ * slot space (eg, a van Emde Boas layout of a young tree) costs memory only
+ * for the regions actually in use.
+ */
+class HeapSlotChunks implements SlotStorage {
+	/** Default log2 of the number of slots in a chunk. */
+	static final int DEFAULT_CHUNK_SHIFT = 12;
+
+	private final int width;
+	private final int chunkShift;
+	private byte[][] chunks;
+
+	HeapSlotChunks(int width, int chunkShift) {
+		if (width <= 0)
+			throw new IllegalArgumentException("Slot width must be positive");
+		this.width = width;
+		this.chunkShift = chunkShift;
+		this.chunks = new byte[0][];
+	}
+
+	@Override
+	public int width() {
+		return width;
+	}
+
+	@Override
+	public void ensureCapacity(long slots) {
+		long needed = (slots + (1L << chunkShift) - 1) >>> chunkShift;
+		if (needed > chunks.length)
+			chunks = Arrays.copyOf(chunks, (int) Math.max(needed, 2L * chunks.length));
+	}
+
+	@Override
+	public void get(long slot, byte[] dst) {
+		byte[] chunk = chunks[(int) (slot >>> chunkShift)];
+		System.arraycopy(chunk, (int) (slot & ((1 << chunkShift) - 1)) * width, dst, 0, width);
+	}
+
+	@Override
+	public void put(long slot, byte[] src) {
+		if (src.length != width)
+			throw new IllegalArgumentException(String.format(
+					"Aggregate of %d bytes does not fit a %d byte slot", src.length, width));
+		int c = (int) (slot >>> chunkShift);
+		if (chunks[c] == null)
+			chunks[c] = new byte[width << chunkShift];
+		System.arraycopy(src, 0, chunks[c], (int) (slot & ((1 << chunkShift) - 1)) * width, width);
+	}
+
+	@Override
+	public void force() {
+	}
+
+	@Override
+	public void close() {
+		chunks = new byte[0][];
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import edu.rice.historytree.AggregationInterface;
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+import edu.rice.historytree.TreeStats;
+import edu.rice.historytree.TreeStats.Counter;
+
+/**
+ * Wraps a store, counting every access to it in a TreeStats, and keeping
+ * track of the bytes of aggregates and values in it.
+ *
+ * Resident bytes are counted when an aggregate or value is first set, without
+ * reading back what is in the inner store. A complete history tree sets each
+ * aggregate once, and the caller says so with setOnce; then nothing but the
+ * counting is added to each access. Otherwise nodes that markValid() makes
+ * valid are remembered until their first aggregate is set. Setting an
+ * aggregate or value again, as pruned and Merkle trees do, is taken to
+ * replace one of the same size.
+ */
+public class InstrumentedStore<A, V> implements HistoryDataStoreInterface<A, V> {
+	private final HistoryDataStoreInterface<A, V> inner;
+	private final TreeStats stats;
+	/** Used to measure aggregates and values that are not byte[] or String. */
+	private final AggregationInterface<A, V> aggobj;
+	/** True if every aggregate is set once, so every set adds to the resident bytes. */
+	private final boolean setOnce;
+	/** Coordinates of nodes made valid through this store whose aggregate is not set yet. Unused if setOnce. */
+	private final LongOpenHashSet unset;
+
+	/**
+	 * @param setOnce
+	 *            True if the store holds a complete history tree, which sets
+	 *            each aggregate once; false for pruned and Merkle trees.
+	 */
+	public InstrumentedStore(HistoryDataStoreInterface<A, V> inner, TreeStats stats,
+			AggregationInterface<A, V> aggobj, boolean setOnce) {
+		this.inner = inner;
+		this.stats = stats;
+		this.aggobj = aggobj;
+		this.setOnce = setOnce;
+		this.unset = setOnce ? null : new LongOpenHashSet();
+	}
+
+	/** The counters being filled in. */
+	public TreeStats getStats() {
+		return stats;
+	}
+
+	@Override
+	public NodeCursor<A, V> makeRoot(int layer) {
+		return new NodeCursor<A, V>(this, layer, 0);
+	}
+
+	@Override
+	public boolean supportsMerkleTree() {
+		return inner.supportsMerkleTree();
+	}
+
+	@Override
+	public void updateTime(long time) {
+		inner.updateTime(time);
+	}
+
+	@Override
+	public A getAgg(NodeCursor<A, V> node) {
+		long start = stats.start();
+		A out = inner.getAgg(node);
+		stats.count(Counter.GET_AGG, Counter.STORE_NANOS, start);
+		return out;
+	}
+
+	@Override
+	public void setAgg(NodeCursor<A, V> node, A a) {
+		boolean first = setOnce || unset.remove(node.coord());
+		long start = stats.start();
+		inner.setAgg(node, a);
+		stats.count(Counter.SET_AGG, Counter.STORE_NANOS, start);
+		if (first)
+			stats.add(Counter.RESIDENT_BYTES, TreeStats.sizeOf(a, true, aggobj));
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<A, V> node) {
+		long start = stats.start();
+		boolean out = inner.isAggValid(node);
+		stats.count(Counter.IS_AGG_VALID, Counter.STORE_NANOS, start);
+		return out;
+	}
+
+	@Override
+	public void markValid(NodeCursor<A, V> node) {
+		boolean fresh = !setOnce && !inner.isAggValid(node);
+		long start = stats.start();
+		inner.markValid(node);
+		stats.count(Counter.MARK_VALID, Counter.STORE_NANOS, start);
+		if (fresh)
+			unset.add(node.coord());
+	}
+
+	@Override
+	public A getAggAt(long coord) {
+		long start = stats.start();
+		A out = inner.getAggAt(coord);
+		stats.count(Counter.GET_AGG, Counter.STORE_NANOS, start);
+		return out;
+	}
+
+	@Override
+	public void setAggAt(long coord, A a) {
+		boolean first = setOnce || unset.remove(coord);
+		long start = stats.start();
+		inner.setAggAt(coord, a);
+		stats.count(Counter.SET_AGG, Counter.STORE_NANOS, start);
+		if (first)
+			stats.add(Counter.RESIDENT_BYTES, TreeStats.sizeOf(a, true, aggobj));
+	}
+
+	@Override
+	public boolean isAggValidAt(long coord) {
+		long start = stats.start();
+		boolean out = inner.isAggValidAt(coord);
+		stats.count(Counter.IS_AGG_VALID, Counter.STORE_NANOS, start);
+		return out;
+	}
+
+	@Override
+	public void markValidAt(long coord) {
+		boolean fresh = !setOnce && !inner.isAggValidAt(coord);
+		long start = stats.start();
+		inner.markValidAt(coord);
+		stats.count(Counter.MARK_VALID, Counter.STORE_NANOS, start);
+		if (fresh)
+			unset.add(coord);
+	}
+
+	@Override
+	public V getVal(NodeCursor<A, V> node) {
+		long start = stats.start();
+		V out = inner.getVal(node);
+		stats.count(Counter.GET_VAL, Counter.STORE_NANOS, start);
+		return out;
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<A, V> node) {
+		long start = stats.start();
+		boolean out = inner.hasVal(node);
+		stats.count(Counter.HAS_VAL, Counter.STORE_NANOS, start);
+		return out;
+	}
+
+	@Override
+	public void setVal(NodeCursor<A, V> node, V v) {
+		boolean first = !inner.hasVal(node);
+		long start = stats.start();
+		inner.setVal(node, v);
+		stats.count(Counter.SET_VAL, Counter.STORE_NANOS, start);
+		if (first)
+			stats.add(Counter.RESIDENT_BYTES, TreeStats.sizeOf(v, false, aggobj));
+	}
+}
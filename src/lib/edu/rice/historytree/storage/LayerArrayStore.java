@@ -0,0 +1,156 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.util.Arrays;
+
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * An array store that keeps one array per layer of the tree.
+ *
+ * A node at (layer,index) is at offset index&gt;&gt;layer in the array for its
+ * layer, so finding a node is a shift rather than the O(log n) loop of
+ * NodeCursor.computeIndex(). Siblings are adjacent in the same array, so
+ * proof generation touches the same cache lines for both children of a node.
+ *
+ * Same validity rules as ArrayStore; any node may be valid or not.
+ */
+public class LayerArrayStore<A, V> extends StoreBase implements HistoryDataStoreInterface<A, V> {
+	/** Aggs for each layer. Offset into layer l is index&gt;&gt;l. */
+	private Object[][] aggstore;
+	/** Validity bitmap for each layer, same offsets as aggstore. */
+	private long[][] aggvalid;
+	/** Record the val for a node. Offset into the array is the leaf node's index. */
+	private Object[] valstore;
+
+	public LayerArrayStore() {
+		super();
+		this.aggstore = new Object[0][];
+		this.aggvalid = new long[0][];
+		this.valstore = new Object[4];
+	}
+
+	@Override
+	public NodeCursor<A, V> makeRoot(int layer) {
+		return new NodeCursor<A, V>(this, layer, 0);
+	}
+
+	/** Make sure layer has room for the node at offset pos. */
+	private void ensureNode(int layer, int pos) {
+		if (layer >= aggstore.length) {
+			int oldlayers = aggstore.length;
+			aggstore = Arrays.copyOf(aggstore, layer + 1);
+			aggvalid = Arrays.copyOf(aggvalid, layer + 1);
+			for (int l = oldlayers; l <= layer; l++) {
+				aggstore[l] = new Object[4];
+				aggvalid[l] = new long[1];
+			}
+		}
+		if (pos >= aggstore[layer].length) {
+			int size = Math.max(pos + 1, 2 * aggstore[layer].length);
+			aggstore[layer] = Arrays.copyOf(aggstore[layer], size);
+			aggvalid[layer] = Arrays.copyOf(aggvalid[layer], (size >>> 6) + 1);
+		}
+	}
+
+	@Override
+	public A getAgg(NodeCursor<A, V> node) {
+		return getAggAt(node.coord());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public A getAggAt(long coord) {
+		int layer = NodeCursor.layerOf(coord), pos = (int) (NodeCursor.indexOf(coord) >>> layer);
+		if (layer >= aggstore.length || pos >= aggstore[layer].length)
+			return null;
+		return (A) aggstore[layer][pos];
+	}
+
+	@Override
+	public void setAgg(NodeCursor<A, V> node, A a) {
+		setAggAt(node.coord(), a);
+	}
+
+	@Override
+	public void setAggAt(long coord, A a) {
+		assert (isAggValidAt(coord));
+		int layer = NodeCursor.layerOf(coord);
+		aggstore[layer][(int) (NodeCursor.indexOf(coord) >>> layer)] = a;
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<A, V> node) {
+		return isAggValidAt(node.coord());
+	}
+
+	@Override
+	public boolean isAggValidAt(long coord) {
+		int layer = NodeCursor.layerOf(coord), pos = (int) (NodeCursor.indexOf(coord) >>> layer);
+		if (layer >= aggstore.length || pos >= aggstore[layer].length)
+			return false;
+		return (aggvalid[layer][pos >>> 6] & (1L << pos)) != 0;
+	}
+
+	@Override
+	public void markValid(NodeCursor<A, V> node) {
+		markValidAt(node.coord());
+	}
+
+	@Override
+	public void markValidAt(long coord) {
+		int layer = NodeCursor.layerOf(coord), pos = (int) (NodeCursor.indexOf(coord) >>> layer);
+		ensureNode(layer, pos);
+		aggvalid[layer][pos >>> 6] |= 1L << pos;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V getVal(NodeCursor<A, V> node) {
+		int index = (int) node.index();
+		if (index >= valstore.length)
+			return null;
+		return (V) valstore[index];
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<A, V> node) {
+		return getVal(node) != null;
+	}
+
+	@Override
+	public void setVal(NodeCursor<A, V> node, V v) {
+		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
+		assert (v != null);
+		int index = (int) node.index();
+		if (index >= valstore.length)
+			valstore = Arrays.copyOf(valstore, Math.max(index + 1, 2 * valstore.length));
+		valstore[index] = v;
+	}
+
+	@Override
+	public void updateTime(long time) {
+		assert (time >= this.time);
+		checkArrayTime(time);
+		this.time = time;
+	}
+}
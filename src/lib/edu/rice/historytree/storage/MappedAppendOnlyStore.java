@@ -0,0 +1,165 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * An append-only store for history trees over fixed-width byte[] aggregates
+ * (eg, SHA-256 hashes), with the aggregates kept in a memory mapped file.
+ *
+ * Same validity rules as AppendOnlyArrayStore: all nodes up to the last one
+ * are valid, none after it are. Aggregates are stored in fixed-width slots
+ * indexed by the node's post-order index, so the heap only holds one bit per
+ * node recording whether the slot has been written, and cold frozen nodes are
+ * left to the OS page cache.
+ */
+public class MappedAppendOnlyStore<V> extends StoreBase implements
+		HistoryDataStoreInterface<byte[], V>, Closeable {
+	/** Width of a SHA-256 hash. */
+	public static final int SHA256_WIDTH = 32;
+
+	/** The slots holding the aggregates. */
+	private final MappedSlotFile aggfile;
+	/** Bit set for every slot that has had an aggregate written into it. */
+	private long[] written;
+	/** Record the val for a node. Offset into the array is the leaf node's index. */
+	private final ArrayList<V> valstore;
+
+	/** Make a store of 32 byte aggregates backed by the given file. */
+	public MappedAppendOnlyStore(File file) throws IOException {
+		this(file, SHA256_WIDTH);
+	}
+
+	/** Make a store of aggwidth byte aggregates backed by the given file. */
+	public MappedAppendOnlyStore(File file, int aggwidth) throws IOException {
+		this(file, aggwidth, MappedSlotFile.DEFAULT_SEGMENT_SHIFT);
+	}
+
+	/**
+	 * @param segmentShift
+	 *            log2 of the number of slots mapped at a time when the file
+	 *            grows.
+	 */
+	public MappedAppendOnlyStore(File file, int aggwidth, int segmentShift)
+			throws IOException {
+		super();
+		this.aggfile = new MappedSlotFile(file, aggwidth, segmentShift);
+		this.written = new long[1];
+		this.valstore = new ArrayList<V>(5);
+	}
+
+	@Override
+	public NodeCursor<byte[], V> makeRoot(int layer) {
+		return new NodeCursor<byte[], V>(this, layer, 0);
+	}
+
+	private boolean isWritten(long index) {
+		return (written[(int) (index >>> 6)] & (1L << index)) != 0;
+	}
+
+	@Override
+	public byte[] getAgg(NodeCursor<byte[], V> node) {
+		long index = node.computeIndex();
+		assert (index >= 0);
+		if (index >= ((long) written.length << 6) || !isWritten(index))
+			return null;
+		byte[] out = new byte[aggfile.width()];
+		aggfile.get(index, out);
+		return out;
+	}
+
+	@Override
+	public void setAgg(NodeCursor<byte[], V> node, byte[] a) {
+		assert (isAggValid(node));
+		long index = node.computeIndex();
+		aggfile.put(index, a);
+		written[(int) (index >>> 6)] |= 1L << index;
+	}
+
+	@Override
+	public V getVal(NodeCursor<byte[], V> node) {
+		return valstore.get((int) node.index());
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<byte[], V> node) {
+		return valstore.get((int) node.index()) != null;
+	}
+
+	@Override
+	public void setVal(NodeCursor<byte[], V> node, V v) {
+		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
+		assert (v != null);
+		valstore.set((int) node.index(), v);
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<byte[], V> node) {
+		return node.index() <= time;
+	}
+
+	@Override
+	public void markValid(NodeCursor<byte[], V> node) {
+		assert (node.index() <= time);
+	}
+
+	/** Only nodes up to the current time can be valid, and aggregates must fill their slot. */
+	@Override
+	public boolean supportsMerkleTree() {
+		return false;
+	}
+
+	@Override
+	public void updateTime(long time) {
+		assert (time > this.time);
+		// The values are still kept in an ArrayList.
+		checkArrayTime(time);
+		this.time = time;
+
+		while (time + 1 > valstore.size())
+			valstore.add(null);
+		long slots = 2 * time + 1;
+		try {
+			aggfile.ensureCapacity(slots);
+		} catch (IOException e) {
+			throw new Error("Unable to grow mapped aggregate file", e);
+		}
+		if (slots > (long) written.length << 6)
+			written = Arrays.copyOf(written, (int) Math.max(2 * written.length, (slots >>> 6) + 1));
+	}
+
+	/** Flush the mapped aggregates to disk. */
+	public void force() {
+		aggfile.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		aggfile.close();
+	}
+}
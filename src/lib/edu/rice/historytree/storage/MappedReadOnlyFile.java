@@ -0,0 +1,92 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A whole file mapped read-only, in segments of at most 2^SEGMENT_SHIFT bytes.
+ *
+ * Reads may straddle a segment boundary. The pages are shared with every
+ * other process that maps the same file.
+ */
+class MappedReadOnlyFile {
+	/** log2 of the size of each mapped segment. */
+	static final int SEGMENT_SHIFT = 30;
+
+	private final long length;
+	private final MappedByteBuffer[] segments;
+
+	MappedReadOnlyFile(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			this.length = channel.size();
+			int count = (int) ((length + (1L << SEGMENT_SHIFT) - 1) >>> SEGMENT_SHIFT);
+			this.segments = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long offset = (long) i << SEGMENT_SHIFT;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+						Math.min(1L << SEGMENT_SHIFT, length - offset));
+			}
+		}
+	}
+
+	long length() {
+		return length;
+	}
+
+	/** Copy len bytes starting at position pos into dst at offset off. */
+	void get(long pos, byte[] dst, int off, int len) {
+		if (pos < 0 || pos + len > length)
+			throw new IndexOutOfBoundsException(String.format(
+					"Read of %d bytes at %d past the end of a %d byte file", len, pos, length));
+		while (len > 0) {
+			ByteBuffer buf = segments[(int) (pos >>> SEGMENT_SHIFT)].duplicate();
+			buf.position((int) (pos & ((1L << SEGMENT_SHIFT) - 1)));
+			int n = Math.min(len, buf.remaining());
+			buf.get(dst, off, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	byte[] get(long pos, int len) {
+		byte[] out = new byte[len];
+		get(pos, out, 0, len);
+		return out;
+	}
+
+	int getInt(long pos) {
+		if ((pos >>> SEGMENT_SHIFT) == ((pos + 3) >>> SEGMENT_SHIFT))
+			return segments[(int) (pos >>> SEGMENT_SHIFT)].getInt((int) (pos & ((1L << SEGMENT_SHIFT) - 1)));
+		return ByteBuffer.wrap(get(pos, 4)).getInt();
+	}
+
+	long getLong(long pos) {
+		if ((pos >>> SEGMENT_SHIFT) == ((pos + 7) >>> SEGMENT_SHIFT))
+			return segments[(int) (pos >>> SEGMENT_SHIFT)].getLong((int) (pos & ((1L << SEGMENT_SHIFT) - 1)));
+		return ByteBuffer.wrap(get(pos, 8)).getLong();
+	}
+}
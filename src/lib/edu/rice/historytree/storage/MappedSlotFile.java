@@ -0,0 +1,109 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * A file of fixed-width slots, memory mapped in equal sized segments.
+ *
+ * A single MappedByteBuffer cannot exceed 2GB, so the file is mapped as a
+ * sequence of segments of 2^segmentShift slots each. Segments are mapped
+ * lazily as the slot capacity grows; mapping past the end of the file extends
+ * it.
+ */
+class MappedSlotFile implements SlotStorage {
+	/** Default log2 of the number of slots in a segment. */
+	static final int DEFAULT_SEGMENT_SHIFT = 20;
+
+	private final FileChannel channel;
+	/** Width of each slot in bytes. */
+	private final int width;
+	/** log2 of the number of slots per segment. */
+	private final int segmentShift;
+	private final ArrayList<MappedByteBuffer> segments;
+
+	MappedSlotFile(File file, int width, int segmentShift) throws IOException {
+		if (width <= 0)
+			throw new IllegalArgumentException("Slot width must be positive");
+		if (((long) width << segmentShift) > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Segment would exceed 2GB");
+		this.width = width;
+		this.segmentShift = segmentShift;
+		this.segments = new ArrayList<MappedByteBuffer>();
+		this.channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+	}
+
+	@Override
+	public int width() {
+		return width;
+	}
+
+	/** Make sure that slots [0,slots) are mapped. */
+	@Override
+	public void ensureCapacity(long slots) throws IOException {
+		long segbytes = (long) width << segmentShift;
+		while (((long) segments.size() << segmentShift) < slots) {
+			long offset = segments.size() * segbytes;
+			segments.add(channel.map(FileChannel.MapMode.READ_WRITE, offset, segbytes));
+		}
+	}
+
+	/** Make a private view positioned at the start of the given slot. */
+	private ByteBuffer at(long slot) {
+		ByteBuffer buf = segments.get((int) (slot >>> segmentShift)).duplicate();
+		buf.position((int) (slot & ((1 << segmentShift) - 1)) * width);
+		return buf;
+	}
+
+	@Override
+	public void get(long slot, byte[] dst) {
+		at(slot).get(dst, 0, width);
+	}
+
+	@Override
+	public void put(long slot, byte[] src) {
+		if (src.length != width)
+			throw new IllegalArgumentException(String.format(
+					"Aggregate of %d bytes does not fit a %d byte slot", src.length, width));
+		at(slot).put(src);
+	}
+
+	/** Flush all dirty mapped pages to the file. */
+	@Override
+	public void force() {
+		for (MappedByteBuffer segment : segments)
+			segment.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		segments.clear();
+		channel.close();
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+
+package edu.rice.historytree.storage;
+
+import java.util.Arrays;
+
+/**
+ * Common base class for stores that keep their nodes in one open addressing
+ * table keyed by (layer,index) packed into a long.
+ *
+ * This class owns the keys and the valid flags. Subclasses keep whatever
+ * else they record for a node in arrays parallel to the table, and carry
+ * them over in moveSlots() when the table grows.
+ */
+public abstract class OpenAddressStoreBase extends StoreBase {
+	/** Marks an unused slot in keys. Real keys are never negative. */
+	private static final long EMPTY = -1L;
+
+	/** Packed (layer,index) of the node in each slot, or EMPTY. */
+	private long[] keys;
+	/** Whether the node in each slot has been marked valid. */
+	private boolean[] valid;
+	/** Number of slots in use. */
+	private int size;
+
+	/** @param capacity Initial number of slots, a power of two. */
+	OpenAddressStoreBase(int capacity) {
+		super();
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		valid = new boolean[capacity];
+		size = 0;
+	}
+
+	/**
+	 * The table has grown to capacity slots. Allocate new per-slot arrays
+	 * and move the entry in old slot i to slot to[i], skipping those where
+	 * to[i] is -1.
+	 */
+	abstract void moveSlots(int[] to, int capacity);
+
+	/** Empty the table. Subclasses also reset their per-slot arrays. */
+	void clearSlots() {
+		Arrays.fill(keys, EMPTY);
+		Arrays.fill(valid, false);
+		size = 0;
+		time = -1;
+	}
+
+	private int home(long key) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (keys.length - 1);
+	}
+
+	/** @return The slot holding key, or -1 if it is not in the table. */
+	final int find(long key) {
+		int mask = keys.length - 1;
+		for (int slot = home(key);; slot = (slot + 1) & mask) {
+			if (keys[slot] == key)
+				return slot;
+			if (keys[slot] == EMPTY)
+				return -1;
+		}
+	}
+
+	/**
+	 * @return The slot holding key, inserting it if needed. This may grow
+	 *         the table, so callers must fetch per-slot arrays afterwards.
+	 */
+	final int findOrInsert(long key) {
+		if (2 * (size + 1) > keys.length)
+			rehash(2 * keys.length);
+		return insert(key);
+	}
+
+	private int insert(long key) {
+		int mask = keys.length - 1;
+		int slot = home(key);
+		while (keys[slot] != key) {
+			if (keys[slot] == EMPTY) {
+				keys[slot] = key;
+				size++;
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldkeys = keys;
+		boolean[] oldvalid = valid;
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		valid = new boolean[capacity];
+		size = 0;
+		int[] to = new int[oldkeys.length];
+		for (int i = 0; i < oldkeys.length; i++) {
+			if (oldkeys[i] == EMPTY) {
+				to[i] = -1;
+				continue;
+			}
+			to[i] = insert(oldkeys[i]);
+			valid[to[i]] = oldvalid[i];
+		}
+		moveSlots(to, capacity);
+	}
+
+	public boolean isAggValidAt(long coord) {
+		int slot = find(coord);
+		return slot >= 0 && valid[slot];
+	}
+
+	public void markValidAt(long coord) {
+		// findOrInsert may rehash, so it must run before the array is fetched.
+		int slot = findOrInsert(coord);
+		valid[slot] = true;
+	}
+
+	public void updateTime(long time) {
+		assert (time >= this.time);
+		this.time = time;
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.util.Arrays;
+
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * An array store for byte[] aggregates and values that keeps everything in a
+ * handful of primitive arrays instead of one object per node.
+ *
+ * Same layout and validity rules as ArrayStore: nodes are offset by their
+ * post-order index and any node may be valid or not. Aggregates of up to
+ * aggwidth bytes live in fixed-width slots of a single slab, validity is a
+ * bitmap, and leaf values are appended to a byte arena indexed by leaf. The
+ * arrays grow geometrically as nodes are marked valid, so appends do not
+ * allocate in the steady state.
+ *
+ * The slab is a single byte[], so the tree is limited to a power of two
+ * below 2^30/aggwidth leaves (16M leaves of SHA-256 aggregates), and the
+ * values to 2GB in all; see maxVersion(). Versions past it are rejected by
+ * updateTime() rather than overflowing an offset.
+ */
+public class PackedArrayStore extends StoreBase implements HistoryDataStoreInterface<byte[], byte[]> {
+	/** Largest array the JVM will allocate. */
+	private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+	/** Fixed slot width for aggregates. */
+	private final int aggwidth;
+	/** Most slots the slab can hold. */
+	private final int maxslots;
+	/** Aggregate slab. Offset into the array is the node's post-order index times aggwidth. */
+	private byte[] aggslab;
+	/** Length of the aggregate stored in each slot; 0 when none has been set. */
+	private byte[] agglen;
+	/** Bitmap of which aggs are valid, indexed by post-order index. */
+	private long[] aggvalid;
+	/** Number of slots the slab currently holds. */
+	private int slots;
+
+	/** Concatenated leaf values. */
+	private byte[] arena;
+	/** Bytes of the arena in use. */
+	private int arenaused;
+	/** Offset in the arena of each leaf's value. */
+	private int[] valstart;
+	/** Length of each leaf's value, or -1 if the leaf has no value. */
+	private int[] vallen;
+
+	/** Make a store for aggregates of at most 32 bytes. */
+	public PackedArrayStore() {
+		this(MappedAppendOnlyStore.SHA256_WIDTH);
+	}
+
+	/** Make a store for aggregates of at most aggwidth bytes. */
+	public PackedArrayStore(int aggwidth) {
+		super();
+		if (aggwidth <= 0 || aggwidth > 255)
+			throw new IllegalArgumentException("Aggregate width must be in [1,255]");
+		this.aggwidth = aggwidth;
+		this.maxslots = MAX_ARRAY / aggwidth;
+		this.slots = 0;
+		this.aggslab = new byte[0];
+		this.agglen = new byte[0];
+		this.aggvalid = new long[1];
+		this.arena = new byte[64];
+		this.arenaused = 0;
+		this.valstart = new int[0];
+		this.vallen = new int[0];
+	}
+
+	@Override
+	public NodeCursor<byte[], byte[]> makeRoot(int layer) {
+		return new NodeCursor<byte[], byte[]>(this, layer, 0);
+	}
+
+	@Override
+	public byte[] getAgg(NodeCursor<byte[], byte[]> node) {
+		int index = (int) node.computeIndex();
+		assert (index >= 0);
+		if (index >= slots || agglen[index] == 0)
+			return null;
+		int offset = index * aggwidth;
+		return Arrays.copyOfRange(aggslab, offset, offset + (agglen[index] & 0xff));
+	}
+
+	@Override
+	public void setAgg(NodeCursor<byte[], byte[]> node, byte[] a) {
+		assert (isAggValid(node));
+		if (a.length == 0 || a.length > aggwidth)
+			throw new IllegalArgumentException(String.format(
+					"Aggregate of %d bytes does not fit a %d byte slot", a.length, aggwidth));
+		int index = (int) node.computeIndex();
+		System.arraycopy(a, 0, aggslab, index * aggwidth, a.length);
+		agglen[index] = (byte) a.length;
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<byte[], byte[]> node) {
+		int index = (int) node.computeIndex();
+		return index < slots && (aggvalid[index >>> 6] & (1L << index)) != 0;
+	}
+
+	@Override
+	public void markValid(NodeCursor<byte[], byte[]> node) {
+		// As with ArrayStore, freezing a Merkle tree marks nodes past the current time valid.
+		int index = (int) node.computeIndex();
+		if (index >= slots)
+			growSlots(index + 1);
+		aggvalid[index >>> 6] |= 1L << index;
+	}
+
+	/**
+	 * Largest version this store can hold. A tree of n leaves has nodes with
+	 * post-order indices up to 2n, and freezing a Merkle tree marks nodes out
+	 * to the next power of two.
+	 */
+	public long maxVersion() {
+		return Long.highestOneBit(maxslots / 2) - 1;
+	}
+
+	/** Grow the aggregate arrays geometrically to hold at least needed slots. */
+	private void growSlots(int needed) {
+		if (needed > maxslots)
+			throw new IllegalArgumentException(String.format(
+					"Node %d does not fit a slab of %d byte slots", needed - 1, aggwidth));
+		slots = (int) Math.min(maxslots, Math.max(needed, slots + (long) (slots >> 1)));
+		aggslab = Arrays.copyOf(aggslab, slots * aggwidth);
+		agglen = Arrays.copyOf(agglen, slots);
+		aggvalid = Arrays.copyOf(aggvalid, (slots >>> 6) + 1);
+	}
+
+	@Override
+	public byte[] getVal(NodeCursor<byte[], byte[]> node) {
+		int leaf = (int) node.index();
+		if (vallen[leaf] < 0)
+			return null;
+		return Arrays.copyOfRange(arena, valstart[leaf], valstart[leaf] + vallen[leaf]);
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<byte[], byte[]> node) {
+		return vallen[(int) node.index()] >= 0;
+	}
+
+	@Override
+	public void setVal(NodeCursor<byte[], byte[]> node, byte[] v) {
+		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
+		assert (v != null);
+		long needed = (long) arenaused + v.length;
+		if (needed > MAX_ARRAY)
+			throw new IllegalArgumentException("Values do not fit a 2GB arena");
+		if (needed > arena.length)
+			arena = Arrays.copyOf(arena, (int) Math.min(MAX_ARRAY, Math.max(2L * arena.length, needed)));
+		System.arraycopy(v, 0, arena, arenaused, v.length);
+		int leaf = (int) node.index();
+		valstart[leaf] = arenaused;
+		vallen[leaf] = v.length;
+		arenaused += v.length;
+	}
+
+	@Override
+	public void updateTime(long time) {
+		assert (time > this.time);
+		checkArrayTime(time);
+		if (time > maxVersion())
+			throw new IllegalArgumentException(String.format(
+					"Version %d is too large for a slab of %d byte slots", time, aggwidth));
+		this.time = time;
+		// An extra +1 to handle hasVal's on extra nodes with emptyVal's inserted into a merkle tree.
+		int leaves = (int) time + 1 + 1;
+		if (leaves > valstart.length) {
+			int oldlen = valstart.length;
+			int newlen = (int) Math.min(MAX_ARRAY, Math.max(leaves, 2L * oldlen));
+			valstart = Arrays.copyOf(valstart, newlen);
+			vallen = Arrays.copyOf(vallen, newlen);
+			Arrays.fill(vallen, oldlen, newlen, -1);
+		}
+		// Unlike ArrayStore, aggregate slots are not reserved here but grown as nodes are marked valid.
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.util.Arrays;
+
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * A hash store for byte[] aggregates and values that allocates nothing per
+ * node.
+ *
+ * Like PathStore, nodes are kept in an open addressing table keyed by
+ * (layer,index) packed into a long. Unlike it, aggregates of up to aggwidth
+ * bytes are copied into fixed-width slots of one slab parallel to the table,
+ * and leaf values into a byte arena, so a sparse tree of any size is a
+ * handful of primitive arrays. Aimed at verifiers parsing many large pruned
+ * trees; clear() empties the store for reuse.
+ */
+public class PackedHashStore extends OpenAddressStoreBase implements HistoryDataStoreInterface<byte[], byte[]> {
+	private static final int INITIAL_CAPACITY = 128;
+
+	/** Fixed slot width for aggregates. */
+	private final int aggwidth;
+	/** Aggregate slab. The aggregate of the node in slot i is at i*aggwidth. */
+	private byte[] aggslab;
+	/** Length of the aggregate of the node in each slot; 0 when none has been set. */
+	private byte[] agglen;
+	/** Offset in the arena of the value of the node in each slot. */
+	private int[] valstart;
+	/** Length of the value of the node in each slot, or -1 if it has none. */
+	private int[] vallen;
+
+	/** Concatenated leaf values. */
+	private byte[] arena;
+	/** Bytes of the arena in use. */
+	private int arenaused;
+
+	/** Make a store for aggregates of at most 32 bytes. */
+	public PackedHashStore() {
+		this(MappedAppendOnlyStore.SHA256_WIDTH);
+	}
+
+	/** Make a store for aggregates of at most aggwidth bytes. */
+	public PackedHashStore(int aggwidth) {
+		super(INITIAL_CAPACITY);
+		if (aggwidth <= 0 || aggwidth > 255)
+			throw new IllegalArgumentException("Aggregate width must be in [1,255]");
+		this.aggwidth = aggwidth;
+		this.arena = new byte[256];
+		this.arenaused = 0;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		aggslab = new byte[capacity * aggwidth];
+		agglen = new byte[capacity];
+		valstart = new int[capacity];
+		vallen = new int[capacity];
+		Arrays.fill(vallen, -1);
+	}
+
+	/** Empty the store so that it can be reused for another tree. */
+	public void clear() {
+		clearSlots();
+		Arrays.fill(agglen, (byte) 0);
+		Arrays.fill(vallen, -1);
+		arenaused = 0;
+	}
+
+	/** Nodes are keyed by their packed coordinate. */
+	private static long key(NodeCursor<?, ?> node) {
+		return node.coord();
+	}
+
+	@Override
+	void moveSlots(int[] to, int capacity) {
+		byte[] oldslab = aggslab, oldlen = agglen;
+		int[] oldstart = valstart, oldvallen = vallen;
+		allocate(capacity);
+		for (int i = 0; i < to.length; i++) {
+			if (to[i] < 0)
+				continue;
+			agglen[to[i]] = oldlen[i];
+			System.arraycopy(oldslab, i * aggwidth, aggslab, to[i] * aggwidth, oldlen[i] & 0xff);
+			valstart[to[i]] = oldstart[i];
+			vallen[to[i]] = oldvallen[i];
+		}
+	}
+
+	@Override
+	public NodeCursor<byte[], byte[]> makeRoot(int layer) {
+		return new NodeCursor<byte[], byte[]>(this, layer, 0);
+	}
+
+	@Override
+	public byte[] getAgg(NodeCursor<byte[], byte[]> node) {
+		return getAggAt(key(node));
+	}
+
+	@Override
+	public byte[] getAggAt(long coord) {
+		int slot = find(coord);
+		if (slot < 0 || agglen[slot] == 0)
+			return null;
+		int offset = slot * aggwidth;
+		return Arrays.copyOfRange(aggslab, offset, offset + (agglen[slot] & 0xff));
+	}
+
+	@Override
+	public void setAgg(NodeCursor<byte[], byte[]> node, byte[] a) {
+		setAggAt(key(node), a);
+	}
+
+	@Override
+	public void setAggAt(long coord, byte[] a) {
+		assert (isAggValidAt(coord));
+		if (a.length == 0 || a.length > aggwidth)
+			throw new IllegalArgumentException(String.format(
+					"Aggregate of %d bytes does not fit a %d byte slot", a.length, aggwidth));
+		int slot = findOrInsert(coord);
+		System.arraycopy(a, 0, aggslab, slot * aggwidth, a.length);
+		agglen[slot] = (byte) a.length;
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<byte[], byte[]> node) {
+		return isAggValidAt(key(node));
+	}
+
+	@Override
+	public void markValid(NodeCursor<byte[], byte[]> node) {
+		markValidAt(key(node));
+	}
+
+	@Override
+	public byte[] getVal(NodeCursor<byte[], byte[]> node) {
+		int slot = find(key(node));
+		if (slot < 0 || vallen[slot] < 0)
+			return null;
+		return Arrays.copyOfRange(arena, valstart[slot], valstart[slot] + vallen[slot]);
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<byte[], byte[]> node) {
+		int slot = find(key(node));
+		return slot >= 0 && vallen[slot] >= 0;
+	}
+
+	@Override
+	public void setVal(NodeCursor<byte[], byte[]> node, byte[] v) {
+		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
+		assert (v != null);
+		int slot = findOrInsert(key(node));
+		if (arenaused + v.length > arena.length)
+			arena = Arrays.copyOf(arena, Math.max(2 * arena.length, arenaused + v.length));
+		System.arraycopy(v, 0, arena, arenaused, v.length);
+		valstart[slot] = arenaused;
+		vallen[slot] = v.length;
+		arenaused += v.length;
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.util.Arrays;
+
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * A small store for pruned trees.
+ *
+ * A pruned tree holds a few root to leaf paths and their siblings, a few dozen
+ * nodes. Rather than the two boxed-key HashMaps of HashStore, this keeps the
+ * nodes in one open addressing table keyed by (layer,index) packed into a
+ * long, with the aggregate and the value of a node in parallel arrays. After
+ * a pruned tree has been serialized, clear() empties the store so it can be
+ * reused for the next one without reallocating.
+ */
+public class PathStore<A, V> extends OpenAddressStoreBase implements HistoryDataStoreInterface<A, V> {
+	/** Initial number of slots; enough for a proof with a couple of paths. */
+	private static final int INITIAL_CAPACITY = 128;
+
+	/** Aggregate of the node in each slot. */
+	private Object[] aggs;
+	/** Value of the node in each slot, only ever set on leaves. */
+	private Object[] vals;
+
+	public PathStore() {
+		super(INITIAL_CAPACITY);
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		aggs = new Object[capacity];
+		vals = new Object[capacity];
+	}
+
+	/** Empty the store so that it can be reused for another pruned tree. */
+	public void clear() {
+		clearSlots();
+		Arrays.fill(aggs, null);
+		Arrays.fill(vals, null);
+	}
+
+	/** Nodes are keyed by their packed coordinate. */
+	private static long key(NodeCursor<?, ?> node) {
+		return node.coord();
+	}
+
+	@Override
+	void moveSlots(int[] to, int capacity) {
+		Object[] oldaggs = aggs, oldvals = vals;
+		allocate(capacity);
+		for (int i = 0; i < to.length; i++) {
+			if (to[i] < 0)
+				continue;
+			aggs[to[i]] = oldaggs[i];
+			vals[to[i]] = oldvals[i];
+		}
+	}
+
+	@Override
+	public NodeCursor<A, V> makeRoot(int layer) {
+		return new NodeCursor<A, V>(this, layer, 0);
+	}
+
+	@Override
+	public A getAgg(NodeCursor<A, V> node) {
+		return getAggAt(key(node));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public A getAggAt(long coord) {
+		int slot = find(coord);
+		return slot < 0 ? null : (A) aggs[slot];
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V getVal(NodeCursor<A, V> node) {
+		int slot = find(key(node));
+		return slot < 0 ? null : (V) vals[slot];
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<A, V> node) {
+		return getVal(node) != null;
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<A, V> node) {
+		return isAggValidAt(key(node));
+	}
+
+	@Override
+	public void markValid(NodeCursor<A, V> node) {
+		markValidAt(key(node));
+	}
+
+	@Override
+	public void setAgg(NodeCursor<A, V> node, A a) {
+		setAggAt(key(node), a);
+	}
+
+	@Override
+	public void setAggAt(long coord, A a) {
+		assert (isAggValidAt(coord));
+		int slot = findOrInsert(coord);
+		aggs[slot] = a;
+	}
+
+	@Override
+	public void setVal(NodeCursor<A, V> node, V v) {
+		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
+		assert (v != null);
+		int slot = findOrInsert(key(node));
+		vals[slot] = v;
+	}
+}
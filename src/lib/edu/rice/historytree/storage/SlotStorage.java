@@ -0,0 +1,41 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/** An array of fixed-width byte slots, either on the heap or in a mapped file. */
+interface SlotStorage extends Closeable {
+	/** Width of each slot in bytes. */
+	int width();
+
+	/** Make sure that slots [0,slots) can be read and written. */
+	void ensureCapacity(long slots) throws IOException;
+
+	/** Copy the contents of a slot into dst. */
+	void get(long slot, byte[] dst);
+
+	/** Overwrite a slot with src, which must be exactly one slot wide. */
+	void put(long slot, byte[] src);
+
+	/** Flush any dirty state to backing storage. */
+	void force();
+}
@@ -0,0 +1,408 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.google.protobuf.ByteString;
+
+import edu.rice.historytree.AggregationInterface;
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * A store for a history tree reopened from a snapshot file.
+ *
+ * The snapshot is memory mapped read-only and nothing is rehashed; aggregates
+ * and values are parsed from the mapping when they are asked for, so opening
+ * a snapshot takes the same time regardless of the size of the tree. Events
+ * appended after the snapshot are kept on the heap.
+ *
+ * Same validity rules as AppendOnlyArrayStore, so it only holds complete
+ * history trees, not pruned trees or Merkle trees.
+ *
+ * Opened read-only, the store holds nothing on the heap but the mapping, and
+ * any number of threads, and of processes mapping the same file, can read it
+ * at once. The pages are shared through the page cache, so each additional
+ * proof server costs no more memory than the proofs it is building.
+ *
+ * File format (big endian): a header of (MAGIC, FORMAT_VERSION, layout,
+ * version as a long, aggregator name as in DataOutput.writeUTF), padded to a
+ * multiple of 8 bytes. Then an index entry for every post-order slot in
+ * [0,2*version] and one for every leaf in [0,version], and finally the data
+ * the index points at. An index entry is (offset, length+1), with a length
+ * of 0 meaning that the node has no aggregate or the leaf no value.
+ */
+public class SnapshotStore<A, V> extends StoreBase implements
+		HistoryDataStoreInterface<A, V>, Closeable {
+	public static final int MAGIC = 0x48545350; // "HTSP"
+	public static final int FORMAT_VERSION = 1;
+	/** Nodes are indexed by NodeCursor.computeIndex(). The only layout so far. */
+	public static final int LAYOUT_POSTORDER = 1;
+	/** Bytes in an index entry. */
+	static final int ENTRY_SIZE = 12;
+
+	private final AggregationInterface<A, V> aggobj;
+	private final MappedReadOnlyFile file;
+	/** Version of the tree in the snapshot. */
+	private final long snapversion;
+	/** Offset of the first aggregate index entry. */
+	private final long aggindex;
+	/** Offset of the first value index entry. */
+	private final long valindex;
+	/**
+	 * Slots below this hold nodes that were frozen when the snapshot was
+	 * taken. Nothing is ever written to them again.
+	 */
+	private final long firstnewslot;
+
+	/** If set, nothing can be appended after the snapshot. */
+	private final boolean readonly;
+	/** Aggregates of the slots from firstnewslot on. */
+	private Object[] newaggs;
+	/** Values of the leaves after snapversion. */
+	private Object[] newvals;
+
+	/** Open a snapshot written by a SnapshotStore.Writer. */
+	public SnapshotStore(File snapshot, AggregationInterface<A, V> aggobj) throws IOException {
+		this(snapshot, aggobj, false);
+	}
+
+	/**
+	 * Open a snapshot written by a SnapshotStore.Writer.
+	 * 
+	 * @param readonly
+	 *            If set, the store rejects appends and is safe to read from
+	 *            many threads.
+	 */
+	public SnapshotStore(File snapshot, AggregationInterface<A, V> aggobj, boolean readonly) throws IOException {
+		super();
+		this.aggobj = aggobj;
+		this.readonly = readonly;
+		this.file = new MappedReadOnlyFile(snapshot);
+		if (file.length() < 22 || file.getInt(0) != MAGIC)
+			throw new IOException("Not a history tree snapshot: " + snapshot);
+		int format = file.getInt(4);
+		if (format != FORMAT_VERSION)
+			throw new IOException("Unknown snapshot format " + format);
+		if (file.getInt(8) != LAYOUT_POSTORDER)
+			throw new IOException("Unknown snapshot layout " + file.getInt(8));
+		this.snapversion = file.getLong(12);
+		int nameat = 22;
+		byte[] lenbytes = file.get(nameat - 2, 2);
+		int namelen = ((lenbytes[0] & 0xff) << 8) | (lenbytes[1] & 0xff);
+		if (nameat + namelen > file.length())
+			throw new IOException("Truncated history tree snapshot: " + snapshot);
+		String aggname = new String(file.get(nameat, namelen), StandardCharsets.UTF_8);
+		if (!aggname.equals(aggobj.getName()))
+			throw new IOException(String.format("Snapshot %s uses aggregator %s, not %s",
+					snapshot, aggname, aggobj.getName()));
+		this.aggindex = (nameat + namelen + 7) & ~7L;
+		this.valindex = aggindex + (long) ENTRY_SIZE * slots(snapversion);
+		if (valindex + (long) ENTRY_SIZE * (snapversion + 1) > file.length())
+			throw new IOException("Truncated history tree snapshot: " + snapshot);
+		this.firstnewslot = new NodeCursor<A, V>(this, 0, snapversion + 1).computeIndex();
+		this.newaggs = new Object[readonly ? 0 : 4];
+		this.newvals = new Object[readonly ? 0 : 4];
+		this.time = snapversion;
+	}
+
+	/** Length of the header, given the length of the encoded aggregator name. */
+	static long headerLength(int namelen) {
+		return (22 + namelen + 7) & ~7L;
+	}
+
+	/** Number of post-order slots used by a history tree at the given version. */
+	static long slots(long version) {
+		return version < 0 ? 0 : 2 * version + 1;
+	}
+
+	/** The version of the tree in the snapshot. */
+	public long snapshotVersion() {
+		return snapversion;
+	}
+
+	public boolean isReadOnly() {
+		return readonly;
+	}
+
+	private void checkWritable() {
+		if (readonly)
+			throw new UnsupportedOperationException("Snapshot was opened read-only");
+	}
+
+	/** Read the entry at pos; null if it records nothing. */
+	private ByteString readEntry(long pos) {
+		int len = file.getInt(pos + 8) - 1;
+		if (len < 0)
+			return null;
+		return ByteString.copyFrom(file.get(file.getLong(pos), len));
+	}
+
+	private boolean hasEntry(long pos) {
+		return file.getInt(pos + 8) != 0;
+	}
+
+	@Override
+	public NodeCursor<A, V> makeRoot(int layer) {
+		return new NodeCursor<A, V>(this, layer, 0);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public A getAgg(NodeCursor<A, V> node) {
+		long slot = node.computeIndex();
+		if (slot >= firstnewslot)
+			// Non-frozen nodes past the last one may be asked for, as in ArrayStoreBase.
+			return slot - firstnewslot < newaggs.length ? (A) newaggs[(int) (slot - firstnewslot)] : null;
+		ByteString data = readEntry(aggindex + (long) ENTRY_SIZE * slot);
+		return data == null ? null : aggobj.parseAgg(data);
+	}
+
+	@Override
+	public void setAgg(NodeCursor<A, V> node, A a) {
+		assert (isAggValid(node));
+		checkWritable();
+		long slot = node.computeIndex();
+		if (slot < firstnewslot)
+			throw new IllegalStateException("Frozen node " + node + " is already in the snapshot");
+		newaggs[(int) (slot - firstnewslot)] = a;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V getVal(NodeCursor<A, V> node) {
+		long leaf = node.index();
+		if (leaf > snapversion)
+			return leaf - snapversion - 1 < newvals.length ? (V) newvals[(int) (leaf - snapversion - 1)] : null;
+		ByteString data = readEntry(valindex + (long) ENTRY_SIZE * leaf);
+		return data == null ? null : aggobj.parseVal(data);
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<A, V> node) {
+		long leaf = node.index();
+		if (leaf > snapversion)
+			return leaf - snapversion - 1 < newvals.length && newvals[(int) (leaf - snapversion - 1)] != null;
+		return hasEntry(valindex + (long) ENTRY_SIZE * leaf);
+	}
+
+	@Override
+	public void setVal(NodeCursor<A, V> node, V v) {
+		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
+		assert (v != null);
+		checkWritable();
+		long leaf = node.index();
+		if (leaf <= snapversion)
+			throw new IllegalStateException("Leaf " + leaf + " is already in the snapshot");
+		newvals[(int) (leaf - snapversion - 1)] = v;
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<A, V> node) {
+		return node.index() <= time;
+	}
+
+	@Override
+	public void markValid(NodeCursor<A, V> node) {
+		assert (node.index() <= time);
+	}
+
+	/** Only the nodes frozen at the snapshot version can be valid. */
+	@Override
+	public boolean supportsMerkleTree() {
+		return false;
+	}
+
+	@Override
+	public void updateTime(long time) {
+		assert (time >= this.time);
+		if (time > snapversion)
+			checkWritable();
+		// Events after the snapshot are kept in heap arrays.
+		checkArrayTime(time - snapversion);
+		this.time = time;
+		int aggs = (int) (slots(time) - firstnewslot);
+		if (aggs > newaggs.length)
+			newaggs = Arrays.copyOf(newaggs, Math.max(aggs, 2 * newaggs.length));
+		int vals = (int) (time - snapversion);
+		if (vals > newvals.length)
+			newvals = Arrays.copyOf(newvals, Math.max(vals, 2 * newvals.length));
+	}
+
+	/** The mapping is released when the store is garbage collected. */
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Writes a snapshot file.
+	 *
+	 * Aggregates must be given in increasing slot order and values in
+	 * increasing leaf order; anything skipped is recorded as absent. The file
+	 * is written next to its final name and only renamed into place by
+	 * finish(), so a crash never leaves a partial snapshot behind.
+	 */
+	public static class Writer implements Closeable {
+		/** Size of each of the write buffers. */
+		private static final int BUFFER_SIZE = 1 << 16;
+
+		private final File target;
+		private final File tmpfile;
+		private final FileChannel channel;
+		private final long slots, leaves;
+		private final Section aggentries, valentries, data;
+		private long nextslot, nextleaf;
+		private boolean finished;
+
+		/** Start a snapshot of a tree at the given version. */
+		public Writer(File target, String aggname, long version) throws IOException {
+			this.target = target;
+			this.tmpfile = new File(target.getPath() + ".tmp");
+			this.channel = FileChannel.open(tmpfile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			this.slots = slots(version);
+			this.leaves = version + 1;
+			byte[] name = aggname.getBytes(StandardCharsets.UTF_8);
+			long headerlen = headerLength(name.length);
+
+			Section header = new Section(0);
+			header.putInt(MAGIC);
+			header.putInt(FORMAT_VERSION);
+			header.putInt(LAYOUT_POSTORDER);
+			header.putLong(version);
+			header.put(new byte[] { (byte) (name.length >>> 8), (byte) name.length });
+			header.put(name);
+			header.put(new byte[(int) (headerlen - 22 - name.length)]);
+			header.flush();
+
+			this.aggentries = new Section(headerlen);
+			this.valentries = new Section(headerlen + (long) ENTRY_SIZE * slots);
+			this.data = new Section(headerlen + (long) ENTRY_SIZE * (slots + leaves));
+			this.nextslot = 0;
+			this.nextleaf = 0;
+		}
+
+		/** Record the serialized aggregate of the node at the given post-order slot. */
+		public void putAgg(long slot, byte[] agg) throws IOException {
+			if (slot < nextslot || slot >= slots)
+				throw new IllegalArgumentException("Slot " + slot + " out of order or range");
+			for (; nextslot < slot; nextslot++)
+				aggentries.put(new byte[ENTRY_SIZE]);
+			putEntry(aggentries, agg);
+			nextslot++;
+		}
+
+		/** Record the serialized value of a leaf. */
+		public void putVal(long leaf, byte[] val) throws IOException {
+			if (leaf < nextleaf || leaf >= leaves)
+				throw new IllegalArgumentException("Leaf " + leaf + " out of order or range");
+			for (; nextleaf < leaf; nextleaf++)
+				valentries.put(new byte[ENTRY_SIZE]);
+			putEntry(valentries, val);
+			nextleaf++;
+		}
+
+		private void putEntry(Section entries, byte[] bytes) throws IOException {
+			entries.putLong(data.position());
+			entries.putInt(bytes.length + 1);
+			data.put(bytes);
+		}
+
+		/** Write out everything, force it to disk and move the snapshot into place. */
+		public void finish() throws IOException {
+			for (; nextslot < slots; nextslot++)
+				aggentries.put(new byte[ENTRY_SIZE]);
+			for (; nextleaf < leaves; nextleaf++)
+				valentries.put(new byte[ENTRY_SIZE]);
+			aggentries.flush();
+			valentries.flush();
+			data.flush();
+			channel.force(true);
+			channel.close();
+			Files.move(tmpfile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			finished = true;
+		}
+
+		/** Abandon the snapshot, unless finish() was called. */
+		@Override
+		public void close() throws IOException {
+			if (finished)
+				return;
+			channel.close();
+			tmpfile.delete();
+		}
+
+		/** A buffered, sequentially written region of the file. */
+		private class Section {
+			private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+			/** File offset that buf starts at. */
+			private long start;
+
+			Section(long start) {
+				this.start = start;
+			}
+
+			long position() {
+				return start + buf.position();
+			}
+
+			void putInt(int x) throws IOException {
+				if (buf.remaining() < 4)
+					flush();
+				buf.putInt(x);
+			}
+
+			void putLong(long x) throws IOException {
+				if (buf.remaining() < 8)
+					flush();
+				buf.putLong(x);
+			}
+
+			void put(byte[] bytes) throws IOException {
+				int off = 0;
+				while (off < bytes.length) {
+					if (!buf.hasRemaining())
+						flush();
+					int n = Math.min(buf.remaining(), bytes.length - off);
+					buf.put(bytes, off, n);
+					off += n;
+				}
+			}
+
+			void flush() throws IOException {
+				buf.flip();
+				while (buf.hasRemaining())
+					start += channel.write(buf, start);
+				buf.clear();
+			}
+		}
+	}
+}
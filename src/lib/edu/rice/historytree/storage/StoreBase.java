@@ -22,9 +22,23 @@ package edu.rice.historytree.storage;
 /** Base class used for the different stores I implement */
 public class StoreBase {
 	/** The current time // last index in the store */
-	protected int time;
+	protected long time;
 
 	StoreBase() {
 		time = -1;
 	}
+
+	/** Largest time a store that keeps its nodes in int-indexed arrays can hold. */
+	static final long MAX_ARRAY_TIME = (Integer.MAX_VALUE - 8) / 2 - 1;
+
+	/**
+	 * Stores that index arrays by post-order index or leaf call this from
+	 * updateTime(), so that the int casts of node indices in them cannot
+	 * overflow.
+	 */
+	static void checkArrayTime(long time) {
+		if (time > MAX_ARRAY_TIME)
+			throw new IllegalArgumentException(String.format(
+					"Version %d is too large for an array-backed store", time));
+	}
 }
@@ -0,0 +1,370 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.protobuf.ByteString;
+
+import edu.rice.historytree.AggregationInterface;
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * A store for very large history trees that moves old frozen nodes to disk.
+ *
+ * Leaves are grouped into segments of 2^segmentShift leaves. A segment holds
+ * every node whose last leaf is in the segment, which are the nodes that
+ * froze while the segment's leaves were appended, so once the next segment
+ * starts it never changes again. The segment being appended to and the
+ * hotSegments before it are kept in memory. Older segments are written to
+ * a directory as two files, one of aggregates and one of values, so that a
+ * proof that only needs aggregates never reads values. Each file is read back
+ * through an LRU cache of cachedSegments files shared by both kinds, which
+ * may be used by readers of TreeViews on other threads.
+ *
+ * Same validity rules as AppendOnlyArrayStore, so it only holds complete
+ * history trees, not pruned trees or Merkle trees.
+ */
+public class TieredStore<A, V> extends StoreBase implements
+		HistoryDataStoreInterface<A, V>, Closeable {
+	public static final int DEFAULT_SEGMENT_SHIFT = 16;
+	public static final int DEFAULT_HOT_SEGMENTS = 4;
+	public static final int DEFAULT_CACHED_SEGMENTS = 64;
+	/** The two files a segment is spilled into. */
+	private static final int AGGS = 0;
+	private static final int VALS = 1;
+
+	private final AggregationInterface<A, V> aggobj;
+	/** Where spilled segments are kept. */
+	private final File directory;
+	/** log2 of the number of leaves in a segment. */
+	private final int segmentShift;
+	/** Number of complete segments to keep in memory. */
+	private final int hotSegments;
+
+	/**
+	 * Directory of in memory segments, null once a segment has been spilled.
+	 * Only copied as it grows, never resized in place, so readers on other
+	 * threads always see a whole directory.
+	 */
+	private volatile HotSegment[] hot;
+	/** Number of segments started. */
+	private int segments;
+	/** Index of the oldest segment still in memory. */
+	private volatile int firsthot;
+	/** Recently read spilled files, keyed by cacheKey. Guarded by itself. */
+	private final LinkedHashMap<Long, ColdTable> cache;
+
+	/** Make a store with the default segment size and cache sizes. */
+	public TieredStore(File directory, AggregationInterface<A, V> aggobj) {
+		this(directory, aggobj, DEFAULT_SEGMENT_SHIFT, DEFAULT_HOT_SEGMENTS, DEFAULT_CACHED_SEGMENTS);
+	}
+
+	/**
+	 * @param directory
+	 *            An existing directory to write spilled segments into.
+	 * @param segmentShift
+	 *            log2 of the number of leaves in a segment.
+	 * @param hotSegments
+	 *            How many complete segments to keep in memory before spilling.
+	 * @param cachedSegments
+	 *            How many spilled segments to cache in memory.
+	 */
+	public TieredStore(File directory, AggregationInterface<A, V> aggobj,
+			int segmentShift, int hotSegments, final int cachedSegments) {
+		super();
+		if (segmentShift < 0 || segmentShift > 24)
+			throw new IllegalArgumentException("Segment shift must be in [0,24]");
+		this.aggobj = aggobj;
+		this.directory = directory;
+		this.segmentShift = segmentShift;
+		this.hotSegments = hotSegments;
+		this.hot = new HotSegment[4];
+		this.segments = 0;
+		this.firsthot = 0;
+		this.cache = new LinkedHashMap<Long, ColdTable>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, ColdTable> eldest) {
+				return size() > cachedSegments;
+			}
+		};
+	}
+
+	/** Post-order slot of the first node whose last leaf is the given one. */
+	private static long firstSlot(long leaf) {
+		return 2 * leaf - Long.bitCount(leaf);
+	}
+
+	/** Number of node slots in a segment. */
+	private int segmentSlots(int segment) {
+		long first = (long) segment << segmentShift;
+		return (int) (firstSlot(first + (1L << segmentShift)) - firstSlot(first));
+	}
+
+	/** The last leaf under a node. */
+	private static long lastLeaf(NodeCursor<?, ?> node) {
+		return node.index() + (1L << node.layer()) - 1;
+	}
+
+	/** Offset of a node within the segment holding it. */
+	private int slotInSegment(NodeCursor<A, V> node, int segment) {
+		return (int) (node.computeIndex() - firstSlot((long) segment << segmentShift));
+	}
+
+	@Override
+	public NodeCursor<A, V> makeRoot(int layer) {
+		return new NodeCursor<A, V>(this, layer, 0);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public A getAgg(NodeCursor<A, V> node) {
+		long last = lastLeaf(node);
+		// Not frozen yet, so no aggregate.
+		if (last > time)
+			return null;
+		int segment = (int) (last >>> segmentShift);
+		int slot = slotInSegment(node, segment);
+		HotSegment h = hotSegment(segment);
+		if (h != null)
+			return (A) h.aggs[slot];
+		ByteString data = cold(segment, AGGS).entry(slot);
+		return data == null ? null : aggobj.parseAgg(data);
+	}
+
+	@Override
+	public void setAgg(NodeCursor<A, V> node, A a) {
+		assert (isAggValid(node));
+		int segment = (int) (lastLeaf(node) >>> segmentShift);
+		if (segment < firsthot)
+			throw new IllegalStateException("Node " + node + " is in a spilled segment");
+		hot[segment].aggs[slotInSegment(node, segment)] = a;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V getVal(NodeCursor<A, V> node) {
+		long leaf = node.index();
+		int segment = (int) (leaf >>> segmentShift);
+		int offset = (int) leaf & ((1 << segmentShift) - 1);
+		HotSegment h = hotSegment(segment);
+		if (h != null)
+			return (V) h.vals[offset];
+		ByteString data = cold(segment, VALS).entry(offset);
+		return data == null ? null : aggobj.parseVal(data);
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<A, V> node) {
+		long leaf = node.index();
+		int segment = (int) (leaf >>> segmentShift);
+		int offset = (int) leaf & ((1 << segmentShift) - 1);
+		HotSegment h = hotSegment(segment);
+		if (h != null)
+			return h.vals[offset] != null;
+		return cold(segment, VALS).has(offset);
+	}
+
+	@Override
+	public void setVal(NodeCursor<A, V> node, V v) {
+		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
+		assert (v != null);
+		long leaf = node.index();
+		int segment = (int) (leaf >>> segmentShift);
+		if (segment < firsthot)
+			throw new IllegalStateException("Leaf " + leaf + " is in a spilled segment");
+		hot[segment].vals[(int) leaf & ((1 << segmentShift) - 1)] = v;
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<A, V> node) {
+		return node.index() <= time;
+	}
+
+	@Override
+	public void markValid(NodeCursor<A, V> node) {
+		assert (node.index() <= time);
+	}
+
+	/** Only nodes up to the current time can be valid. */
+	@Override
+	public boolean supportsMerkleTree() {
+		return false;
+	}
+
+	@Override
+	public void updateTime(long time) {
+		assert (time > this.time);
+		this.time = time;
+		int segment = (int) (time >>> segmentShift);
+		while (segments <= segment) {
+			HotSegment[] dir = hot;
+			if (segments == dir.length)
+				dir = Arrays.copyOf(dir, 2 * dir.length);
+			dir[segments] = new HotSegment(segmentSlots(segments), 1 << segmentShift);
+			hot = dir;
+			segments++;
+			// Segments before the new one are complete.
+			while (segments - 1 - firsthot > hotSegments)
+				spill();
+		}
+	}
+
+	/**
+	 * The in memory segment, or null if it has been spilled. A reader on
+	 * another thread may pass the firsthot check just before the segment is
+	 * spilled, so the directory entry is checked too; either way, the
+	 * segment's files are complete before firsthot moves past it.
+	 */
+	private HotSegment hotSegment(int segment) {
+		if (segment < firsthot)
+			return null;
+		return hot[segment];
+	}
+
+	/** Write the oldest in memory segment to disk and drop it from memory. */
+	@SuppressWarnings("unchecked")
+	private void spill() {
+		HotSegment segment = hot[firsthot];
+		ArrayList<ByteString> aggs = new ArrayList<ByteString>(segment.aggs.length);
+		for (Object agg : segment.aggs)
+			aggs.add(agg == null ? null : aggobj.serializeAgg((A) agg));
+		ArrayList<ByteString> vals = new ArrayList<ByteString>(segment.vals.length);
+		for (Object val : segment.vals)
+			vals.add(val == null ? null : aggobj.serializeVal((V) val));
+		writeTable(segmentFile(firsthot, AGGS), aggs);
+		writeTable(segmentFile(firsthot, VALS), vals);
+		firsthot++;
+		hot[firsthot - 1] = null;
+	}
+
+	/** Write a count, the length of each entry plus one (0 for none), then the entries. */
+	private static void writeTable(File file, ArrayList<ByteString> entries) {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)))) {
+			out.writeInt(entries.size());
+			for (ByteString entry : entries)
+				out.writeInt(entry == null ? 0 : entry.size() + 1);
+			for (ByteString entry : entries)
+				if (entry != null)
+					entry.writeTo(out);
+		} catch (IOException e) {
+			throw new Error("Unable to spill history tree segment", e);
+		}
+	}
+
+	private File segmentFile(int segment, int kind) {
+		return new File(directory, String.format("segment-%08d.%s", segment, kind == AGGS ? "agg" : "val"));
+	}
+
+	/** Get one file of a spilled segment, reading it in if it is not in the cache. */
+	private ColdTable cold(int segment, int kind) {
+		Long key = 2L * segment + kind;
+		synchronized (cache) {
+			ColdTable out = cache.get(key);
+			if (out != null)
+				return out;
+		}
+		// Read outside the lock; two readers missing at once just read it twice.
+		ColdTable out;
+		try (RandomAccessFile file = new RandomAccessFile(segmentFile(segment, kind), "r")) {
+			byte[] bytes = new byte[(int) file.length()];
+			file.readFully(bytes);
+			out = new ColdTable(bytes);
+		} catch (IOException e) {
+			throw new Error("Unable to read history tree segment", e);
+		}
+		synchronized (cache) {
+			cache.put(key, out);
+		}
+		return out;
+	}
+
+	/** Number of segments that have been spilled to disk. */
+	public int spilledSegments() {
+		return firsthot;
+	}
+
+	/** Drop the cache. The segment files are left in the directory. */
+	@Override
+	public void close() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/** A segment in memory. */
+	private static class HotSegment {
+		final Object[] aggs;
+		final Object[] vals;
+
+		HotSegment(int slots, int leaves) {
+			this.aggs = new Object[slots];
+			this.vals = new Object[leaves];
+		}
+	}
+
+	/** The aggregates or values of a spilled segment read back from disk. */
+	private static class ColdTable {
+		private final byte[] bytes;
+		/** Offset of each entry in bytes, or -1 for none. */
+		private final int[] start;
+		private final int[] length;
+
+		ColdTable(byte[] bytes) {
+			ByteBuffer buf = ByteBuffer.wrap(bytes);
+			this.bytes = bytes;
+			int count = buf.getInt();
+			this.start = new int[count];
+			this.length = new int[count];
+			int offset = 4 + 4 * count;
+			for (int i = 0; i < count; i++) {
+				int len = buf.getInt() - 1;
+				start[i] = len < 0 ? -1 : offset;
+				length[i] = Math.max(len, 0);
+				offset += length[i];
+			}
+		}
+
+		boolean has(int i) {
+			return start[i] >= 0;
+		}
+
+		ByteString entry(int i) {
+			if (start[i] < 0)
+				return null;
+			return ByteString.copyFrom(bytes, start[i], length[i]);
+		}
+	}
+}
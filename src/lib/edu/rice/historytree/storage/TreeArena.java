@@ -0,0 +1,142 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A pool of fixed-size chunks of off-heap memory, shared by the ArenaStores
+ * of many small trees.
+ *
+ * Memory is taken from the OS in blocks of many chunks, either direct
+ * buffers or consecutive regions of a memory mapped file. Chunks are handed
+ * out zeroed, and chunks freed by a closed store are reused. Nothing in the
+ * arena is seen by the garbage collector except the blocks themselves.
+ *
+ * allocate() and free() may be called from any thread. Each chunk is only
+ * read and written by the store that owns it.
+ */
+public class TreeArena implements Closeable {
+	/** Default log2 of the chunk size in bytes. */
+	public static final int DEFAULT_CHUNK_SHIFT = 12;
+	/** log2 of the number of chunks in a block. */
+	private static final int BLOCK_SHIFT = 10;
+
+	private final int chunkShift;
+	/** Backing file, or null for direct buffers. */
+	private final FileChannel channel;
+	/** Blocks of chunks. Only ever grows, so it can be read without the lock. */
+	private volatile ByteBuffer[] blocks;
+	/** Stack of freed chunks. */
+	private int[] free;
+	private int freecount;
+	/** Number of chunks ever handed out, including freed ones. */
+	private int used;
+
+	/** Make an arena of direct buffers with the default chunk size. */
+	public TreeArena() {
+		this(DEFAULT_CHUNK_SHIFT);
+	}
+
+	/** Make an arena of direct buffers with chunks of 2^chunkShift bytes. */
+	public TreeArena(int chunkShift) {
+		this.chunkShift = checkShift(chunkShift);
+		this.channel = null;
+		this.blocks = new ByteBuffer[0];
+		this.free = new int[16];
+	}
+
+	/** Make an arena kept in a memory mapped file, replacing anything in the file. */
+	public TreeArena(File file, int chunkShift) throws IOException {
+		this.chunkShift = checkShift(chunkShift);
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.blocks = new ByteBuffer[0];
+		this.free = new int[16];
+	}
+
+	private static int checkShift(int chunkShift) {
+		if (chunkShift < 6 || chunkShift + BLOCK_SHIFT > 30)
+			throw new IllegalArgumentException("Chunk shift must be in [6," + (30 - BLOCK_SHIFT) + "]");
+		return chunkShift;
+	}
+
+	/** Size of each chunk in bytes. */
+	public int chunkSize() {
+		return 1 << chunkShift;
+	}
+
+	/** Get a zeroed chunk. */
+	public synchronized int allocate() {
+		if (freecount > 0) {
+			int chunk = free[--freecount];
+			ByteBuffer buf = at(chunk, 0);
+			for (int i = 0; i < chunkSize(); i += 8)
+				buf.putLong(0L);
+			return chunk;
+		}
+		if (used == blocks.length << BLOCK_SHIFT) {
+			int blockbytes = 1 << (chunkShift + BLOCK_SHIFT);
+			ByteBuffer[] grown = Arrays.copyOf(blocks, blocks.length + 1);
+			try {
+				grown[blocks.length] = channel == null ? ByteBuffer.allocateDirect(blockbytes)
+						: channel.map(FileChannel.MapMode.READ_WRITE, (long) blocks.length * blockbytes, blockbytes);
+			} catch (IOException e) {
+				throw new Error("Unable to grow mapped tree arena", e);
+			}
+			blocks = grown;
+		}
+		return used++;
+	}
+
+	/** Return a chunk to the arena. */
+	public synchronized void free(int chunk) {
+		if (freecount == free.length)
+			free = Arrays.copyOf(free, 2 * free.length);
+		free[freecount++] = chunk;
+	}
+
+	/** Number of chunks currently handed out. */
+	public synchronized int chunksInUse() {
+		return used - freecount;
+	}
+
+	/** Make a private view of the chunk positioned at the given offset into it. */
+	ByteBuffer at(int chunk, int offset) {
+		ByteBuffer buf = blocks[chunk >>> BLOCK_SHIFT].duplicate();
+		buf.position(((chunk & ((1 << BLOCK_SHIFT) - 1)) << chunkShift) + offset);
+		return buf;
+	}
+
+	/** Release the blocks. The arena's stores must not be used afterwards. */
+	@Override
+	public synchronized void close() throws IOException {
+		blocks = new ByteBuffer[0];
+		if (channel != null)
+			channel.close();
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append-only file of byte strings, addressed by their offset.
+ *
+ * Appends are collected in a write buffer; reads of data still in the buffer
+ * are served from it. Nothing is forced to disk unless force() is called.
+ */
+class ValueLog implements Closeable {
+	/** Size of the write buffer. */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	/** File offset that the write buffer starts at. */
+	private long flushed;
+
+	/** Open a value log, discarding anything already in the file. */
+	ValueLog(File file) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		this.flushed = 0;
+	}
+
+	/** Number of bytes in the log. */
+	long length() {
+		return flushed + buffer.position();
+	}
+
+	/** Append data to the log and return its offset. */
+	long append(byte[] data) throws IOException {
+		long offset = length();
+		if (data.length > buffer.remaining()) {
+			flush();
+			if (data.length > buffer.capacity()) {
+				ByteBuffer big = ByteBuffer.wrap(data);
+				while (big.hasRemaining())
+					flushed += channel.write(big, flushed);
+				return offset;
+			}
+		}
+		buffer.put(data);
+		return offset;
+	}
+
+	/** Read len bytes at the given offset. */
+	byte[] read(long offset, int len) throws IOException {
+		byte[] out = new byte[len];
+		if (offset >= flushed) {
+			System.arraycopy(buffer.array(), (int) (offset - flushed), out, 0, len);
+			return out;
+		}
+		if (offset + len > flushed)
+			flush();
+		ByteBuffer dst = ByteBuffer.wrap(out);
+		while (dst.hasRemaining()) {
+			int n = channel.read(dst, offset + dst.position());
+			if (n < 0)
+				throw new IOException("Value log ends before offset " + (offset + len));
+		}
+		return out;
+	}
+
+	/** Write out the buffer. */
+	void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			flushed += channel.write(buffer, flushed);
+		buffer.clear();
+	}
+
+	/** Write out the buffer and force the log to disk. */
+	void force() throws IOException {
+		flush();
+		channel.force(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		channel.close();
+	}
+}
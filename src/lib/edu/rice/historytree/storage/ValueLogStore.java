@@ -0,0 +1,176 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * A store that keeps leaf values in an append-only log file instead of in
+ * memory.
+ *
+ * Aggregates are kept in another store, which never sees a value. For each
+ * leaf only the (offset,length) of its value in the log is kept, and getVal()
+ * reads the value back from the log, so the memory used by a tree depends on
+ * the number of events rather than on their size.
+ *
+ * The log is scratch space for the life of the store; it is not a durable
+ * record of the tree (see DurableHistoryTree for that).
+ */
+public class ValueLogStore<A> implements HistoryDataStoreInterface<A, byte[]>, Closeable {
+	/** Store holding the aggregates. */
+	private final HistoryDataStoreInterface<A, byte[]> aggstore;
+	private final ValueLog log;
+	/** Offset in the log of each leaf's value. */
+	private long[] valoffset;
+	/** Length of each leaf's value, or -1 if the leaf has no value. */
+	private int[] vallen;
+
+	/**
+	 * @param aggstore
+	 *            An empty store to keep the aggregates in.
+	 * @param logfile
+	 *            File to keep the values in. Any existing contents are
+	 *            discarded.
+	 */
+	public ValueLogStore(HistoryDataStoreInterface<A, byte[]> aggstore, File logfile)
+			throws IOException {
+		this.aggstore = aggstore;
+		this.log = new ValueLog(logfile);
+		this.valoffset = new long[0];
+		this.vallen = new int[0];
+	}
+
+	@Override
+	public NodeCursor<A, byte[]> makeRoot(int layer) {
+		return new NodeCursor<A, byte[]>(this, layer, 0);
+	}
+
+	@Override
+	public A getAgg(NodeCursor<A, byte[]> node) {
+		return aggstore.getAgg(node);
+	}
+
+	@Override
+	public void setAgg(NodeCursor<A, byte[]> node, A a) {
+		aggstore.setAgg(node, a);
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<A, byte[]> node) {
+		return aggstore.isAggValid(node);
+	}
+
+	@Override
+	public void markValid(NodeCursor<A, byte[]> node) {
+		aggstore.markValid(node);
+	}
+
+	@Override
+	public A getAggAt(long coord) {
+		return aggstore.getAggAt(coord);
+	}
+
+	@Override
+	public void setAggAt(long coord, A a) {
+		aggstore.setAggAt(coord, a);
+	}
+
+	@Override
+	public boolean isAggValidAt(long coord) {
+		return aggstore.isAggValidAt(coord);
+	}
+
+	@Override
+	public void markValidAt(long coord) {
+		aggstore.markValidAt(coord);
+	}
+
+	@Override
+	public byte[] getVal(NodeCursor<A, byte[]> node) {
+		int leaf = (int) node.index();
+		if (leaf >= vallen.length || vallen[leaf] < 0)
+			return null;
+		try {
+			return log.read(valoffset[leaf], vallen[leaf]);
+		} catch (IOException e) {
+			throw new Error("Unable to read value log", e);
+		}
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<A, byte[]> node) {
+		int leaf = (int) node.index();
+		return leaf < vallen.length && vallen[leaf] >= 0;
+	}
+
+	@Override
+	public void setVal(NodeCursor<A, byte[]> node, byte[] v) {
+		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
+		assert (v != null);
+		int leaf = (int) node.index();
+		ensureLeaves(leaf + 1);
+		try {
+			valoffset[leaf] = log.append(v);
+		} catch (IOException e) {
+			throw new Error("Unable to append to value log", e);
+		}
+		vallen[leaf] = v.length;
+	}
+
+	/** Make room for at least the given number of leaves. */
+	private void ensureLeaves(int leaves) {
+		if (leaves <= vallen.length)
+			return;
+		int oldlen = vallen.length;
+		int newlen = Math.max(leaves, 2 * oldlen);
+		valoffset = Arrays.copyOf(valoffset, newlen);
+		vallen = Arrays.copyOf(vallen, newlen);
+		Arrays.fill(vallen, oldlen, newlen, -1);
+	}
+
+	@Override
+	public boolean supportsMerkleTree() {
+		return aggstore.supportsMerkleTree();
+	}
+
+	@Override
+	public void updateTime(long time) {
+		StoreBase.checkArrayTime(time);
+		aggstore.updateTime(time);
+		// An extra +1 to handle hasVal's on extra nodes with emptyVal's inserted into a merkle tree.
+		ensureLeaves((int) time + 2);
+	}
+
+	/** Force the value log to disk. */
+	public void force() throws IOException {
+		log.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		log.close();
+	}
+}
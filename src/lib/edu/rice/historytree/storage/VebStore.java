@@ -0,0 +1,197 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * A store for fixed-width byte[] aggregates that lays nodes out in van Emde
+ * Boas order, either on the heap or in a memory mapped file.
+ *
+ * The layout is that of a complete tree of HEIGHT levels. That tree is split
+ * at half its height into a top tree and 2^(HEIGHT/2) bottom trees, each
+ * stored contiguously, the top tree first, and each of those is laid out the
+ * same way recursively. Any root to leaf path then crosses O(log_B n) blocks
+ * of size B, whatever the cache line or page size is. As the layout is
+ * anchored at the leaves, a growing tree only ever extends the slot space to
+ * the right; the sparse top of the layout costs nothing until it is written.
+ *
+ * Same validity rules as ArrayStore; any node may be valid or not.
+ */
+public class VebStore<V> extends StoreBase implements HistoryDataStoreInterface<byte[], V>, Closeable {
+	/** Height of the complete tree the layout is computed for; enough for any int leaf index. */
+	static final int HEIGHT = 32;
+
+	/** The slots holding the aggregates, offset by van Emde Boas position. */
+	private final SlotStorage aggslots;
+	/** Bitmap of which aggs are valid, offset by van Emde Boas position. */
+	private long[] aggvalid;
+	/** Bitmap of which aggs have been set, offset by van Emde Boas position. */
+	private long[] aggwritten;
+	/** Record the val for a node. Offset into the array is the leaf node's index. */
+	private final ArrayList<V> valstore;
+
+	/** Make a heap store for 32 byte aggregates. */
+	public VebStore() {
+		this(MappedAppendOnlyStore.SHA256_WIDTH);
+	}
+
+	/** Make a heap store for aggwidth byte aggregates. */
+	public VebStore(int aggwidth) {
+		this(new HeapSlotChunks(aggwidth, HeapSlotChunks.DEFAULT_CHUNK_SHIFT));
+	}
+
+	/** Make a store for aggwidth byte aggregates, kept in the given memory mapped file. */
+	public VebStore(File file, int aggwidth) throws IOException {
+		this(new MappedSlotFile(file, aggwidth, MappedSlotFile.DEFAULT_SEGMENT_SHIFT));
+	}
+
+	private VebStore(SlotStorage aggslots) {
+		super();
+		this.aggslots = aggslots;
+		this.aggvalid = new long[1];
+		this.aggwritten = new long[1];
+		this.valstore = new ArrayList<V>(5);
+	}
+
+	/** Position of the node at (layer,index) in the van Emde Boas layout of a tree of HEIGHT levels. */
+	static long position(int layer, long index) {
+		long base = 0;
+		int h = HEIGHT; // Height of the current (sub)tree.
+		int l = layer; // Level within the current subtree, 0 at its leaves.
+		long j = index >>> layer; // Node number within that level of the current subtree.
+		while (h > 1) {
+			int hb = (h + 1) / 2, ht = h - hb;
+			if (l >= hb) {
+				// In the top tree, which is stored first.
+				l -= hb;
+				h = ht;
+			} else {
+				// In one of the bottom trees, stored one after the other after the top tree.
+				int shift = hb - 1 - l;
+				base += ((1L << ht) - 1) + (j >>> shift) * ((1L << hb) - 1);
+				j &= (1L << shift) - 1;
+				h = hb;
+			}
+		}
+		return base;
+	}
+
+	private static boolean getBit(long[] bits, long pos) {
+		int word = (int) (pos >>> 6);
+		return word < bits.length && (bits[word] & (1L << pos)) != 0;
+	}
+
+	private static long[] setBit(long[] bits, long pos) {
+		int word = (int) (pos >>> 6);
+		if (word >= bits.length)
+			bits = Arrays.copyOf(bits, Math.max(word + 1, 2 * bits.length));
+		bits[word] |= 1L << pos;
+		return bits;
+	}
+
+	@Override
+	public NodeCursor<byte[], V> makeRoot(int layer) {
+		return new NodeCursor<byte[], V>(this, layer, 0);
+	}
+
+	@Override
+	public byte[] getAgg(NodeCursor<byte[], V> node) {
+		long pos = position(node.layer(), node.index());
+		if (!getBit(aggwritten, pos))
+			return null;
+		byte[] out = new byte[aggslots.width()];
+		aggslots.get(pos, out);
+		return out;
+	}
+
+	@Override
+	public void setAgg(NodeCursor<byte[], V> node, byte[] a) {
+		assert (isAggValid(node));
+		long pos = position(node.layer(), node.index());
+		try {
+			aggslots.ensureCapacity(pos + 1);
+		} catch (IOException e) {
+			throw new Error("Unable to grow aggregate slots", e);
+		}
+		aggslots.put(pos, a);
+		aggwritten = setBit(aggwritten, pos);
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<byte[], V> node) {
+		return getBit(aggvalid, position(node.layer(), node.index()));
+	}
+
+	@Override
+	public void markValid(NodeCursor<byte[], V> node) {
+		aggvalid = setBit(aggvalid, position(node.layer(), node.index()));
+	}
+
+	@Override
+	public V getVal(NodeCursor<byte[], V> node) {
+		return valstore.get((int) node.index());
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<byte[], V> node) {
+		return valstore.get((int) node.index()) != null;
+	}
+
+	@Override
+	public void setVal(NodeCursor<byte[], V> node, V v) {
+		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
+		assert (v != null);
+		valstore.set((int) node.index(), v);
+	}
+
+	/** Aggregates must fill their slot, and emptyAgg() is shorter than most. */
+	@Override
+	public boolean supportsMerkleTree() {
+		return false;
+	}
+
+	@Override
+	public void updateTime(long time) {
+		assert (time > this.time);
+		// The layout is of a tree of HEIGHT levels and the values are in an ArrayList.
+		checkArrayTime(time);
+		this.time = time;
+		while (time + 1 > valstore.size())
+			valstore.add(null);
+	}
+
+	/** Flush the aggregates to backing storage, if there is any. */
+	public void force() {
+		aggslots.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		aggslots.close();
+	}
+}
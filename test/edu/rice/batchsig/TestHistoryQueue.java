@@ -1,5 +1,8 @@
 package edu.rice.batchsig;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.junit.Test;
 
 import edu.rice.batchsig.HistoryQueue;
@@ -83,6 +86,47 @@ public class TestHistoryQueue extends TestCase {
 		assertEquals(0,msg8.getSignatureBlob().getSpliceHintCount());
 		assertEquals(5,msg9.getSignatureBlob().getSpliceHint(0));
 	}
+	@Test
+	/** A queue restarted on the same log keeps its tree, treeid and splice points. */
+	public void testDurableRestart() throws IOException {
+		File log = File.createTempFile("histqueue", ".log");
+		log.deleteOnExit();
+		log.delete();
+		DigestPrimitive prims = new DigestPrimitive();
+		// Recipients are recognized after a restart by value, not identity.
+		Object target = "recipient";
+
+		HistoryQueue signqueue = new HistoryQueue(prims, log);
+		MessageWrap msg0 = new MessageWrap(1000).setRecipient(target);
+		MessageWrap msg1 = new MessageWrap(1001).setRecipient(target);
+		signqueue.add(msg0);
+		signqueue.add(msg1);
+		signqueue.process();
+
+		HistoryQueue restarted = new HistoryQueue(prims, log);
+		MessageWrap msg2 = new MessageWrap(1002).setRecipient(target);
+		restarted.add(msg2);
+		restarted.process();
+
+		assertEquals(2, msg2.getSignatureBlob().getLeaf());
+		assertEquals(msg0.getSignatureBlob().getTreeId(), msg2.getSignatureBlob().getTreeId());
+		assertEquals(1, msg2.getSignatureBlob().getSpliceHintCount());
+		assertEquals(1, msg2.getSignatureBlob().getSpliceHint(0));
+
+		// Restarting compacted the log, and the contact from the last run is kept again.
+		long compacted = log.length();
+		HistoryQueue again = new HistoryQueue(prims, log);
+		MessageWrap msg3 = new MessageWrap(1003).setRecipient(target);
+		MessageWrap msg4 = new MessageWrap(1004).setRecipient("other");
+		again.add(msg3);
+		again.add(msg4);
+		again.process();
+		assertEquals(3, msg3.getSignatureBlob().getLeaf());
+		assertEquals(2, msg3.getSignatureBlob().getSpliceHint(0));
+		assertEquals(0, msg4.getSignatureBlob().getSpliceHintCount());
+		assertTrue(log.length() < compacted + 200);
+	}
+
 	@Test
 	public void testVerify() {
 		DigestPrimitive prims = new DigestPrimitive();
@@ -1,5 +1,7 @@
 package edu.rice.batchsig;
 
+import java.util.function.UnaryOperator;
+
 import org.junit.Test;
 
 import edu.rice.batchsig.HistoryQueue;
@@ -7,6 +9,10 @@ import edu.rice.batchsig.MerkleQueue;
 import edu.rice.batchsig.ProcessQueue;
 import edu.rice.batchsig.SimpleQueue;
 import edu.rice.batchsig.VerifyQueue;
+import com.google.protobuf.ByteString;
+
+import edu.rice.historytree.generated.Serialization.HistNode;
+import edu.rice.historytree.generated.Serialization.PrunedTree;
 
 import junit.framework.TestCase;
 
@@ -59,6 +65,62 @@ public class TestSimpleQueue extends TestCase {
 		insertAndProcess(1000, new HistoryQueue(new DigestPrimitive()));
     }
 	
+	/**
+	 * Sign a message, mangle the tree in its proof, and check that each
+	 * verifier rejects it rather than throwing.
+	 */
+	void rejectMalformed(ProcessQueue signqueue, UnaryOperator<PrunedTree> mangle) {
+		MessageWrap msg = new MessageWrap(1001);
+		signqueue.add(msg);
+		signqueue.add(new MessageWrap(1002));
+		signqueue.process();
+		msg.signature = msg.signature.toBuilder()
+			.setTree(mangle.apply(msg.signature.getTree())).build();
+
+		msg.wantInValid();
+		VerifyQueue verifyqueue = new VerifyQueue(new DigestPrimitive());
+		verifyqueue.add(msg);
+		verifyqueue.process();
+		assertNull(msg.targetvalidity);
+
+		msg.wantInValid();
+		VerifyHisttreeSingle single = new VerifyHisttreeSingle(new DigestPrimitive());
+		single.add(msg);
+		single.process();
+		assertNull(msg.targetvalidity);
+	}
+
+	@Test
+	public void testRejectBadVersion() {
+		for (long version : new long[] {-1, Long.MIN_VALUE, 1L << 57}) {
+			UnaryOperator<PrunedTree> mangle = t -> t.toBuilder().setVersion(version).build();
+			rejectMalformed(new MerkleQueue(new DigestPrimitive()), mangle);
+			rejectMalformed(new HistoryQueue(new DigestPrimitive()), mangle);
+		}
+	}
+
+	/** Replace every aggregate in a serialized subtree. */
+	static HistNode replaceAggs(HistNode node, ByteString agg) {
+		HistNode.Builder b = node.toBuilder();
+		if (node.hasAgg())
+			b.setAgg(agg);
+		if (node.hasLeft())
+			b.setLeft(replaceAggs(node.getLeft(), agg));
+		if (node.hasRight())
+			b.setRight(replaceAggs(node.getRight(), agg));
+		return b.build();
+	}
+
+	@Test
+	public void testRejectBadAggregate() {
+		for (int length : new int[] {0, 33}) {
+			ByteString agg = ByteString.copyFrom(new byte[length]);
+			UnaryOperator<PrunedTree> mangle = t -> t.toBuilder().setRoot(replaceAggs(t.getRoot(), agg)).build();
+			rejectMalformed(new MerkleQueue(new DigestPrimitive()), mangle);
+			rejectMalformed(new HistoryQueue(new DigestPrimitive()), mangle);
+		}
+	}
+
 	@Test
 	public void testInsertAndProcessSimpleTwice() {
 		ProcessQueue queue = new SimpleQueue(new DigestPrimitive());
@@ -1,20 +1,36 @@
 package edu.rice.historytree;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 
+import edu.rice.historytree.TreeStats.Counter;
 import edu.rice.historytree.aggs.ConcatAgg;
+import edu.rice.historytree.aggs.InstrumentedAgg;
+import edu.rice.historytree.aggs.SHA256Agg;
 import edu.rice.historytree.aggs.SHA256AggB64;
 import edu.rice.historytree.generated.Serialization;
 import edu.rice.historytree.storage.AppendOnlyArrayStore;
 import edu.rice.historytree.storage.ArrayStore;
+import edu.rice.historytree.storage.ConcurrentStore;
+import edu.rice.historytree.storage.FastUtilsHashStore;
 import edu.rice.historytree.storage.HashStore;
+import edu.rice.historytree.storage.LayerArrayStore;
+import edu.rice.historytree.storage.PathStore;
 import junit.framework.TestCase;
 
 public class TestHistory extends TestCase {
@@ -62,6 +78,29 @@ public class TestHistory extends TestCase {
         return histtree;
 	}
 
+	@Test
+	public void testPackedCoordinates() {
+		HistoryDataStoreInterface<String,String> store = new HashStore<String,String>();
+		for (int layer = 1 ; layer < 6 ; layer++)
+			for (long index = 0 ; index < 200 ; index += 1L << layer) {
+				NodeCursor<String,String> node = new NodeCursor<String,String>(store, layer, index);
+				long coord = node.coord();
+				assertEquals(layer, NodeCursor.layerOf(coord));
+				assertEquals(index, NodeCursor.indexOf(coord));
+				assertEquals(node.computeIndex(), NodeCursor.computeIndex(coord));
+				assertEquals(node.getLeft().coord(), NodeCursor.leftOf(coord));
+				assertEquals(node.getRight().coord(), NodeCursor.rightOf(coord));
+				assertEquals(node.getLeft().getParent(null).coord(), coord);
+				assertEquals(node.getRight().getParent(null).coord(), coord);
+				assertEquals(node.isFrozen(index + 5), NodeCursor.isFrozen(coord, index + 5));
+			}
+		// Indices past 32 bits.
+		long coord = NodeCursor.pack(40, 3L << 40);
+		assertEquals(40, NodeCursor.layerOf(coord));
+		assertEquals(3L << 40, NodeCursor.indexOf(coord));
+		assertEquals(NodeCursor.pack(41, 2L << 40), NodeCursor.parentOf(coord));
+	}
+
 	@Test
 	public void testOnArrayStore() {
 		HistoryDataStoreInterface<String,String> store = new ArrayStore<String,String>();
@@ -77,6 +116,21 @@ public class TestHistory extends TestCase {
 		HistoryDataStoreInterface<String,String> store = new HashStore<String,String>();
 		doTestAppendOnStore(store);
 	}
+	@Test
+	public void testOnFastUtilsHashStore() {
+		HistoryDataStoreInterface<String,String> store = new FastUtilsHashStore<String,String>();
+		doTestAppendOnStore(store);
+	}
+	@Test
+	public void testOnPathStore() {
+		HistoryDataStoreInterface<String,String> store = new PathStore<String,String>();
+		doTestAppendOnStore(store);
+	}
+	@Test
+	public void testOnLayerArrayStore() {
+		HistoryDataStoreInterface<String,String> store = new LayerArrayStore<String,String>();
+		doTestAppendOnStore(store);
+	}
 
 	
 	HistoryTree<String, String> makeHistTree(int length) {
@@ -144,6 +198,60 @@ public class TestHistory extends TestCase {
 				concatAgg.aggChildren(tree.leaf(6).getAgg(),tree.leaf(7).getAgg())), 
 				tree.getAggAtVersion(leaf5parentParent, 7));		
 	}
+
+	@Test
+	public void testRootAggCache() throws Exception {
+		TreeStats stats = new TreeStats();
+		AggregationInterface<String,String> aggobj = new InstrumentedAgg<String,String>(new ConcatAgg(), stats);
+		HistoryTree<String,String> tree = new HistoryTree<String,String>(aggobj, new AppendOnlyArrayStore<String,String>());
+		for (int i = 0; i < 12; i++)
+			tree.append(NAMES[i]);
+
+		// The current root is hashed once.
+		assertEquals(results[11], tree.agg());
+		long hashed = stats.snapshot().get(Counter.AGG_CHILDREN);
+		assertEquals(results[11], tree.agg());
+		assertEquals(hashed, stats.snapshot().get(Counter.AGG_CHILDREN));
+
+		// Older versions are hashed every time, and do not displace the current root.
+		for (int k = 0; k < 2; k++) {
+			assertEquals(results[3], tree.aggV(3));
+			assertTrue(stats.snapshot().get(Counter.AGG_CHILDREN) > hashed);
+			hashed = stats.snapshot().get(Counter.AGG_CHILDREN);
+		}
+		assertEquals(results[11], tree.aggV(11));
+		assertEquals(hashed, stats.snapshot().get(Counter.AGG_CHILDREN));
+
+		// copyV forgets the root.
+		HistoryTree<String,String> pruned = tree.makePruned(new HashStore<String,String>());
+		pruned.copyV(tree, 2, false);
+		assertEquals(results[11], pruned.agg());
+		hashed = stats.snapshot().get(Counter.AGG_CHILDREN);
+		pruned.agg();
+		assertEquals(hashed, stats.snapshot().get(Counter.AGG_CHILDREN));
+		pruned.copyV(tree, 9, false);
+		assertEquals(results[11], pruned.agg());
+		assertTrue(stats.snapshot().get(Counter.AGG_CHILDREN) > hashed);
+
+		// So does parseTree.
+		HistoryTree<String,String> parsed = new HistoryTree<String,String>(aggobj, new HashStore<String,String>());
+		parsed.updateTime(11);
+		HistoryTree<String,String> first = tree.makePruned(new HashStore<String,String>());
+		first.copyV(tree, 2, false);
+		parsed.parseTree(first.serializeTree());
+		assertEquals(results[11], parsed.agg());
+		hashed = stats.snapshot().get(Counter.AGG_CHILDREN);
+		parsed.parseTree(pruned.serializeTree());
+		assertEquals(results[11], parsed.agg());
+		assertTrue(stats.snapshot().get(Counter.AGG_CHILDREN) > hashed);
+
+		// And retain, which moves the tree to a new store.
+		hashed = stats.snapshot().get(Counter.AGG_CHILDREN);
+		tree.retain(10, Arrays.asList(2L), new HashStore<String,String>());
+		assertEquals(results[11], tree.agg());
+		assertTrue(stats.snapshot().get(Counter.AGG_CHILDREN) > hashed);
+		assertEquals(results[2], tree.aggV(2));
+	}
 	
 	
 	@Test 
@@ -191,6 +299,70 @@ public class TestHistory extends TestCase {
 	}
 	
 	
+	/** A pruned tree for a leaf past 2^32, built directly, survives serialization. */
+	@Test
+	public void testLargeVersion() throws InvalidProtocolBufferException {
+		long version = (1L << 33) + 5;
+		assertEquals(34, TreeBase.log2(version));
+		HistoryTree<String,String> tree = new HistoryTree<String,String>(new ConcatAgg(), new HashStore<String,String>());
+		tree.updateTime(version);
+		tree.root = tree.datastore.makeRoot(TreeBase.log2(version));
+		NodeCursor<String,String> leaf = tree.forceLeaf(version);
+		assertEquals(2 * version - Long.bitCount(version), leaf.computeIndex());
+		leaf.setVal("Z");
+		leaf.setAgg("Z");
+		// Stub out the left sibling of every right child on the path.
+		for (NodeCursor<String,String> node = leaf; node.getParent(tree.root) != null; node = node.getParent(tree.root)) {
+			NodeCursor<String,String> parent = node.getParent(tree.root);
+			if (!node.equals(parent.getLeft()))
+				parent.forceLeft().setAgg(String.format("S%d", node.layer()));
+		}
+
+		HistoryTree<String,String> tree2 = parseSerialization(tree.serializeTree());
+		assertEquals(version, tree2.version());
+		assertEquals("Z", tree2.leaf(version).getVal());
+		assertEquals(tree.agg(), tree2.agg());
+	}
+
+	/** Versions that cannot be packed into a coordinate are rejected, not wrapped. */
+	@Test
+	public void testVersionOutOfRange() {
+		Serialization.PrunedTree.Builder builder = Serialization.PrunedTree.newBuilder();
+		makeHistTree(11).makePruned(new HashStore<String,String>()).serializeTree(builder);
+		Serialization.PrunedTree pb = builder.build();
+		for (long version : new long[] {-1, Long.MIN_VALUE, NodeCursor.MAX_INDEX, Long.MAX_VALUE}) {
+			HistoryTree<String,String> tree = new HistoryTree<String,String>(new ConcatAgg(), new HashStore<String,String>());
+			try {
+				tree.parseTree(pb.toBuilder().setVersion(version).build());
+				fail("Parsed version " + version);
+			} catch (IllegalArgumentException e) {
+			}
+			try {
+				tree.updateTime(version);
+				fail("Accepted version " + version);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		HistoryTree<String,String> tree = new HistoryTree<String,String>(new ConcatAgg(), new HashStore<String,String>());
+		tree.updateTime(NodeCursor.MAX_INDEX - 1);
+		assertEquals(NodeCursor.MAX_INDEX - 1, tree.version());
+	}
+
+	/** Trees written when the version was an int32 still parse. */
+	@Test
+	public void testInt32VersionCompatible() throws IOException {
+		HistoryTree<String,String> histtree = makeHistTree(11);
+		Serialization.PrunedTree.Builder builder = Serialization.PrunedTree.newBuilder();
+		histtree.serializeTree(builder);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+		out.writeInt32(Serialization.PrunedTree.VERSION_FIELD_NUMBER, (int) histtree.version());
+		out.writeMessage(Serialization.PrunedTree.ROOT_FIELD_NUMBER, builder.getRoot());
+		out.flush();
+		assertTrue(Arrays.equals(bytes.toByteArray(), histtree.serializeTree()));
+		assertEquals(histtree.agg(), parseSerialization(bytes.toByteArray()).agg());
+	}
+
 	public HistoryTree<String,String> parseSerialization(byte serialized[]) throws InvalidProtocolBufferException {
 		Serialization.PrunedTree.Builder builder = Serialization.PrunedTree.newBuilder();
 		Serialization.PrunedTree pb = builder.mergeFrom(serialized).build();
@@ -369,13 +541,13 @@ public class TestHistory extends TestCase {
 	@Test
 	public void testGetValueIndicies() {
 		HistoryTree<String, String> tree = this.makeHistTree(10);
-		List<Integer> res = tree.getValueIndicies(val -> {
+		List<Long> res = tree.getValueIndicies(val -> {
 			return val.equals("A") || val.equals("D") || val.equals("F");
 		});
-		List<Integer> correct = new ArrayList<Integer>();
-		correct.add(0);
-		correct.add(3);
-		correct.add(5);
+		List<Long> correct = new ArrayList<Long>();
+		correct.add(0L);
+		correct.add(3L);
+		correct.add(5L);
 		Assert.assertEquals(correct, res);
 	}
 	
@@ -391,16 +563,180 @@ public class TestHistory extends TestCase {
 			e.printStackTrace();
 			Assert.fail();
 		}
-		List<Integer> res = pruned.getValueIndicies(val -> {
+		List<Long> res = pruned.getValueIndicies(val -> {
 			return val.equals("A") || val.equals("D") || val.equals("F");
 		});
-		List<Integer> correct = new ArrayList<Integer>();
+		List<Long> correct = new ArrayList<Long>();
 		// since A is not in the pruned tree it should not be 
 		// returned as an index
-		correct.add(3);
-		correct.add(5);
+		correct.add(3L);
+		correct.add(5L);
 		Assert.assertEquals(correct, res);
 	}
-}
 
+	@Test
+	public void testDurableRecovery() throws IOException {
+		File log = File.createTempFile("histtree", ".log");
+		log.deleteOnExit();
+		HistoryTree<byte[],byte[]> reference = new HistoryTree<byte[],byte[]>(new SHA256Agg(), new ArrayStore<byte[],byte[]>());
+		DurableHistoryTree<byte[],byte[]> tree = DurableHistoryTree.create(log, 42, new SHA256Agg(), new ArrayStore<byte[],byte[]>());
+		for (int i = 0 ; i < 12 ; i++) {
+			reference.append(NAMES[i].getBytes());
+			tree.append(NAMES[i].getBytes());
+			if (i == 4 || i == 9)
+				tree.commit();
+		}
+		tree.close();
+		// Simulate a crash in the middle of writing a record.
+		RandomAccessFile raw = new RandomAccessFile(log, "rw");
+		raw.seek(raw.length());
+		raw.writeInt(3);
+		raw.writeInt(100);
+		raw.close();
+
+		DurableHistoryTree<byte[],byte[]> recovered = DurableHistoryTree.recover(log, new SHA256Agg(), new ArrayStore<byte[],byte[]>());
+		assertEquals(42, recovered.getTreeId());
+		assertEquals(9, recovered.version());
+		assertTrue(Arrays.equals(reference.aggV(9), recovered.agg()));
+
+		// Keeps going after the last good record.
+		recovered.append(NAMES[10].getBytes());
+		recovered.append(NAMES[11].getBytes());
+		recovered.commit();
+		recovered.close();
+		DurableHistoryTree<byte[],byte[]> again = DurableHistoryTree.recover(log, new SHA256Agg(), new ArrayStore<byte[],byte[]>());
+		assertEquals(11, again.version());
+		assertTrue(Arrays.equals(reference.agg(), again.agg()));
+		again.close();
+	}
+
+	@Test
+	public void testDurableCompaction() throws IOException, ProofError {
+		File log = File.createTempFile("histtree", ".log");
+		log.deleteOnExit();
+		HistoryTree<byte[],byte[]> reference = new HistoryTree<byte[],byte[]>(new SHA256Agg(), new AppendOnlyArrayStore<byte[],byte[]>());
+		DurableHistoryTree<byte[],byte[]> tree = DurableHistoryTree.create(log, 42, new SHA256Agg(), new HashStore<byte[],byte[]>());
+		// Enough events that replay appends them in more than one chunk.
+		ArrayList<byte[]> batch = new ArrayList<byte[]>();
+		for (int i = 0; i < 70000; i++) {
+			batch.add(String.format("Foo%d", i).getBytes());
+			reference.append(batch.get(batch.size() - 1));
+			if (batch.size() == 10000 || i == 69999) {
+				tree.appendAll(batch);
+				tree.commit(String.format("batch%d", i).getBytes());
+				batch.clear();
+			}
+		}
+		tree.close();
+		final ArrayList<String> annotations = new ArrayList<String>();
+		tree = DurableHistoryTree.recover(log, new SHA256Agg(), new HashStore<byte[],byte[]>(),
+				a -> annotations.add(new String(a)), ForkJoinPool.commonPool());
+		assertEquals(69999, tree.version());
+		assertTrue(Arrays.equals(reference.agg(), tree.agg()));
+		assertEquals(Arrays.asList("batch9999", "batch19999", "batch29999", "batch39999",
+				"batch49999", "batch59999", "batch69999"), annotations);
+
+		// Compacting leaves a log about the size of the retained tree.
+		long full = log.length();
+		tree.retain(69990, Arrays.asList(3L), new HashStore<byte[],byte[]>());
+		tree.compact("checkpoint".getBytes());
+		assertTrue(log.length() < full / 100);
+		tree.append(NAMES[0].getBytes());
+		reference.append(NAMES[0].getBytes());
+		tree.commit("last".getBytes());
+		tree.close();
+
+		annotations.clear();
+		DurableHistoryTree<byte[],byte[]> recovered = DurableHistoryTree.recover(log, new SHA256Agg(),
+				new HashStore<byte[],byte[]>(), a -> annotations.add(new String(a)), null);
+		assertEquals(Arrays.asList("checkpoint", "last"), annotations);
+		assertEquals(42, recovered.getTreeId());
+		assertEquals(70000, recovered.version());
+		assertTrue(Arrays.equals(reference.agg(), recovered.agg()));
+		for (long i : new long[] { 3, 69990, 70000 }) {
+			HistoryTree<byte[],byte[]> p1 = reference.makePruned(new HashStore<byte[],byte[]>());
+			p1.copyV(reference, i, i != 3);
+			HistoryTree<byte[],byte[]> p2 = recovered.makePruned(new HashStore<byte[],byte[]>());
+			p2.copyV(recovered, i, i != 3);
+			assertTrue(Arrays.equals(p1.serializeTree(), p2.serializeTree()));
+		}
+		assertNull(recovered.leaf(100));
+		recovered.close();
+	}
+
+	@Test
+	public void testRetain() throws ProofError {
+		HistoryTree<byte[],byte[]> reference = new HistoryTree<byte[],byte[]>(new SHA256Agg(), new AppendOnlyArrayStore<byte[],byte[]>());
+		HistoryTree<byte[],byte[]> tree = new HistoryTree<byte[],byte[]>(new SHA256Agg(), new AppendOnlyArrayStore<byte[],byte[]>());
+		for (int round = 0, next = 0; round < 3; round++) {
+			for (int end = next + 100; next < end; next++) {
+				reference.append(String.format("Foo%d", next).getBytes());
+				tree.append(String.format("Foo%d", next).getBytes());
+			}
+			int horizon = next - 10;
+			tree.retain(horizon, Arrays.asList(3L, horizon - 50L), new HashStore<byte[],byte[]>());
+
+			assertTrue(Arrays.equals(reference.agg(), tree.agg()));
+			for (int i : new int[] { 3, horizon - 50, horizon, next - 1 }) {
+				assertTrue(Arrays.equals(reference.aggV(i), tree.aggV(i)));
+				HistoryTree<byte[],byte[]> p1 = reference.makePruned(new HashStore<byte[],byte[]>());
+				p1.copyV(reference, i, i >= horizon);
+				HistoryTree<byte[],byte[]> p2 = tree.makePruned(new HashStore<byte[],byte[]>());
+				p2.copyV(tree, i, i >= horizon);
+				assertTrue(Arrays.equals(p1.serializeTree(), p2.serializeTree()));
+			}
+			// Discarded leaves are gone.
+			assertNull(tree.leaf(horizon - 20));
+		}
+
+		// Retaining a complete tree, with nothing from the horizon on, and appending past it.
+		for (int length : new int[] { 1, 2, 4, 64 }) {
+			reference = new HistoryTree<byte[],byte[]>(new SHA256Agg(), new AppendOnlyArrayStore<byte[],byte[]>());
+			tree = new HistoryTree<byte[],byte[]>(new SHA256Agg(), new AppendOnlyArrayStore<byte[],byte[]>());
+			for (int i = 0; i < length; i++) {
+				reference.append(String.format("Foo%d", i).getBytes());
+				tree.append(String.format("Foo%d", i).getBytes());
+			}
+			tree.retain(length, Arrays.asList(length - 1L), new HashStore<byte[],byte[]>());
+			for (int i = length; i < 2 * length + 3; i++) {
+				reference.append(String.format("Foo%d", i).getBytes());
+				tree.append(String.format("Foo%d", i).getBytes());
+				assertTrue(Arrays.equals(reference.agg(), tree.agg()));
+			}
+		}
+	}
+
+	@Test
+	public void testTreeView() throws Exception {
+		HistoryTree<byte[],byte[]> tree = new HistoryTree<byte[],byte[]>(new SHA256Agg(), new ConcurrentStore<byte[],byte[]>());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		ArrayList<Future<byte[]>> roots = new ArrayList<Future<byte[]>>();
+		for (int i = 0; i < 20000; i++) {
+			TreeView<byte[],byte[]> view;
+			synchronized (tree) {
+				tree.append(String.format("Foo%d", i).getBytes());
+				view = tree.view();
+			}
+			if (i % 500 != 0)
+				continue;
+			// Prove the first, middle and last leaf of the view, while the tree keeps growing.
+			roots.add(executor.submit(() -> {
+				for (long leaf : new long[] { 0, view.version() / 2, view.version() }) {
+					HistoryTree<byte[],byte[]> pruned = view.makePruned(new HashStore<byte[],byte[]>());
+					pruned.copyV(view, leaf, true);
+					assertTrue(Arrays.equals(view.agg(), pruned.agg()));
+				}
+				return view.agg();
+			}));
+		}
+		for (int i = 0; i < roots.size(); i++)
+			assertTrue(Arrays.equals(tree.aggV(500 * i), roots.get(i).get()));
+		executor.shutdown();
 
+		try {
+			tree.view().append("Bar".getBytes());
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+}
@@ -1,7 +1,9 @@
 package edu.rice.historytree;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
@@ -49,6 +51,36 @@ public class TestMerkle extends TestCase {
 		assertEquals(results[len-1],histtree.agg());
 	}
 
+	@Test
+	public void testBuild() throws ProofError {
+		for (int len = 1 ; len < 12 ; len++) {
+			MerkleTree<String,String> tree = MerkleTree.build(new ConcatAgg(), new ArrayStore<String,String>(),
+					Arrays.asList(Arrays.copyOf(NAMES,len)), null);
+			assertEquals(results[len-1],tree.agg());
+		}
+		// Large enough that blocks are aggregated on the pool.
+		ForkJoinPool pool = new ForkJoinPool(4);
+		for (int len : new int[] { 2048, 5000 }) {
+			MerkleTree<byte[],byte[]> expect = new MerkleTree<byte[],byte[]>(new SHA256Agg(), new ArrayStore<byte[],byte[]>());
+			ArrayList<byte[]> vals = new ArrayList<byte[]>();
+			for (int i = 0 ; i < len ; i++) {
+				vals.add(String.format("Foo%d",i).getBytes());
+				expect.append(vals.get(i));
+			}
+			expect.freeze();
+			MerkleTree<byte[],byte[]> tree = MerkleTree.build(new SHA256Agg(), new ArrayStore<byte[],byte[]>(), vals, pool);
+			Assert.assertArrayEquals(expect.agg(), tree.agg());
+			for (int i = 0 ; i < len ; i += 97) {
+				MerkleTree<byte[],byte[]> p1 = expect.makePruned(new HashStore<byte[],byte[]>());
+				p1.copyV(expect, i, true);
+				MerkleTree<byte[],byte[]> p2 = tree.makePruned(new HashStore<byte[],byte[]>());
+				p2.copyV(tree, i, true);
+				Assert.assertArrayEquals(p1.serializeTree(), p2.serializeTree());
+			}
+		}
+		pool.shutdown();
+	}
+
 	@Test
 	public void testOnArrayStore() {
 		for (int len = 1 ; len < 12 ; len++) {
@@ -0,0 +1,1188 @@
+package edu.rice.historytree;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import edu.rice.historytree.TreeStats.Counter;
+import edu.rice.historytree.aggs.InstrumentedAgg;
+import edu.rice.historytree.aggs.SHA256Agg;
+import edu.rice.historytree.aggs.SHA256AggB64;
+import edu.rice.historytree.storage.AppendOnlyArrayStore;
+import edu.rice.historytree.storage.ArenaStore;
+import edu.rice.historytree.storage.ArrayStore;
+import edu.rice.historytree.storage.CompressedValueStore;
+import edu.rice.historytree.storage.ConcurrentStore;
+import edu.rice.historytree.storage.DedupStore;
+import edu.rice.historytree.storage.HashStore;
+import edu.rice.historytree.storage.InstrumentedStore;
+import edu.rice.historytree.storage.LayerArrayStore;
+import edu.rice.historytree.storage.MappedAppendOnlyStore;
+import edu.rice.historytree.storage.PackedArrayStore;
+import edu.rice.historytree.storage.PackedHashStore;
+import edu.rice.historytree.storage.PathStore;
+import edu.rice.historytree.storage.SnapshotStore;
+import edu.rice.historytree.storage.TieredStore;
+import edu.rice.historytree.storage.TreeArena;
+import edu.rice.historytree.storage.ValueLogStore;
+import edu.rice.historytree.storage.VebStore;
+import junit.framework.TestCase;
+
+/** Check the alternative stores against the reference AppendOnlyArrayStore. */
+public class TestStores extends TestCase {
+
+	HistoryTree<byte[], byte[]> makeShaTree(int length, HistoryDataStoreInterface<byte[], byte[]> store) {
+		HistoryTree<byte[], byte[]> histtree = new HistoryTree<byte[], byte[]>(new SHA256Agg(), store);
+		for (int i = 0; i < length; i++)
+			histtree.append(String.format("Foo%d", i).getBytes());
+		return histtree;
+	}
+
+	/** Build the same tree on the given store and on an AppendOnlyArrayStore and make sure they agree. */
+	void checkAgainstReference(int length, HistoryDataStoreInterface<byte[], byte[]> store) throws ProofError {
+		HistoryTree<byte[], byte[]> reference = makeShaTree(length, new AppendOnlyArrayStore<byte[], byte[]>());
+		HistoryTree<byte[], byte[]> tree = makeShaTree(length, store);
+		checkSameTree(reference, tree);
+	}
+
+	/** Make sure the two trees agree on their aggregates, values and pruned trees. */
+	void checkSameTree(HistoryTree<byte[], byte[]> reference, HistoryTree<byte[], byte[]> tree) throws ProofError {
+		int length = (int) reference.version() + 1;
+		assertEquals(reference.version(), tree.version());
+		assertTrue(Arrays.equals(reference.agg(), tree.agg()));
+		for (int i = 0; i < length; i++) {
+			assertTrue(Arrays.equals(reference.aggV(i), tree.aggV(i)));
+			assertTrue(Arrays.equals(reference.leaf(i).getVal(), tree.leaf(i).getVal()));
+
+			HistoryTree<byte[], byte[]> p1 = reference.makePruned(new HashStore<byte[], byte[]>());
+			p1.copyV(reference, i, true);
+			HistoryTree<byte[], byte[]> p2 = tree.makePruned(new HashStore<byte[], byte[]>());
+			p2.copyV(tree, i, true);
+			assertTrue(Arrays.equals(p1.serializeTree(), p2.serializeTree()));
+		}
+	}
+
+	@Test
+	public void testMappedAppendOnlyStore() throws IOException, ProofError {
+		for (int length : new int[] { 1, 2, 7, 8, 9, 300 }) {
+			File file = File.createTempFile("mapped", ".agg");
+			file.deleteOnExit();
+			// Tiny segments, so that growing the file is exercised.
+			MappedAppendOnlyStore<byte[]> store = new MappedAppendOnlyStore<byte[]>(file, 32, 4);
+			checkAgainstReference(length, store);
+			store.close();
+		}
+	}
+
+	@Test
+	public void testPackedArrayStore() throws ProofError {
+		for (int length : new int[] { 1, 2, 7, 8, 9, 300 })
+			checkAgainstReference(length, new PackedArrayStore());
+	}
+
+	@Test
+	public void testPackedArrayStoreLimits() {
+		// Aggregates must fit the slot exactly or be shorter.
+		PackedArrayStore store = new PackedArrayStore(32);
+		store.updateTime(0);
+		NodeCursor<byte[], byte[]> leaf = store.makeRoot(0).markValid();
+		leaf.setAgg(new byte[32]);
+		assertEquals(32, leaf.getAgg().length);
+		leaf.setAgg(new byte[1]);
+		assertEquals(1, leaf.getAgg().length);
+		try {
+			leaf.setAgg(new byte[33]);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		for (int width : new int[] { 0, 256 })
+			try {
+				new PackedArrayStore(width);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+
+		// Versions whose slab would pass 2GB are refused, rather than overflowing an int offset.
+		assertEquals((1L << 24) - 1, new PackedArrayStore().maxVersion());
+		for (int width : new int[] { 1, 32, 255 }) {
+			PackedArrayStore wide = new PackedArrayStore(width);
+			assertTrue(wide.maxVersion() * 2 * width < Integer.MAX_VALUE);
+			try {
+				wide.updateTime(wide.maxVersion() + 1);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	/** Build frozen Merkle trees on the given stores and on an ArrayStore and make sure they agree. */
+	void checkMerkleAgainstReference(Supplier<HistoryDataStoreInterface<byte[], byte[]>> stores) throws ProofError {
+		for (int length = 1; length < 20; length++) {
+			MerkleTree<byte[], byte[]> reference = new MerkleTree<byte[], byte[]>(new SHA256Agg(), new ArrayStore<byte[], byte[]>());
+			MerkleTree<byte[], byte[]> tree = new MerkleTree<byte[], byte[]>(new SHA256Agg(), stores.get());
+			for (int i = 0; i < length; i++) {
+				reference.append(String.format("Foo%d", i).getBytes());
+				tree.append(String.format("Foo%d", i).getBytes());
+			}
+			reference.freeze();
+			tree.freeze();
+			assertTrue(Arrays.equals(reference.agg(), tree.agg()));
+			for (int i = 0; i < length; i++) {
+				MerkleTree<byte[], byte[]> p1 = reference.makePruned(new HashStore<byte[], byte[]>());
+				p1.copyV(reference, i, true);
+				MerkleTree<byte[], byte[]> p2 = tree.makePruned(stores.get());
+				p2.copyV(tree, i, true);
+				assertTrue(Arrays.equals(p1.serializeTree(), p2.serializeTree()));
+			}
+		}
+	}
+
+	@Test
+	public void testMerkleTreeOnEachStore() throws IOException, ProofError {
+		File file = File.createTempFile("merkle", ".log");
+		file.deleteOnExit();
+		File dir = Files.createTempDirectory("merkle").toFile();
+		File agg1 = File.createTempFile("merkle", ".agg"), agg2 = File.createTempFile("merkle", ".agg");
+		agg1.deleteOnExit();
+		agg2.deleteOnExit();
+		TreeArena arena = new TreeArena(8);
+
+		// Stores that can hold a Merkle tree must build the same one as ArrayStore.
+		ArrayList<Supplier<HistoryDataStoreInterface<byte[], byte[]>>> supported = new ArrayList<Supplier<HistoryDataStoreInterface<byte[], byte[]>>>();
+		supported.add(() -> new HashStore<byte[], byte[]>());
+		supported.add(() -> new PackedArrayStore());
+		supported.add(() -> new LayerArrayStore<byte[], byte[]>());
+		supported.add(() -> new PathStore<byte[], byte[]>());
+		supported.add(() -> new ConcurrentStore<byte[], byte[]>());
+		supported.add(() -> new PackedHashStore());
+		supported.add(() -> new DedupStore<byte[], byte[]>(new ArrayStore<byte[], byte[]>(), new SHA256Agg()));
+		supported.add(() -> new CompressedValueStore<byte[]>(new ArrayStore<byte[], byte[]>(), 2));
+		supported.add(() -> new InstrumentedStore<byte[], byte[]>(new ArrayStore<byte[], byte[]>(), new TreeStats(), new SHA256Agg(), false));
+		supported.add(() -> {
+			try {
+				return new ValueLogStore<byte[]>(new ArrayStore<byte[], byte[]>(), file);
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+		});
+		for (Supplier<HistoryDataStoreInterface<byte[], byte[]>> store : supported) {
+			assertTrue(store.get().supportsMerkleTree());
+			checkMerkleAgainstReference(store);
+		}
+
+		// The others are refused up front, also when wrapped in another store.
+		ArrayList<HistoryDataStoreInterface<byte[], byte[]>> unsupported = new ArrayList<HistoryDataStoreInterface<byte[], byte[]>>();
+		unsupported.add(new AppendOnlyArrayStore<byte[], byte[]>());
+		unsupported.add(new MappedAppendOnlyStore<byte[]>(agg1, 32, 4));
+		unsupported.add(new VebStore<byte[]>());
+		unsupported.add(new TieredStore<byte[], byte[]>(dir, new SHA256Agg(), 2, 1, 2));
+		unsupported.add(new ArenaStore(arena));
+		unsupported.add(new ValueLogStore<byte[]>(new AppendOnlyArrayStore<byte[], byte[]>(), file));
+		unsupported.add(new DedupStore<byte[], byte[]>(new VebStore<byte[]>(), new SHA256Agg()));
+		unsupported.add(new InstrumentedStore<byte[], byte[]>(new AppendOnlyArrayStore<byte[], byte[]>(), new TreeStats(), new SHA256Agg(), true));
+		unsupported.add(new CompressedValueStore<byte[]>(new MappedAppendOnlyStore<byte[]>(agg2, 32, 4), 2));
+		for (HistoryDataStoreInterface<byte[], byte[]> store : unsupported) {
+			assertFalse(store.supportsMerkleTree());
+			try {
+				new MerkleTree<byte[], byte[]>(new SHA256Agg(), store);
+				fail();
+			} catch (Error e) {
+			}
+		}
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testPackedArrayStoreMerkle() throws ProofError {
+		checkMerkleAgainstReference(() -> new PackedArrayStore());
+	}
+
+	@Test
+	public void testLayerArrayStore() throws ProofError {
+		for (int length : new int[] { 1, 2, 7, 8, 9, 300 })
+			checkAgainstReference(length, new LayerArrayStore<byte[], byte[]>());
+		checkMerkleAgainstReference(() -> new LayerArrayStore<byte[], byte[]>());
+	}
+
+	@Test
+	public void testLayerArrayStoreBitmaps() {
+		// Validity bits either side of the word boundaries of each layer's bitmap.
+		LayerArrayStore<byte[], byte[]> store = new LayerArrayStore<byte[], byte[]>();
+		store.updateTime(300);
+		for (int layer : new int[] { 0, 1, 2 }) {
+			for (long pos : new long[] { 63, 64, 128 })
+				store.markValidAt(NodeCursor.pack(layer, pos << layer));
+			for (long pos = 0; pos < 140; pos++)
+				assertEquals(pos == 63 || pos == 64 || pos == 128,
+						store.isAggValidAt(NodeCursor.pack(layer, pos << layer)));
+		}
+		// Layers and offsets that were never touched hold nothing.
+		assertFalse(store.isAggValidAt(NodeCursor.pack(5, 0)));
+		assertNull(store.getAggAt(NodeCursor.pack(5, 0)));
+		assertNull(store.getAggAt(NodeCursor.pack(0, 10000)));
+
+		// A node high in the tree can be set before any layer below it exists.
+		LayerArrayStore<byte[], byte[]> sparse = new LayerArrayStore<byte[], byte[]>();
+		sparse.updateTime(1023);
+		long coord = NodeCursor.pack(9, 512);
+		sparse.markValidAt(coord);
+		sparse.setAggAt(coord, new byte[] { 1 });
+		assertTrue(Arrays.equals(new byte[] { 1 }, sparse.getAggAt(coord)));
+		assertFalse(sparse.isAggValidAt(NodeCursor.pack(9, 0)));
+		assertFalse(sparse.isAggValidAt(NodeCursor.pack(0, 512)));
+	}
+
+	@Test
+	public void testVebStore() throws IOException, ProofError {
+		for (int length : new int[] { 1, 2, 7, 8, 9, 300 })
+			checkAgainstReference(length, new VebStore<byte[]>());
+
+		File file = File.createTempFile("veb", ".agg");
+		file.deleteOnExit();
+		VebStore<byte[]> store = new VebStore<byte[]>(file, 32);
+		checkAgainstReference(300, store);
+		store.close();
+	}
+
+	@Test
+	public void testPathStore() throws ProofError, InvalidProtocolBufferException {
+		HistoryTree<byte[], byte[]> tree = makeShaTree(300, new AppendOnlyArrayStore<byte[], byte[]>());
+		PathStore<byte[], byte[]> recycled = new PathStore<byte[], byte[]>();
+		for (int i = 0; i < 300; i++) {
+			HistoryTree<byte[], byte[]> p1 = tree.makePruned(new HashStore<byte[], byte[]>());
+			p1.copyV(tree, i, true);
+			p1.copyV(tree, i / 2, false);
+			recycled.clear();
+			HistoryTree<byte[], byte[]> p2 = tree.makePruned(recycled);
+			p2.copyV(tree, i, true);
+			p2.copyV(tree, i / 2, false);
+			byte[] serialized = p1.serializeTree();
+			assertTrue(Arrays.equals(serialized, p2.serializeTree()));
+
+			HistoryTree<byte[], byte[]> parsed = new HistoryTree<byte[], byte[]>(new SHA256Agg(), new PathStore<byte[], byte[]>());
+			parsed.updateTime(tree.version());
+			parsed.parseTree(p2.serializeTree());
+			assertTrue(Arrays.equals(tree.agg(), parsed.agg()));
+			assertTrue(Arrays.equals(tree.aggV(i / 2), parsed.aggV(i / 2)));
+		}
+		checkMerkleAgainstReference(() -> new PathStore<byte[], byte[]>());
+		// Big enough to rehash several times.
+		checkAgainstReference(300, new PathStore<byte[], byte[]>());
+	}
+
+	@Test
+	public void testSnapshotStore() throws Exception {
+		File file = File.createTempFile("snapshot", ".hts");
+		file.deleteOnExit();
+		for (int length : new int[] { 0, 1, 2, 7, 8, 9, 300 }) {
+			HistoryTree<byte[], byte[]> reference = makeShaTree(length, new AppendOnlyArrayStore<byte[], byte[]>());
+			reference.writeSnapshot(file, reference.version());
+			HistoryTree<byte[], byte[]> tree = HistoryTree.openSnapshot(file, new SHA256Agg());
+			assertEquals(reference.version(), tree.version());
+			if (length > 0)
+				checkSameTree(reference, tree);
+
+			// Keep appending to the reopened tree.
+			for (int i = length; i < length + 20; i++) {
+				reference.append(String.format("Foo%d", i).getBytes());
+				tree.append(String.format("Foo%d", i).getBytes());
+			}
+			checkSameTree(reference, tree);
+		}
+	}
+
+	@Test
+	public void testSnapshotInBackground() throws Exception {
+		File file = File.createTempFile("snapshot", ".hts");
+		file.deleteOnExit();
+		HistoryTree<byte[], byte[]> tree = makeShaTree(10000, new AppendOnlyArrayStore<byte[], byte[]>());
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<?> done = tree.writeSnapshotInBackground(file, executor);
+		for (int i = 10000; i < 12000; i++)
+			synchronized (tree) {
+				tree.append(String.format("Foo%d", i).getBytes());
+			}
+		done.get();
+		executor.shutdown();
+
+		HistoryTree<byte[], byte[]> reopened = HistoryTree.openSnapshot(file, new SHA256Agg());
+		assertEquals(9999, reopened.version());
+		assertTrue(Arrays.equals(tree.aggV(9999), reopened.agg()));
+		assertTrue(Arrays.equals(tree.aggV(5000), reopened.aggV(5000)));
+		try {
+			new MerkleTree<byte[], byte[]>(new SHA256Agg(), new SnapshotStore<byte[], byte[]>(file, new SHA256Agg()));
+			fail();
+		} catch (Error e) {
+		}
+	}
+
+	@Test
+	public void testRootIndex() throws Exception {
+		HistoryTree<byte[], byte[]> reference = makeShaTree(0, new AppendOnlyArrayStore<byte[], byte[]>());
+		HistoryTree<byte[], byte[]> every = makeShaTree(0, new AppendOnlyArrayStore<byte[], byte[]>());
+		HistoryTree<byte[], byte[]> batches = makeShaTree(0, new AppendOnlyArrayStore<byte[], byte[]>());
+		every.setRootIndex(new RootIndex<byte[]>(new SHA256Agg(), true));
+		batches.setRootIndex(new RootIndex<byte[]>(new SHA256Agg(), false));
+		for (int i = 0; i < 300;) {
+			ArrayList<byte[]> batch = new ArrayList<byte[]>();
+			for (int j = 0; j < i % 7 + 1 && i < 300; j++, i++)
+				batch.add(String.format("Foo%d", i).getBytes());
+			reference.appendAll(batch);
+			batches.appendAll(batch);
+			if (i % 2 == 0)
+				every.appendAll(batch);
+			else
+				for (byte[] val : batch)
+					every.append(val);
+			assertNotNull(batches.getRootIndex().get(i - 1));
+		}
+		assertEquals(300, every.getRootIndex().size());
+		assertNull(batches.getRootIndex().get(1));
+		for (int i = 0; i < 300; i++) {
+			assertTrue(Arrays.equals(reference.aggV(i), every.getRootIndex().get(i)));
+			assertTrue(Arrays.equals(reference.aggV(i), every.aggV(i)));
+			assertTrue(Arrays.equals(reference.aggV(i), batches.aggV(i)));
+		}
+
+		// The index is saved with a snapshot, up to its version, and loaded again.
+		File file = File.createTempFile("snapshot", ".hts");
+		file.deleteOnExit();
+		RootIndex.fileFor(file).deleteOnExit();
+		batches.writeSnapshot(file, 150);
+		HistoryTree<byte[], byte[]> reopened = HistoryTree.openSnapshot(file, new SHA256Agg());
+		RootIndex<byte[]> index = reopened.getRootIndex();
+		assertNotNull(index);
+		assertFalse(index.everyVersion());
+		for (int i = 0; i <= 150; i++)
+			assertTrue(Arrays.equals(batches.getRootIndex().get(i), index.get(i)));
+		assertNull(index.get(299));
+		assertTrue(Arrays.equals(reference.aggV(150), reopened.agg()));
+		assertTrue(Arrays.equals(reference.aggV(100), HistoryTree.openSnapshotView(file, new SHA256Agg()).aggV(100)));
+	}
+
+	@Test
+	public void testRootIndexChunks() throws Exception {
+		// Base64 roots do not divide the 1MB chunks evenly, so some roots would straddle two.
+		SHA256AggB64 agg = new SHA256AggB64();
+		RootIndex<byte[]> index = new RootIndex<byte[]>(agg, false);
+		ArrayList<byte[]> roots = new ArrayList<byte[]>();
+		for (int i = 0; i < 60000; i++) {
+			roots.add(agg.aggVal(String.format("Foo%d", i).getBytes()));
+			index.record(3L * i, roots.get(i));
+		}
+		assertTrue(60000L * agg.serializeAgg(roots.get(0)).size() > 2 << 20);
+		File file = File.createTempFile("roots", ".roots");
+		file.deleteOnExit();
+		index.write(file, Long.MAX_VALUE);
+		RootIndex<byte[]> reread = RootIndex.read(file, agg);
+		assertEquals(60000, reread.size());
+		for (int i = 0; i < 60000; i++) {
+			assertTrue(Arrays.equals(roots.get(i), index.get(3L * i)));
+			assertTrue(Arrays.equals(roots.get(i), reread.get(3L * i)));
+			assertNull(index.get(3L * i + 1));
+		}
+	}
+
+	@Test
+	public void testSnapshotReadOnly() throws Exception {
+		File file = File.createTempFile("snapshot", ".hts");
+		file.deleteOnExit();
+		final HistoryTree<byte[], byte[]> tree = makeShaTree(1000, new AppendOnlyArrayStore<byte[], byte[]>());
+		tree.writeSnapshot(file, tree.version());
+
+		final TreeView<byte[], byte[]> view1 = HistoryTree.openSnapshotView(file, new SHA256Agg());
+		final TreeView<byte[], byte[]> view2 = HistoryTree.openSnapshotView(file, new SHA256Agg());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		ArrayList<Future<?>> done = new ArrayList<Future<?>>();
+		for (int t = 0; t < 4; t++) {
+			final HistoryTree<byte[], byte[]> view = t % 2 == 0 ? view1 : view2;
+			final int start = t;
+			done.add(executor.submit(() -> {
+				for (int i = start; i < 1000; i += 4) {
+					HistoryTree<byte[], byte[]> p1 = tree.makePruned(new HashStore<byte[], byte[]>());
+					p1.copyV(tree, i, true);
+					HistoryTree<byte[], byte[]> p2 = view.makePruned(new HashStore<byte[], byte[]>());
+					p2.copyV(view, i, true);
+					assertTrue(Arrays.equals(p1.serializeTree(), p2.serializeTree()));
+				}
+				return null;
+			}));
+		}
+		for (Future<?> f : done)
+			f.get();
+		executor.shutdown();
+
+		assertTrue(Arrays.equals(tree.agg(), view1.agg()));
+		try {
+			view1.append("Bar".getBytes());
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+		SnapshotStore<byte[], byte[]> store = new SnapshotStore<byte[], byte[]>(file, new SHA256Agg(), true);
+		assertTrue(store.isReadOnly());
+		try {
+			store.updateTime(1000);
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+
+	@Test
+	public void testValueLogStore() throws IOException, ProofError {
+		File file = File.createTempFile("values", ".log");
+		file.deleteOnExit();
+		for (int length : new int[] { 1, 2, 7, 8, 9, 300 }) {
+			ValueLogStore<byte[]> store = new ValueLogStore<byte[]>(new AppendOnlyArrayStore<byte[], byte[]>(), file);
+			checkAgainstReference(length, store);
+			store.close();
+		}
+		checkMerkleAgainstReference(() -> {
+			try {
+				return new ValueLogStore<byte[]>(new ArrayStore<byte[], byte[]>(), file);
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+		});
+	}
+
+	@Test
+	public void testValueLogStoreBufferEdges() throws IOException {
+		File file = File.createTempFile("values", ".log");
+		file.deleteOnExit();
+		ValueLogStore<byte[]> store = new ValueLogStore<byte[]>(new AppendOnlyArrayStore<byte[], byte[]>(), file);
+		HistoryTree<byte[], byte[]> reference = new HistoryTree<byte[], byte[]>(new SHA256Agg(), new AppendOnlyArrayStore<byte[], byte[]>());
+		HistoryTree<byte[], byte[]> tree = new HistoryTree<byte[], byte[]>(new SHA256Agg(), store);
+		// Around the 64K write buffer: empty values, values that exactly fill
+		// it or just miss, and values larger than it, which bypass it.
+		int[] sizes = { 0, 1, 65535, 1, 65536, 100000, 0, 3, 65533, 2, 7, 65536, 65536 };
+		long total = 0;
+		for (int i = 0; i < sizes.length; i++) {
+			byte[] val = new byte[sizes[i]];
+			for (int k = 0; k < val.length; k++)
+				val[k] = (byte) (i + k);
+			reference.append(val);
+			tree.append(val);
+			total += val.length;
+			// Read back straight away, from the buffer or the file.
+			assertTrue(Arrays.equals(val, tree.leaf(i).getVal()));
+		}
+		for (int i = 0; i < sizes.length; i++)
+			assertTrue(Arrays.equals(reference.leaf(i).getVal(), tree.leaf(i).getVal()));
+		assertTrue(Arrays.equals(reference.agg(), tree.agg()));
+		assertFalse(store.hasVal(new NodeCursor<byte[], byte[]>(store, 0, sizes.length)));
+		assertFalse(store.hasVal(new NodeCursor<byte[], byte[]>(store, 0, 1000)));
+		assertNull(store.getVal(new NodeCursor<byte[], byte[]>(store, 0, 1000)));
+		store.force();
+		assertEquals(total, file.length());
+		store.close();
+	}
+
+	@Test
+	public void testDedupStore() throws IOException, ProofError {
+		for (int length : new int[] { 1, 2, 7, 8, 9, 300 })
+			checkAgainstReference(length, new DedupStore<byte[], byte[]>(new ArrayStore<byte[], byte[]>(), new SHA256Agg()));
+		checkMerkleAgainstReference(() -> new DedupStore<byte[], byte[]>(new ArrayStore<byte[], byte[]>(), new SHA256Agg()));
+
+		// 300 events with 10 distinct bodies: only those go to the value log.
+		File file = File.createTempFile("values", ".log");
+		file.deleteOnExit();
+		ValueLogStore<byte[]> log = new ValueLogStore<byte[]>(new AppendOnlyArrayStore<byte[], byte[]>(), file);
+		DedupStore<byte[], byte[]> store = new DedupStore<byte[], byte[]>(log, new SHA256Agg());
+		HistoryTree<byte[], byte[]> reference = new HistoryTree<byte[], byte[]>(new SHA256Agg(), new AppendOnlyArrayStore<byte[], byte[]>());
+		HistoryTree<byte[], byte[]> tree = new HistoryTree<byte[], byte[]>(new SHA256Agg(), store);
+		for (int i = 0; i < 300; i++) {
+			reference.append(String.format("Foo%d", i % 10).getBytes());
+			tree.append(String.format("Foo%d", i % 10).getBytes());
+		}
+		checkSameTree(reference, tree);
+		assertEquals(10, store.distinctValues());
+		assertEquals(290, store.duplicateValues());
+		log.close();
+		assertEquals(10 * "Foo0".length(), file.length());
+	}
+
+	@Test
+	public void testDedupStoreTable() throws ProofError {
+		// Aggregates that all share their first 8 bytes land in the same slot, and
+		// must be told apart by the full aggregate.
+		SHA256Agg shared = new SHA256Agg() {
+			@Override
+			public byte[] aggVal(byte[] event) {
+				byte[] out = new byte[40];
+				System.arraycopy(super.aggVal(event), 0, out, 8, 32);
+				return out;
+			}
+		};
+		DedupStore<byte[], byte[]> store = new DedupStore<byte[], byte[]>(new ArrayStore<byte[], byte[]>(), shared);
+		HistoryTree<byte[], byte[]> tree = new HistoryTree<byte[], byte[]>(shared, store);
+		String[] bodies = { "A", "B", "B", "C", "A", "C", "C", "C" };
+		for (String body : bodies)
+			tree.append(body.getBytes());
+		for (int i = 0; i < bodies.length; i++)
+			assertEquals(bodies[i], new String(tree.leaf(i).getVal()));
+		// Only a repeat of the value last seen in that slot is found.
+		assertEquals(3, store.duplicateValues());
+		assertEquals(5, store.distinctValues());
+
+		// A table of 16 slots forgets 1000 distinct values before they repeat, but
+		// keeps finding a value that comes back every other event. Every value
+		// still reads back.
+		DedupStore<byte[], byte[]> small = new DedupStore<byte[], byte[]>(new ArrayStore<byte[], byte[]>(), new SHA256Agg(), 4);
+		HistoryTree<byte[], byte[]> reference = new HistoryTree<byte[], byte[]>(new SHA256Agg(), new AppendOnlyArrayStore<byte[], byte[]>());
+		tree = new HistoryTree<byte[], byte[]>(new SHA256Agg(), small);
+		for (int i = 0; i < 4000; i++) {
+			String body = i % 2 == 0 ? "Hot" : String.format("Foo%d", (i / 2) % 1000);
+			reference.append(body.getBytes());
+			tree.append(body.getBytes());
+		}
+		checkSameTree(reference, tree);
+		assertEquals(4000, small.distinctValues() + small.duplicateValues());
+		assertTrue(small.distinctValues() > 2000);
+		assertTrue(small.duplicateValues() > 1500);
+	}
+
+	@Test
+	public void testCompressedValueStore() throws IOException, ProofError {
+		// Blocks of 4 leaves, so that most blocks are compressed.
+		for (int length : new int[] { 1, 2, 7, 8, 9, 300 })
+			checkAgainstReference(length, new CompressedValueStore<byte[]>(new AppendOnlyArrayStore<byte[], byte[]>(), 2));
+		checkMerkleAgainstReference(() -> new CompressedValueStore<byte[]>(new ArrayStore<byte[], byte[]>(), 2));
+
+		File file = File.createTempFile("values", ".log");
+		file.deleteOnExit();
+		CompressedValueStore<byte[]> store = new CompressedValueStore<byte[]>(new AppendOnlyArrayStore<byte[], byte[]>(), 6, file);
+		HistoryTree<byte[], byte[]> reference = makeShaTree(1000, new AppendOnlyArrayStore<byte[], byte[]>());
+		checkSameTree(reference, makeShaTree(1000, store));
+		// 14 of the 15 full blocks are compressed; the values have a lot in common.
+		long raw = 0;
+		for (int i = 0; i < 14 * 64; i++)
+			raw += String.format("Foo%d", i).length();
+		assertEquals(raw, store.rawBytes());
+		assertTrue(store.compressedBytes() * 3 < store.rawBytes());
+		store.close();
+		assertEquals(store.compressedBytes(), file.length());
+	}
+
+	@Test
+	public void testCompressedValueStoreBlocks() throws IOException {
+		File file = File.createTempFile("values", ".log");
+		file.deleteOnExit();
+		for (boolean logged : new boolean[] { false, true }) {
+			CompressedValueStore<byte[]> store = logged
+					? new CompressedValueStore<byte[]>(new AppendOnlyArrayStore<byte[], byte[]>(), 2, file)
+					: new CompressedValueStore<byte[]>(new AppendOnlyArrayStore<byte[], byte[]>(), 2);
+			HistoryTree<byte[], byte[]> tree = new HistoryTree<byte[], byte[]>(new SHA256Agg(), store);
+			// Ten blocks of 4 leaves, the first nine compressed. Block 1 is all
+			// empty values, and leaf 10 is many times the deflater's buffer.
+			byte[][] vals = new byte[40][];
+			for (int i = 0; i < 40; i++) {
+				StringBuilder b = new StringBuilder();
+				for (int k = 0; i / 4 != 1 && k < (i == 10 ? 20000 : i % 7); k++)
+					b.append(String.format("Val%d-%d", i, k * k));
+				vals[i] = b.toString().getBytes();
+				tree.append(vals[i]);
+			}
+			assertTrue(store.compressedBytes() > 0);
+
+			// Jump between blocks on every read, so each compressed block is
+			// read after the cache has moved to another one, then back again.
+			for (int pass = 0; pass < 2; pass++)
+				for (int k = 0; k < 40; k++) {
+					int i = pass == 0 ? (17 * k) % 40 : (13 * (39 - k)) % 40;
+					NodeCursor<byte[], byte[]> leaf = tree.leaf(i);
+					assertTrue(store.hasVal(leaf));
+					assertTrue(Arrays.equals(vals[i], store.getVal(leaf)));
+				}
+			assertFalse(store.hasVal(new NodeCursor<byte[], byte[]>(store, 0, 40)));
+			assertNull(store.getVal(new NodeCursor<byte[], byte[]>(store, 0, 40)));
+
+			// Compressed values cannot be changed.
+			try {
+				store.setVal(tree.leaf(5), "Changed".getBytes());
+				fail();
+			} catch (IllegalStateException e) {
+			}
+			assertEquals(0, store.getVal(tree.leaf(5)).length);
+			store.close();
+		}
+	}
+
+	@Test
+	public void testTieredStore() throws IOException, ProofError {
+		for (int length : new int[] { 1, 2, 7, 8, 9, 300 }) {
+			File dir = Files.createTempDirectory("tiered").toFile();
+			// Segments of 4 leaves, so that most of the tree is spilled and read back through a small cache.
+			TieredStore<byte[], byte[]> store = new TieredStore<byte[], byte[]>(dir, new SHA256Agg(), 2, 1, 2);
+			checkAgainstReference(length, store);
+			assertEquals(Math.max(0, (length - 1) / 4 - 1), store.spilledSegments());
+			store.close();
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testTieredStoreEviction() throws Exception {
+		File dir = Files.createTempDirectory("tiered").toFile();
+		// A cache of one file, so that every other read evicts the one before it.
+		TieredStore<byte[], byte[]> store = new TieredStore<byte[], byte[]>(dir, new SHA256Agg(), 2, 1, 1);
+		HistoryTree<byte[], byte[]> reference = makeShaTree(64, new AppendOnlyArrayStore<byte[], byte[]>());
+		HistoryTree<byte[], byte[]> tree = makeShaTree(64, store);
+		assertEquals(14, store.spilledSegments());
+		for (int i = 63; i >= 0; i--) {
+			assertTrue(Arrays.equals(reference.aggV(i), tree.aggV(i)));
+			assertTrue(Arrays.equals(reference.leaf(i).getVal(), tree.leaf(i).getVal()));
+			assertTrue(Arrays.equals(reference.aggV(63 - i), tree.aggV(63 - i)));
+		}
+
+		// Several readers sharing the cache.
+		final byte[][] vals = new byte[64][];
+		for (int i = 0; i < 64; i++)
+			vals[i] = reference.leaf(i).getVal();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		ArrayList<Future<?>> done = new ArrayList<Future<?>>();
+		for (int t = 0; t < 4; t++) {
+			final TreeView<byte[], byte[]> view = tree.view();
+			final int offset = 16 * t;
+			done.add(executor.submit(() -> {
+				for (int k = 0; k < 2000; k++) {
+					int i = (offset + 7 * k) % 64;
+					assertTrue(Arrays.equals(vals[i], view.leaf(i).getVal()));
+					HistoryTree<byte[], byte[]> pruned = view.makePruned(new HashStore<byte[], byte[]>());
+					pruned.copyV(view, i, false);
+					assertTrue(Arrays.equals(view.agg(), pruned.agg()));
+				}
+				return null;
+			}));
+		}
+		for (Future<?> f : done)
+			f.get();
+		executor.shutdown();
+
+		// Proofs without values never read the value files.
+		for (File f : dir.listFiles())
+			if (f.getName().endsWith(".val"))
+				assertTrue(f.delete());
+		store.close();
+		for (int i = 0; i < 64; i++) {
+			HistoryTree<byte[], byte[]> p1 = reference.makePruned(new HashStore<byte[], byte[]>());
+			p1.copyV(reference, i, false);
+			HistoryTree<byte[], byte[]> p2 = tree.makePruned(new HashStore<byte[], byte[]>());
+			p2.copyV(tree, i, false);
+			assertTrue(Arrays.equals(p1.serializeTree(), p2.serializeTree()));
+		}
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testTieredStoreGrowingViews() throws Exception {
+		File dir = Files.createTempDirectory("tiered").toFile();
+		// Small segments, so that the writer grows the directory and spills
+		// segments while readers of earlier views prove leaves in them.
+		HistoryTree<byte[], byte[]> tree = new HistoryTree<byte[], byte[]>(new SHA256Agg(),
+				new TieredStore<byte[], byte[]>(dir, new SHA256Agg(), 2, 1, 2));
+		HistoryTree<byte[], byte[]> reference = makeShaTree(3000, new AppendOnlyArrayStore<byte[], byte[]>());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		ArrayList<Future<byte[]>> roots = new ArrayList<Future<byte[]>>();
+		for (int i = 0; i < 3000; i++) {
+			TreeView<byte[], byte[]> view;
+			synchronized (tree) {
+				tree.append(String.format("Foo%d", i).getBytes());
+				view = tree.view();
+			}
+			if (i % 50 != 0)
+				continue;
+			roots.add(executor.submit(() -> {
+				for (long leaf : new long[] { 0, view.version() / 2, view.version() }) {
+					HistoryTree<byte[], byte[]> pruned = view.makePruned(new HashStore<byte[], byte[]>());
+					pruned.copyV(view, leaf, true);
+					assertTrue(Arrays.equals(view.agg(), pruned.agg()));
+				}
+				return view.agg();
+			}));
+		}
+		for (int i = 0; i < roots.size(); i++)
+			assertTrue(Arrays.equals(reference.aggV(50 * i), roots.get(i).get()));
+		executor.shutdown();
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testConcurrentStore() throws ProofError {
+		for (int length : new int[] { 1, 2, 7, 8, 9, 300, 5000 })
+			checkAgainstReference(length, new ConcurrentStore<byte[], byte[]>());
+		checkMerkleAgainstReference(() -> new ConcurrentStore<byte[], byte[]>());
+	}
+
+	/** Coordinates of the nodes just before and at or after a given index in the store order. */
+	static long[] coordsAround(long boundary) {
+		long[] out = new long[2];
+		long below = -1, above = Long.MAX_VALUE;
+		for (int layer = 0; layer < 20; layer++)
+			for (long k = 0; k <= boundary; k++) {
+				long coord = NodeCursor.pack(layer, k << layer);
+				long index = NodeCursor.computeIndex(coord);
+				if (index < boundary && index > below) {
+					below = index;
+					out[0] = coord;
+				} else if (index >= boundary && index < above) {
+					above = index;
+					out[1] = coord;
+				}
+			}
+		return out;
+	}
+
+	@Test
+	public void testConcurrentStoreChunkEdges() {
+		for (boolean sparse : new boolean[] { false, true }) {
+			int chunk = sparse ? 16 : 4096;
+			ConcurrentStore<byte[], byte[]> store = sparse ? new ConcurrentStore<byte[], byte[]>(Long.MAX_VALUE)
+					: new ConcurrentStore<byte[], byte[]>();
+			store.updateTime(1L << 30);
+			long[] edge = coordsAround(chunk);
+			long last = edge[0], next = edge[1];
+			assertFalse(store.isAggValidAt(last));
+			assertNull(store.getAggAt(next));
+			assertEquals(2, store.allocatedEntries());
+
+			// The last entry of one chunk and the first of the next are kept apart.
+			store.markValidAt(last);
+			assertTrue(store.isAggValidAt(last));
+			assertNull(store.getAggAt(last));
+			assertFalse(store.isAggValidAt(next));
+			store.setAggAt(last, "Last".getBytes());
+			store.markValidAt(next);
+			store.setAggAt(next, "Next".getBytes());
+			assertEquals("Last", new String(store.getAggAt(last)));
+			assertEquals("Next", new String(store.getAggAt(next)));
+			assertFalse(store.isAggValidAt(coordsAround(NodeCursor.computeIndex(next) + 1)[1]));
+
+			for (long leaf : new long[] { chunk - 1, chunk, 1L << 30 })
+				store.setVal(new NodeCursor<byte[], byte[]>(store, 0, leaf), String.format("Foo%d", leaf).getBytes());
+			for (long leaf : new long[] { chunk - 1, chunk, 1L << 30 })
+				assertEquals(String.format("Foo%d", leaf),
+						new String(store.getVal(new NodeCursor<byte[], byte[]>(store, 0, leaf))));
+			// Leaves beside them, in a chunk never allocated, and past the directory.
+			for (long leaf : new long[] { chunk - 2, chunk + 1, 1L << 20, (1L << 30) - 1, 1L << 40 })
+				assertFalse(store.hasVal(new NodeCursor<byte[], byte[]>(store, 0, leaf)));
+
+			// Two agg chunks and three val chunks. A dense store also spends a
+			// directory entry on every chunk up to the last one.
+			if (sparse)
+				assertEquals(5 * 17 + 2, store.allocatedEntries());
+			else
+				assertEquals(2 + 2 * 4096 + ((1 << 18) + 1) + 3 * 4096, store.allocatedEntries());
+
+			// The dense directory is int-indexed; the sparse map is not.
+			NodeCursor<byte[], byte[]> far = new NodeCursor<byte[], byte[]>(store, 0, (long) Integer.MAX_VALUE << 12);
+			try {
+				store.setVal(far, "Far".getBytes());
+				assertTrue(sparse);
+				assertEquals("Far", new String(store.getVal(far)));
+			} catch (IllegalArgumentException e) {
+				assertFalse(sparse);
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrentStoreSparse() throws ProofError {
+		for (int length : new int[] { 1, 2, 7, 8, 9, 300, 5000 }) {
+			checkAgainstReference(length, new ConcurrentStore<byte[], byte[]>(length / 2));
+			checkAgainstReference(length, new ConcurrentStore<byte[], byte[]>(Long.MAX_VALUE));
+		}
+		checkMerkleAgainstReference(() -> new ConcurrentStore<byte[], byte[]>(5));
+		checkMerkleAgainstReference(() -> new ConcurrentStore<byte[], byte[]>(Long.MAX_VALUE));
+
+		// Retain a few hundred scattered leaves of a large tree, as HistoryQueue does.
+		HistoryTree<byte[], byte[]> reference = makeShaTree(100000, new ConcurrentStore<byte[], byte[]>());
+		HistoryTree<byte[], byte[]> appended = makeShaTree(100000, new ConcurrentStore<byte[], byte[]>());
+		for (int i = 0; i < 5000; i++)
+			appended.append(String.format("Bar%d", i).getBytes());
+		ArrayList<Long> keep = new ArrayList<Long>();
+		for (long i = 17; i < 100000; i += 331)
+			keep.add(i);
+		long[] used = new long[2];
+		for (boolean sparse : new boolean[] { false, true }) {
+			HistoryTree<byte[], byte[]> tree = makeShaTree(100000, new ConcurrentStore<byte[], byte[]>());
+			ConcurrentStore<byte[], byte[]> store = sparse ? new ConcurrentStore<byte[], byte[]>(100000)
+					: new ConcurrentStore<byte[], byte[]>();
+			tree.retain(100000, keep, store);
+			used[sparse ? 1 : 0] = store.allocatedEntries();
+			for (long i : new long[] { keep.get(0), keep.get(150), keep.get(keep.size() - 1) }) {
+				HistoryTree<byte[], byte[]> p1 = reference.makePruned(new HashStore<byte[], byte[]>());
+				p1.copyV(reference, i, false);
+				HistoryTree<byte[], byte[]> p2 = tree.makePruned(new HashStore<byte[], byte[]>());
+				p2.copyV(tree, i, false);
+				assertTrue(Arrays.equals(p1.serializeTree(), p2.serializeTree()));
+			}
+			// Appends past the horizon land in the chunks offset from it.
+			for (int i = 0; i < 5000; i++)
+				tree.append(String.format("Bar%d", i).getBytes());
+			assertTrue(Arrays.equals(appended.agg(), tree.agg()));
+			for (long v = 100000; v < 105000; v += 97)
+				assertTrue(Arrays.equals(appended.aggV(v), tree.aggV(v)));
+		}
+		// The path to each kept leaf and its siblings fall in about 6 clusters of
+		// post-order indices. Below its horizon, the store spends a 16 entry
+		// chunk on each; the store without one a 4096 entry chunk, so it spends
+		// about as much on these 300 leaves as on the whole tree.
+		assertTrue(String.format("sparse %d, dense %d", used[1], used[0]), used[1] * 5 < used[0]);
+		assertTrue(used[1] < keep.size() * 8 * 17);
+	}
+
+	@Test
+	public void testArenaStore() throws IOException, ProofError {
+		File file = File.createTempFile("arena", ".bin");
+		file.deleteOnExit();
+		for (TreeArena arena : new TreeArena[] { new TreeArena(6), new TreeArena(file, 8) }) {
+			for (int length : new int[] { 1, 2, 7, 8, 9, 300 }) {
+				ArenaStore store = new ArenaStore(arena);
+				checkAgainstReference(length, store);
+				store.close();
+				assertEquals(0, arena.chunksInUse());
+			}
+
+			// Many trees growing side by side in one arena, with values that straddle chunks.
+			ArrayList<HistoryTree<byte[], byte[]>> trees = new ArrayList<HistoryTree<byte[], byte[]>>();
+			ArrayList<HistoryTree<byte[], byte[]>> references = new ArrayList<HistoryTree<byte[], byte[]>>();
+			for (int t = 0; t < 20; t++) {
+				trees.add(new HistoryTree<byte[], byte[]>(new SHA256Agg(), new ArenaStore(arena)));
+				references.add(new HistoryTree<byte[], byte[]>(new SHA256Agg(), new AppendOnlyArrayStore<byte[], byte[]>()));
+			}
+			for (int i = 0; i < 50; i++)
+				for (int t = 0; t < trees.size(); t++) {
+					byte[] val = String.format("Tree%d-Event%d-%0" + (1 + 7 * i) + "d", t, i, 0).getBytes();
+					trees.get(t).append(val);
+					references.get(t).append(val);
+				}
+			for (int t = 0; t < trees.size(); t++)
+				checkSameTree(references.get(t), trees.get(t));
+			arena.close();
+		}
+	}
+
+	@Test
+	public void testArenaStoreReuse() throws IOException, ProofError {
+		File file = File.createTempFile("arena", ".bin");
+		file.deleteOnExit();
+		// Chunks of 256 bytes: 7 aggregate slots or 32 value entries each, so
+		// that the second tree's last chunks are only partly used.
+		for (TreeArena arena : new TreeArena[] { new TreeArena(8), new TreeArena(file, 8) }) {
+			// Fill a tree's chunks with values and aggregates, then give them back.
+			ArenaStore first = new ArenaStore(arena);
+			HistoryTree<byte[], byte[]> tree = new HistoryTree<byte[], byte[]>(new SHA256Agg(), first);
+			for (int i = 0; i < 100; i++)
+				tree.append(String.format("First%d-%0" + (1 + i % 90) + "d", i, 0).getBytes());
+			tree.agg();
+			int chunks = arena.chunksInUse();
+			first.close();
+			assertEquals(0, arena.chunksInUse());
+
+			// The next chunks come from those freed, rather than new ones.
+			int[] taken = new int[chunks];
+			for (int i = 0; i < chunks; i++) {
+				taken[i] = arena.allocate();
+				assertTrue(taken[i] < chunks);
+			}
+			for (int chunk : taken)
+				arena.free(chunk);
+
+			// A smaller tree on the reused chunks sees nothing left over from the first.
+			ArenaStore second = new ArenaStore(arena);
+			HistoryTree<byte[], byte[]> reference = makeShaTree(37, new AppendOnlyArrayStore<byte[], byte[]>());
+			tree = makeShaTree(37, second);
+			checkSameTree(reference, tree);
+			assertTrue(arena.chunksInUse() <= chunks);
+			for (long leaf = 37; leaf < 100; leaf++) {
+				NodeCursor<byte[], byte[]> cursor = new NodeCursor<byte[], byte[]>(second, 0, leaf);
+				assertFalse(second.hasVal(cursor));
+				assertNull(second.getVal(cursor));
+				assertNull(second.getAgg(cursor));
+			}
+			// Nodes over the last leaf are not frozen, so have no aggregate yet.
+			assertNull(second.getAgg(new NodeCursor<byte[], byte[]>(second, 1, 36)));
+			assertNull(second.getAgg(new NodeCursor<byte[], byte[]>(second, 3, 32)));
+			second.close();
+			assertEquals(0, arena.chunksInUse());
+			arena.close();
+		}
+	}
+
+	@Test
+	public void testPackedHashStore() throws ProofError, InvalidProtocolBufferException {
+		for (int length : new int[] { 1, 2, 7, 8, 9, 300 })
+			checkAgainstReference(length, new PackedHashStore());
+		checkMerkleAgainstReference(() -> new PackedHashStore());
+
+		HistoryTree<byte[], byte[]> tree = makeShaTree(300, new AppendOnlyArrayStore<byte[], byte[]>());
+		PackedHashStore recycled = new PackedHashStore();
+		for (int i = 0; i < 300; i += 7) {
+			HistoryTree<byte[], byte[]> pruned = tree.makePruned(new HashStore<byte[], byte[]>());
+			pruned.copyV(tree, i, true);
+			recycled.clear();
+			HistoryTree<byte[], byte[]> parsed = new HistoryTree<byte[], byte[]>(new SHA256Agg(), recycled);
+			parsed.updateTime(tree.version());
+			parsed.parseTree(pruned.serializeTree());
+			assertTrue(Arrays.equals(tree.agg(), parsed.agg()));
+			assertTrue(Arrays.equals(tree.leaf(i).getVal(), parsed.leaf(i).getVal()));
+		}
+	}
+
+
+	@Test
+	public void testPackedHashStoreEdges() {
+		for (int width : new int[] { 0, 256 })
+			try {
+				new PackedHashStore(width);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+		PackedHashStore store = new PackedHashStore(8);
+		store.updateTime(1L << 52);
+		for (int round = 0; round < 2; round++) {
+			// Enough nodes to rehash the table of 128 slots several times, in
+			// every state: valid with and without an aggregate of each length up
+			// to the width, with an empty or large value, and far apart in index.
+			for (int i = 0; i < 1000; i++) {
+				long coord = NodeCursor.pack(i % 41, (long) i << 41);
+				if (i % 3 != 0)
+					store.markValidAt(coord);
+				if (i % 3 == 1)
+					store.setAggAt(coord, Arrays.copyOf(String.format("%08d", i).getBytes(), 1 + i % 8));
+				if (i % 5 == 0)
+					store.setVal(new NodeCursor<byte[], byte[]>(store, NodeCursor.layerOf(coord), NodeCursor.indexOf(coord)),
+							new byte[i % 10 == 0 ? 0 : 300 + i]);
+			}
+			for (int i = 0; i < 1000; i++) {
+				long coord = NodeCursor.pack(i % 41, (long) i << 41);
+				NodeCursor<byte[], byte[]> node = new NodeCursor<byte[], byte[]>(store, NodeCursor.layerOf(coord), NodeCursor.indexOf(coord));
+				assertEquals(i % 3 != 0, store.isAggValidAt(coord));
+				if (i % 3 == 1)
+					assertTrue(Arrays.equals(Arrays.copyOf(String.format("%08d", i).getBytes(), 1 + i % 8), store.getAggAt(coord)));
+				else
+					assertNull(store.getAggAt(coord));
+				assertEquals(i % 5 == 0, store.hasVal(node));
+				if (i % 5 == 0)
+					assertEquals(i % 10 == 0 ? 0 : 300 + i, store.getVal(node).length);
+				else
+					assertNull(store.getVal(node));
+				// A neighbour that was never inserted.
+				assertFalse(store.isAggValidAt(coord + (1L << 6)));
+			}
+
+			// Aggregates must be non-empty and fit the width.
+			long coord = NodeCursor.pack(0, 7);
+			store.markValidAt(coord);
+			store.setAggAt(coord, new byte[8]);
+			for (int len : new int[] { 0, 9 })
+				try {
+					store.setAggAt(coord, new byte[len]);
+					fail();
+				} catch (IllegalArgumentException e) {
+				}
+			assertEquals(8, store.getAggAt(coord).length);
+
+			// After clear() the store is empty, and is refilled above.
+			store.clear();
+			assertFalse(store.isAggValidAt(coord));
+			assertFalse(store.isAggValidAt(NodeCursor.pack(1, 1L << 41)));
+			assertFalse(store.hasVal(new NodeCursor<byte[], byte[]>(store, 0, 0)));
+			store.updateTime(1L << 52);
+		}
+	}
+
+	@Test
+	public void testInstrumented() throws ProofError {
+		TreeStats stats = new TreeStats(true);
+		SHA256Agg sha = new SHA256Agg();
+		HistoryTree<byte[], byte[]> tree = new HistoryTree<byte[], byte[]>(new InstrumentedAgg<byte[], byte[]>(sha, stats),
+				new InstrumentedStore<byte[], byte[]>(new AppendOnlyArrayStore<byte[], byte[]>(), stats, sha, true));
+		for (int i = 0; i < 8; i++)
+			tree.append(String.format("Foo%d", i).getBytes());
+		TreeStats.Snapshot built = stats.snapshot();
+		// A full tree of 8 leaves has 8 leaf and 7 interior aggregates, each 32 bytes.
+		assertEquals(8, built.get(Counter.AGG_VAL));
+		assertEquals(7, built.get(Counter.AGG_CHILDREN));
+		assertEquals(8 * 4 + 7 * 64, built.get(Counter.BYTES_HASHED));
+		assertEquals(15, built.get(Counter.SET_AGG));
+		assertEquals(8, built.get(Counter.SET_VAL));
+		assertEquals(15 * 32 + 8 * 4, built.get(Counter.RESIDENT_BYTES));
+		assertTrue(built.get(Counter.GET_AGG) > 0);
+		assertTrue(built.get(Counter.STORE_NANOS) > 0);
+		assertTrue(built.get(Counter.AGG_NANOS) > 0);
+
+		// Reading the root rehashes the path up from the last leaf, storing nothing.
+		tree.agg();
+		TreeStats.Snapshot read = stats.snapshot().minus(built);
+		assertEquals(3, read.get(Counter.AGG_CHILDREN));
+		assertEquals(0, read.get(Counter.SET_AGG));
+		// Until the next append, the root is not hashed again.
+		tree.agg();
+		assertEquals(3, stats.snapshot().minus(built).get(Counter.AGG_CHILDREN));
+
+		checkSameTree(makeShaTree(8, new AppendOnlyArrayStore<byte[], byte[]>()), tree);
+		stats.reset();
+		assertEquals(0, stats.snapshot().get(Counter.GET_AGG));
+	
+		// A store with explicit validity, wrapped twice so that the outer store's
+		// calls to the inner one are counted. For a complete tree it adds none
+		// to track resident bytes; otherwise it only checks validity.
+		for (boolean setOnce : new boolean[] { true, false }) {
+			TreeStats outer = new TreeStats(true);
+			TreeStats inner = new TreeStats(true);
+			tree = new HistoryTree<byte[], byte[]>(sha, new InstrumentedStore<byte[], byte[]>(
+					new InstrumentedStore<byte[], byte[]>(new HashStore<byte[], byte[]>(), inner, sha, true), outer, sha, setOnce));
+			for (int i = 0; i < 8; i++)
+				tree.append(String.format("Foo%d", i).getBytes());
+			assertEquals(15 * 32 + 8 * 4, outer.snapshot().get(Counter.RESIDENT_BYTES));
+			assertEquals(outer.snapshot().get(Counter.GET_AGG), inner.snapshot().get(Counter.GET_AGG));
+			assertEquals(outer.snapshot().get(Counter.GET_VAL), inner.snapshot().get(Counter.GET_VAL));
+			if (setOnce)
+				assertEquals(outer.snapshot().get(Counter.IS_AGG_VALID), inner.snapshot().get(Counter.IS_AGG_VALID));
+			else
+				assertEquals(outer.snapshot().get(Counter.IS_AGG_VALID) + outer.snapshot().get(Counter.MARK_VALID),
+						inner.snapshot().get(Counter.IS_AGG_VALID));
+		}
+
+		// Copying the same path into a pruned tree twice overwrites it without adding to it.
+		stats.reset();
+		HistoryTree<byte[], byte[]> pruned = tree.makePruned(
+				new InstrumentedStore<byte[], byte[]>(new HashStore<byte[], byte[]>(), stats, sha, false));
+		pruned.copyV(tree, 5, true);
+		long resident = stats.snapshot().get(Counter.RESIDENT_BYTES);
+		assertTrue(resident > 4 * 32);
+		pruned.copyV(tree, 5, true);
+		assertEquals(resident, stats.snapshot().get(Counter.RESIDENT_BYTES));
+
+		// Strings are measured in UTF-8 bytes.
+		assertEquals(1 + 2 + 3 + 4, TreeStats.sizeOf("a\u00e9\u20ac\ud83d\ude00", false, null));
+	}
+
+	@Test
+	public void testAppendAll() throws IOException, ProofError {
+		File dir = Files.createTempDirectory("tiered").toFile();
+		ArrayList<Supplier<HistoryDataStoreInterface<byte[], byte[]>>> stores = new ArrayList<Supplier<HistoryDataStoreInterface<byte[], byte[]>>>();
+		stores.add(() -> new AppendOnlyArrayStore<byte[], byte[]>());
+		stores.add(() -> new ArrayStore<byte[], byte[]>());
+		stores.add(() -> new HashStore<byte[], byte[]>());
+		stores.add(() -> new LayerArrayStore<byte[], byte[]>());
+		stores.add(() -> new TieredStore<byte[], byte[]>(dir, new SHA256Agg(), 2, 1, 2));
+		// Batches of every size up to 9 in turn, so that they start and end at every alignment.
+		HistoryTree<byte[], byte[]> reference = makeShaTree(300, new AppendOnlyArrayStore<byte[], byte[]>());
+		for (Supplier<HistoryDataStoreInterface<byte[], byte[]>> store : stores) {
+			HistoryTree<byte[], byte[]> tree = new HistoryTree<byte[], byte[]>(new SHA256Agg(), store.get());
+			tree.appendAll(new ArrayList<byte[]>());
+			assertEquals(-1, tree.version());
+			int i = 0;
+			for (int batch = 1; i < 300; batch = batch % 9 + 1) {
+				ArrayList<byte[]> values = new ArrayList<byte[]>();
+				for (; values.size() < batch && i < 300; i++)
+					values.add(String.format("Foo%d", i).getBytes());
+				tree.appendAll(values);
+			}
+			checkSameTree(reference, tree);
+		}
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+
+		// Large enough batches that some aligned blocks are aggregated on the pool.
+		ForkJoinPool pool = new ForkJoinPool(4);
+		reference = makeShaTree(10017, new AppendOnlyArrayStore<byte[], byte[]>());
+		for (Supplier<HistoryDataStoreInterface<byte[], byte[]>> store : stores.subList(0, 3)) {
+			HistoryTree<byte[], byte[]> tree = makeShaTree(17, store.get());
+			ArrayList<byte[]> values = new ArrayList<byte[]>();
+			for (int i = 17; i < 5017; i++)
+				values.add(String.format("Foo%d", i).getBytes());
+			tree.appendAll(values, pool);
+			values.clear();
+			for (int i = 5017; i < 10017; i++)
+				values.add(String.format("Foo%d", i).getBytes());
+			tree.appendAll(values, pool);
+			checkSameTree(reference, tree);
+		}
+		pool.shutdown();
+
+		for (int length = 1; length < 20; length++) {
+			MerkleTree<byte[], byte[]> expect = new MerkleTree<byte[], byte[]>(new SHA256Agg(), new ArrayStore<byte[], byte[]>());
+			ArrayList<byte[]> values = new ArrayList<byte[]>();
+			for (int i = 0; i < length; i++) {
+				expect.append(String.format("Foo%d", i).getBytes());
+				values.add(String.format("Foo%d", i).getBytes());
+			}
+			MerkleTree<byte[], byte[]> tree = new MerkleTree<byte[], byte[]>(new SHA256Agg(), new ArrayStore<byte[], byte[]>());
+			tree.appendAll(values);
+			expect.freeze();
+			tree.freeze();
+			assertTrue(Arrays.equals(expect.agg(), tree.agg()));
+			assertTrue(Arrays.equals(expect.serializeTree(), tree.serializeTree()));
+		}
+	}
+
+	@Test
+	public void testBulkLoad() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int length : new int[] { 1, 2, 3, 16, 17, 100, 5000 }) {
+				ArrayList<byte[]> values = new ArrayList<byte[]>();
+				for (int i = 0; i < length; i++)
+					values.add(String.format("Foo%d", i).getBytes());
+				HistoryTree<byte[], byte[]> reference = makeShaTree(length, new AppendOnlyArrayStore<byte[], byte[]>());
+				ArrayList<HistoryDataStoreInterface<byte[], byte[]>> stores = new ArrayList<HistoryDataStoreInterface<byte[], byte[]>>();
+				stores.add(new AppendOnlyArrayStore<byte[], byte[]>());
+				stores.add(new ArrayStore<byte[], byte[]>());
+				stores.add(new HashStore<byte[], byte[]>());
+				for (HistoryDataStoreInterface<byte[], byte[]> store : stores) {
+					HistoryTree<byte[], byte[]> tree = new HistoryTree<byte[], byte[]>(new SHA256Agg(), store);
+					// Small chunks, so that subtrees span several of them.
+					tree.bulkLoad(values.iterator(), executor, 2);
+					checkSameTree(reference, tree);
+				}
+			}
+
+			// From a file, with the default chunk size, and appending afterwards.
+			File file = File.createTempFile("values", ".dat");
+			try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+				for (int i = 0; i < 3000; i++) {
+					byte[] value = String.format("Foo%d", i).getBytes();
+					out.writeInt(value.length);
+					out.write(value);
+				}
+			}
+			HistoryTree<byte[], byte[]> tree = new HistoryTree<byte[], byte[]>(new SHA256Agg(), new ArrayStore<byte[], byte[]>());
+			tree.bulkLoad(BulkLoader.readValues(file), executor);
+			file.delete();
+			for (int i = 3000; i < 3010; i++)
+				tree.append(String.format("Foo%d", i).getBytes());
+			checkSameTree(makeShaTree(3010, new AppendOnlyArrayStore<byte[], byte[]>()), tree);
+
+			HistoryTree<byte[], byte[]> empty = new HistoryTree<byte[], byte[]>(new SHA256Agg(), new HashStore<byte[], byte[]>());
+			empty.bulkLoad(new ArrayList<byte[]>().iterator(), executor);
+			assertEquals(-1, empty.version());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package edu.rice.historytree.storage;
+
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TestVebLayout extends TestCase {
+	@Test
+	public void testPositionsPackTheFirstBottomTree() {
+		// The first 2^15 leaves and everything above them up to layer 15 form
+		// one bottom tree, stored contiguously right after the 2^16-1 slot top tree.
+		HashSet<Long> seen = new HashSet<Long>();
+		for (int layer = 0; layer < 16; layer++)
+			for (int index = 0; index < 1 << 15; index += 1 << layer) {
+				long pos = VebStore.position(layer, index);
+				assertTrue(pos >= (1 << 16) - 1 && pos < 2 * ((1 << 16) - 1));
+				assertTrue(seen.add(pos));
+			}
+		assertEquals((1 << 16) - 1, seen.size());
+	}
+}